@@ -0,0 +1,77 @@
+package com.mnishiguchi.listviewcustomlayout.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mnishiguchi.listviewcustomlayout.CancellationToken;
+import com.mnishiguchi.listviewcustomlayout.CountrySearcher;
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+import com.mnishiguchi.listviewcustomlayout.RowBitmap;
+import com.mnishiguchi.listviewcustomlayout.SearchText;
+
+/**
+ * A batch of autocomplete constraints, as a server has them waiting: the starts of names,
+ * 1 to 8 letters long, so many are prefixes of others. Searched as one batch, and one by one
+ * with the cache off, for comparison.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class BatchBenchmark
+{
+	@Param({ "10000", "100000", "1000000" })
+	public int rows;
+
+	@Param({ "100", "1000" })
+	public int batch;
+
+	private CountrySearcher searcher;
+	private CharSequence[] constraints;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		CountryTable table = SyntheticCountries.table(rows, 42);
+		searcher = new CountrySearcher(table, 0);
+		Random random = new Random(3);
+		constraints = new CharSequence[batch];
+		for (int i = 0; i < batch; i++)
+		{
+			String name = table.getName(random.nextInt(table.size() ) );
+			constraints[i] = name.substring(0, Math.min(name.length(), 1 + random.nextInt(8) ) );
+		}
+	}
+
+	@Benchmark
+	public RowBitmap[] searchBatch()
+	{
+		return searcher.searchBatch(constraints, CancellationToken.NONE);
+	}
+
+	@Benchmark
+	public RowBitmap[] searchEach()
+	{
+		RowBitmap[] results = new RowBitmap[constraints.length];
+		for (int i = 0; i < constraints.length; i++)
+		{
+			results[i] = searcher.search(SearchText.fold(constraints[i]), CancellationToken.NONE);
+		}
+		return results;
+	}
+}
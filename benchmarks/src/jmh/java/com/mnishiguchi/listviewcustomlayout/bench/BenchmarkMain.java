@@ -0,0 +1,29 @@
+package com.mnishiguchi.listviewcustomlayout.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks whose names match the first argument, or all of them, with the GC
+ * profiler, so that the allocation rate per operation (gc.alloc.rate.norm) is reported
+ * next to the throughput and the average time.
+ */
+public final class BenchmarkMain
+{
+	/** CONSTRUCTOR: not instantiable. */
+	private BenchmarkMain()
+	{
+	}
+
+	public static void main(String[] args) throws RunnerException
+	{
+		Options options = new OptionsBuilder()
+				.include( (args.length > 0) ? args[0] : "com.mnishiguchi.listviewcustomlayout.bench")
+				.addProfiler(GCProfiler.class)
+				.build();
+		new Runner(options).run();
+	}
+}
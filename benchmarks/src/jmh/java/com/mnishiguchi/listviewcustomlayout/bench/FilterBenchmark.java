@@ -0,0 +1,89 @@
+package com.mnishiguchi.listviewcustomlayout.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mnishiguchi.listviewcustomlayout.CancellationToken;
+import com.mnishiguchi.listviewcustomlayout.CountrySearcher;
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+import com.mnishiguchi.listviewcustomlayout.RowList;
+
+/**
+ * The work of CountryFilter.performFiltering, without Android: one constraint of the mix
+ * per operation, taken in turn, through the same searcher calls the filter makes.
+ * The result cache is off, so every operation searches. {@link TypingBenchmark} measures
+ * the paths that don't depend on the mix.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FilterBenchmark
+{
+	private static final int TOP_K = 48;  // As the activity asks for.
+
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int rows;
+
+	/** prefix: 1-2 letters; substring: 6-10 letters out of a name; miss: matches nothing; empty: "". */
+	@Param({ "prefix", "substring", "miss", "empty" })
+	public String mix;
+
+	private CountryTable table;
+	private CountrySearcher searcher;
+	private char[][] constraints;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		table = SyntheticCountries.table(rows, 42);
+		searcher = new CountrySearcher(table, 0);  // No cache: measure the search itself.
+		constraints = QueryMix.constraints(table, mix, 64, 7);
+	}
+
+	private char[] nextConstraint()
+	{
+		char[] constraint = constraints[next];
+		next = (next + 1) % constraints.length;
+		return constraint;
+	}
+
+	/** Every match, in row order: the path with top-k off, and the one streaming reports from. */
+	@Benchmark
+	public RowList search()
+	{
+		char[] folded = nextConstraint();
+		return (folded.length == 0) ? searcher.getAllRows() : searcher.search(folded, CancellationToken.NONE);
+	}
+
+	/** The best matches only: the path the activity takes for plain constraints. */
+	@Benchmark
+	public RowList searchTop()
+	{
+		char[] folded = nextConstraint();
+		return (folded.length == 0) ? searcher.getAllRows() : searcher.searchTop(folded, TOP_K, CancellationToken.NONE);
+	}
+
+	/** Every match by relevance: the path after scrolling past the best ones. */
+	@Benchmark
+	public RowList searchRanked()
+	{
+		char[] folded = nextConstraint();
+		return (folded.length == 0) ? searcher.getAllRows() : searcher.searchRanked(folded, CancellationToken.NONE);
+	}
+}
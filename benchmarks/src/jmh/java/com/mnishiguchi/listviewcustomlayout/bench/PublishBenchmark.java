@@ -0,0 +1,75 @@
+package com.mnishiguchi.listviewcustomlayout.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mnishiguchi.listviewcustomlayout.CancellationToken;
+import com.mnishiguchi.listviewcustomlayout.CountrySearcher;
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+import com.mnishiguchi.listviewcustomlayout.FacetCounts;
+import com.mnishiguchi.listviewcustomlayout.ListDiff;
+import com.mnishiguchi.listviewcustomlayout.RowBitmap;
+import com.mnishiguchi.listviewcustomlayout.SearchText;
+
+/**
+ * The work done per result between the search and the screen, without Android:
+ * the change set the worker computes for publishResults, the scroll position the UI thread
+ * maps through it, and the facet counts.
+ * Typing a letter narrows the rows; deleting one widens them again.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class PublishBenchmark
+{
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int rows;
+
+	private CountryTable table;
+	private RowBitmap wide;  // The rows for one letter.
+	private RowBitmap narrow;  // The rows for two letters.
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		table = SyntheticCountries.table(rows, 42);
+		CountrySearcher searcher = new CountrySearcher(table, 0);
+		wide = searcher.search(SearchText.fold("a"), CancellationToken.NONE);
+		narrow = searcher.search(SearchText.fold("an"), CancellationToken.NONE);
+	}
+
+	@Benchmark
+	public int typeLetter()
+	{
+		ListDiff diff = ListDiff.compute(wide, narrow);
+		return diff.mapPosition(wide.cardinality() / 2);
+	}
+
+	@Benchmark
+	public int deleteLetter()
+	{
+		ListDiff diff = ListDiff.compute(narrow, wide);
+		return diff.mapPosition(narrow.cardinality() / 2);
+	}
+
+	@Benchmark
+	public FacetCounts facets()
+	{
+		return FacetCounts.count(table, wide, true);
+	}
+}
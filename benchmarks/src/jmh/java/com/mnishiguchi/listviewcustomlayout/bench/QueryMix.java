@@ -0,0 +1,70 @@
+package com.mnishiguchi.listviewcustomlayout.bench;
+
+import java.util.Random;
+
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+import com.mnishiguchi.listviewcustomlayout.SearchText;
+
+/**
+ * Folded constraints of a kind, picked from the names of a table so that they match
+ * as typed input would.
+ */
+final class QueryMix
+{
+	/** CONSTRUCTOR: not instantiable. */
+	private QueryMix()
+	{
+	}
+
+	/**
+	 * Returns count constraints of the mix: "prefix", "substring", "miss" or "empty".
+	 */
+	static char[][] constraints(CountryTable table, String mix, int count, long seed)
+	{
+		Random random = new Random(seed);
+		char[][] constraints = new char[count][];
+		for (int i = 0; i < count; i++)
+		{
+			String name = table.getName(random.nextInt(table.size() ) );
+			String constraint;
+			if ("prefix".equals(mix) )
+			{
+				constraint = name.substring(0, Math.min(name.length(), 1 + random.nextInt(2) ) );
+			}
+			else if ("substring".equals(mix) )
+			{
+				int length = Math.min(name.length(), 6 + random.nextInt(5) );
+				int start = random.nextInt(name.length() - length + 1);
+				constraint = name.substring(start, start + length);
+			}
+			else if ("miss".equals(mix) )
+			{
+				constraint = "qx" + name.substring(0, Math.min(name.length(), 4) );  // No syllable has a q or an x.
+			}
+			else if ("empty".equals(mix) )
+			{
+				constraint = "";
+			}
+			else
+			{
+				throw new IllegalArgumentException("mix: " + mix);
+			}
+			constraints[i] = SearchText.fold(constraint);
+		}
+		return constraints;
+	}
+
+	/** Returns count first words of names, to be typed one letter at a time. */
+	static String[] words(CountryTable table, int count, long seed)
+	{
+		Random random = new Random(seed);
+		String[] words = new String[count];
+		for (int i = 0; i < count; i++)
+		{
+			String name = table.getName(random.nextInt(table.size() ) );
+			int space = name.indexOf(' ');
+			words[i] = (space < 0) ? name : name.substring(0, space);
+		}
+		return words;
+	}
+}
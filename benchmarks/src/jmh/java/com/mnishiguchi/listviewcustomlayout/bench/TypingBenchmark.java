@@ -0,0 +1,79 @@
+package com.mnishiguchi.listviewcustomlayout.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mnishiguchi.listviewcustomlayout.CancellationToken;
+import com.mnishiguchi.listviewcustomlayout.CountryQuery;
+import com.mnishiguchi.listviewcustomlayout.CountrySearcher;
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+import com.mnishiguchi.listviewcustomlayout.RowList;
+import com.mnishiguchi.listviewcustomlayout.SearchText;
+
+/**
+ * The work of CountryFilter.performFiltering that doesn't take a constraint of a mix:
+ * typing whole words, with the result cache on as the filter has it, and a field-scoped query.
+ */
+@BenchmarkMode({ Mode.Throughput, Mode.AverageTime })
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TypingBenchmark
+{
+	@Param({ "1000", "10000", "100000", "1000000" })
+	public int rows;
+
+	private CountrySearcher uncached;
+	private CountrySearcher searcher;
+	private String[] words;
+	private int next;
+
+	@Setup(Level.Trial)
+	public void setUp()
+	{
+		CountryTable table = SyntheticCountries.table(rows, 42);
+		uncached = new CountrySearcher(table, 0);  // No cache: measure the search itself.
+		searcher = new CountrySearcher(table);
+		words = QueryMix.words(table, 16, 11);
+	}
+
+	/**
+	 * Types a word one letter at a time, each search refining the one before through
+	 * the result cache, then clears the input. The cache is emptied first, so each word
+	 * is typed as for the first time, rather than found whole in the cache.
+	 */
+	@Benchmark
+	public int keystrokes()
+	{
+		String word = words[next];
+		next = (next + 1) % words.length;
+		searcher.getCache().invalidate();
+		int count = 0;
+		for (int length = 1; length <= word.length(); length++)
+		{
+			count += searcher.search(SearchText.fold(word.substring(0, length) ), CancellationToken.NONE).cardinality();
+		}
+		return count + searcher.getAllRows().cardinality();
+	}
+
+	/** A field-scoped query, parsed each time as the filter does. */
+	@Benchmark
+	public RowList query()
+	{
+		return CountryQuery.parse("continent:Asia -region:\"East Asia\"").evaluate(uncached, CancellationToken.NONE);
+	}
+}
@@ -0,0 +1,78 @@
+package com.mnishiguchi.listviewcustomlayout.bench;
+
+import java.util.Random;
+
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+
+/**
+ * Country-like data of any size for the benchmarks: pronounceable names built from syllables,
+ * so that substrings repeat as they do in real names, unique codes, and the real continents
+ * with a few dozen regions. The same seed always gives the same data.
+ */
+public final class SyntheticCountries
+{
+	private static final String[] SYLLABLES = {
+		"al", "an", "ar", "ba", "bo", "ca", "da", "el", "en", "ga", "gu", "ia", "in", "ka", "la", "li",
+		"ma", "mo", "na", "ne", "ni", "or", "pa", "ra", "ri", "sa", "so", "ta", "to", "ur", "va", "zi"
+	};
+	private static final String[] CONTINENTS = {
+		"Africa", "Antarctica", "Asia", "Europe", "North America", "Oceania", "South America"
+	};
+	private static final String[] REGIONS = {
+		"Australia and New Zealand", "Baltic Countries", "British Islands", "Caribbean", "Central Africa",
+		"Central America", "East Asia", "Eastern Africa", "Eastern Europe", "Melanesia", "Micronesia",
+		"Middle East", "Nordic Countries", "North America", "Northern Africa", "Polynesia",
+		"South America", "Southeast Asia", "Southern Africa", "Southern and Central Asia",
+		"Southern Europe", "Western Africa", "Western Europe"
+	};
+
+	/** CONSTRUCTOR: not instantiable. */
+	private SyntheticCountries()
+	{
+	}
+
+	/** Returns a table of the passed-in number of rows. */
+	public static CountryTable table(int rows, long seed)
+	{
+		Random random = new Random(seed);
+		CountryTable.Builder builder = new CountryTable.Builder();
+		StringBuilder name = new StringBuilder();
+		for (int row = 0; row < rows; row++)
+		{
+			name.setLength(0);
+			int words = 1 + random.nextInt(3);
+			for (int w = 0; w < words; w++)
+			{
+				if (w > 0)
+				{
+					name.append(' ');
+				}
+				int syllables = 2 + random.nextInt(3);
+				for (int s = 0; s < syllables; s++)
+				{
+					name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+				}
+				name.setCharAt(name.length() - 2 * syllables,
+						Character.toUpperCase(name.charAt(name.length() - 2 * syllables) ) );
+			}
+			int region = random.nextInt(REGIONS.length);
+			builder.add(code(row), name.toString(), CONTINENTS[region % CONTINENTS.length], REGIONS[region]);
+		}
+		return builder.build();
+	}
+
+	/** Returns a unique code for a row: three letters, then digits past the first 17576 rows. */
+	private static String code(int row)
+	{
+		StringBuilder code = new StringBuilder();
+		int n = row % (26 * 26 * 26);
+		code.append( (char) ('A' + n / (26 * 26) ) );
+		code.append( (char) ('A' + n / 26 % 26) );
+		code.append( (char) ('A' + n % 26) );
+		if (row >= 26 * 26 * 26)
+		{
+			code.append(row / (26 * 26 * 26) );
+		}
+		return code.toString();
+	}
+}
@@ -0,0 +1,200 @@
+package com.mnishiguchi.listviewcustomlayout.replay;
+
+import java.io.FileReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.mnishiguchi.listviewcustomlayout.CountryFilterCore;
+import com.mnishiguchi.listviewcustomlayout.CountrySearcher;
+import com.mnishiguchi.listviewcustomlayout.CountryStore;
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+import com.mnishiguchi.listviewcustomlayout.FieldIndex;
+import com.mnishiguchi.listviewcustomlayout.ResultCache;
+import com.mnishiguchi.listviewcustomlayout.bench.SyntheticCountries;
+
+/**
+ * Replays typing sessions through the filtering path and reports, for each session and in total,
+ * the p50 and p99 time from keystroke to published result, the wasted filter passes and the
+ * stale publishes. Options:
+ * <pre>
+ * --rows N         synthetic rows (100000)
+ * --sessions N     generated sessions (50)
+ * --sessions-file F  replay the recorded sessions in F instead, see TypingSession.read()
+ * --cpu-scale X    how much slower the modeled device is than this machine (1)
+ * --top-k K        best matches computed first, as the activity does (48); 0 for all
+ * --fuzzy on|off   typo-tolerant matching (off)
+ * --sort O         rows, code, name, continent or region (rows: by relevance, or row order)
+ * --stream on|off  show the matches so far of the passes that compute every match (on)
+ * --scroll on|off  scroll to the end of each result of only the best matches, which loads the rest (off)
+ * --seed S         the seed of the data and the sessions (1)
+ * </pre>
+ * The passes are the activity's own, through {@link CountryFilterCore}, with the options set as
+ * the activity's menu sets them. The sessions are played once first to warm up the JIT,
+ * with a store, searcher and filter of their own.
+ */
+public final class ReplayMain
+{
+	/** CONSTRUCTOR: not instantiable. */
+	private ReplayMain()
+	{
+	}
+
+	public static void main(String[] args) throws IOException
+	{
+		int rows = 100000;
+		int sessionCount = 50;
+		String file = null;
+		double cpuScale = 1;
+		int topK = 48;
+		boolean fuzzy = false;
+		int sortOrder = FieldIndex.ORDER_ROWS;
+		boolean streaming = true;
+		boolean scrollToEnd = false;
+		long seed = 1;
+		for (int i = 0; i + 1 < args.length; i += 2)
+		{
+			String value = args[i + 1];
+			if ("--rows".equals(args[i]) )
+			{
+				rows = Integer.parseInt(value);
+			}
+			else if ("--sessions".equals(args[i]) )
+			{
+				sessionCount = Integer.parseInt(value);
+			}
+			else if ("--sessions-file".equals(args[i]) )
+			{
+				file = value;
+			}
+			else if ("--cpu-scale".equals(args[i]) )
+			{
+				cpuScale = Double.parseDouble(value);
+			}
+			else if ("--top-k".equals(args[i]) )
+			{
+				topK = Integer.parseInt(value);
+			}
+			else if ("--fuzzy".equals(args[i]) )
+			{
+				fuzzy = parseSwitch(value);
+			}
+			else if ("--sort".equals(args[i]) )
+			{
+				sortOrder = parseOrder(value);
+			}
+			else if ("--stream".equals(args[i]) )
+			{
+				streaming = parseSwitch(value);
+			}
+			else if ("--scroll".equals(args[i]) )
+			{
+				scrollToEnd = parseSwitch(value);
+			}
+			else if ("--seed".equals(args[i]) )
+			{
+				seed = Long.parseLong(value);
+			}
+			else
+			{
+				throw new IllegalArgumentException("Unknown option: " + args[i]);
+			}
+		}
+
+		CountryTable table = SyntheticCountries.table(rows, seed);
+		List<TypingSession> sessions;
+		if (file != null)
+		{
+			Reader in = new FileReader(file);
+			try
+			{
+				sessions = TypingSession.read(in);
+			}
+			finally
+			{
+				in.close();
+			}
+		}
+		else
+		{
+			Random random = new Random(seed);
+			sessions = new ArrayList<TypingSession>();
+			for (int i = 0; i < sessionCount; i++)
+			{
+				sessions.add(TypingSession.generate(table, random) );
+			}
+		}
+
+		// Warm up, then measure.
+		ReplayPipeline warmUp = new ReplayPipeline(new VirtualLooper(),
+				filter(table, topK, fuzzy, sortOrder, streaming), cpuScale, scrollToEnd);
+		for (TypingSession session : sessions)
+		{
+			warmUp.replay(session);
+		}
+		ReplayPipeline pipeline = new ReplayPipeline(new VirtualLooper(),
+				filter(table, topK, fuzzy, sortOrder, streaming), cpuScale, scrollToEnd);
+		SessionStats total = new SessionStats();
+		for (int i = 0; i < sessions.size(); i++)
+		{
+			SessionStats stats = pipeline.replay(sessions.get(i) );
+			System.out.println(String.format("session %3d  %s", i, stats) );
+			total.addAll(stats);
+		}
+		System.out.println(String.format("total        %s", total) );
+	}
+
+	/** Returns the filtering of a store of the table, set up as the activity's menu would set it. */
+	private static CountryFilterCore filter(CountryTable table, int topK, boolean fuzzy, int sortOrder,
+			boolean streaming)
+	{
+		CountryStore store = new CountryStore(table, null);
+		CountryFilterCore core = new CountryFilterCore(store,
+				new CountrySearcher(store.current(), ResultCache.DEFAULT_MAX_BYTES) );
+		core.setTopK(topK);
+		core.setFuzzy(fuzzy);
+		core.setSortOrder(sortOrder);
+		core.setStreaming(streaming);
+		return core;
+	}
+
+	private static boolean parseSwitch(String value)
+	{
+		if ("on".equals(value) )
+		{
+			return true;
+		}
+		if ("off".equals(value) )
+		{
+			return false;
+		}
+		throw new IllegalArgumentException("Expected on or off: " + value);
+	}
+
+	private static int parseOrder(String value)
+	{
+		if ("rows".equals(value) )
+		{
+			return FieldIndex.ORDER_ROWS;
+		}
+		if ("code".equals(value) )
+		{
+			return FieldIndex.ORDER_CODE;
+		}
+		if ("name".equals(value) )
+		{
+			return FieldIndex.ORDER_NAME;
+		}
+		if ("continent".equals(value) )
+		{
+			return FieldIndex.ORDER_CONTINENT;
+		}
+		if ("region".equals(value) )
+		{
+			return FieldIndex.ORDER_REGION;
+		}
+		throw new IllegalArgumentException("Unknown order: " + value);
+	}
+}
@@ -0,0 +1,307 @@
+package com.mnishiguchi.listviewcustomlayout.replay;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.mnishiguchi.listviewcustomlayout.AdaptiveDelayer;
+import com.mnishiguchi.listviewcustomlayout.CancellationToken;
+import com.mnishiguchi.listviewcustomlayout.CountryFilterCore;
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+import com.mnishiguchi.listviewcustomlayout.RankedRows;
+import com.mnishiguchi.listviewcustomlayout.RequestSlot;
+import com.mnishiguchi.listviewcustomlayout.RowList;
+
+/**
+ * The filtering path of the activity, replayed on a {@link VirtualLooper}:
+ * onTextChanged and its adaptive debounce, the latest-wins request of ExecutorFilter,
+ * performFiltering on the worker with its cancellation, the partial rows of streaming passes,
+ * and publishResults with its check for stale results. Requests go through the
+ * {@link RequestSlot} of the filter, and each pass is a real pass of the filter's
+ * {@link CountryFilterCore}, with the options it was given; the worker is modeled as busy
+ * for as long as the pass took, times the cpu scale, so a slower device can be played on a
+ * fast machine. Partial rows are shown as far into the pass as they were reported.
+ * <p>
+ * A pass that a newer request supersedes gives up at once, as the searches poll their
+ * cancellation token every few hundred rows. It is still computed in full, so it leaves its
+ * result in the searcher's cache where the real one wouldn't.
+ */
+final class ReplayPipeline
+{
+	private final VirtualLooper looper;
+	private final CountryFilterCore core;
+	private final AdaptiveDelayer delayer = new AdaptiveDelayer();
+	private final double cpuScale;
+	private final boolean scrollToEnd;
+
+	// The UI thread.
+	private String pendingInput;  // The latest input waiting for the debounce delay.
+	private final Runnable filterRunnable = new Runnable()
+	{
+		public void run()
+		{
+			submit(pendingInput);
+		}
+	};
+	private int completedGeneration = -1;  // The generation of the last complete result shown.
+	private long[] keyTimes = new long[16];  // When each keystroke of the session came.
+	private int keyCount;
+	private int satisfiedKeys;  // The keystrokes that a shown result is at least as new as.
+
+	// The filter and its worker.
+	private final RequestSlot<Request> requests = new RequestSlot<Request>();  // Latest wins.
+	private Pass running;
+
+	private SessionStats stats;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param core the filtering, with the options to replay with
+	 * @param cpuScale how much slower than this machine the modeled worker is
+	 * @param scrollToEnd true to scroll to the end of every result of only the best matches,
+	 *        which loads the rest as the adapter does
+	 */
+	ReplayPipeline(VirtualLooper looper, CountryFilterCore core, double cpuScale, boolean scrollToEnd)
+	{
+		this.looper = looper;
+		this.core = core;
+		this.cpuScale = cpuScale;
+		this.scrollToEnd = scrollToEnd;
+	}
+
+	/**
+	 * Replays a session, until the result of its last keystroke is published.
+	 * The searcher and its cache, and the debounce's idea of the typing speed, carry over
+	 * from the sessions before, as they do in the activity.
+	 */
+	SessionStats replay(TypingSession session)
+	{
+		stats = new SessionStats();
+		keyCount = 0;
+		satisfiedKeys = 0;
+		long time = looper.now();
+		for (int key = 0; key < session.size(); key++)
+		{
+			final String text = session.getText(key);
+			time += session.getGap(key);
+			looper.postDelayed(new Runnable()
+			{
+				public void run()
+				{
+					onTextChanged(text);
+				}
+			}, time - looper.now() );
+		}
+		looper.runUntilIdle();
+		return stats;
+	}
+
+	/* The UI thread */
+
+	/** As the TextWatcher of the activity. */
+	private void onTextChanged(String input)
+	{
+		if (keyCount == keyTimes.length)
+		{
+			keyTimes = Arrays.copyOf(keyTimes, 2 * keyCount);
+		}
+		keyTimes[keyCount++] = looper.now();
+		stats.keys++;
+
+		pendingInput = input;
+		looper.removeCallbacks(filterRunnable);
+		long delay = delayer.getPostingDelay(input, looper.now() );
+		if (delay == 0)
+		{
+			filterRunnable.run();
+		}
+		else
+		{
+			looper.postDelayed(filterRunnable, delay);
+		}
+	}
+
+	/** As CountryFilter.publishResults: drops a result that a newer request supersedes. */
+	private void publish(Pass pass)
+	{
+		if (!requests.isCurrent(pass.request.getGeneration() ) )
+		{
+			stats.stalePublishes++;
+			return;
+		}
+		stats.published++;
+		completedGeneration = pass.request.getGeneration();
+		satisfy(pass.request.getValue() );
+
+		// As getView near the end of the best matches.
+		RowList rows = pass.result.getRows();
+		if (scrollToEnd && rows instanceof RankedRows && !( (RankedRows) rows).isComplete()
+				&& core.expand(pass.request.getValue().constraint) )
+		{
+			submit(pass.request.getValue().constraint);
+		}
+	}
+
+	/** As CountryFilter.publishPartial: shows the matches so far, unless they are stale. */
+	private void publishPartial(Pass pass)
+	{
+		int generation = pass.request.getGeneration();
+		if (!requests.isCurrent(generation) || generation == completedGeneration)
+		{
+			return;
+		}
+		stats.partialPublishes++;
+		satisfy(pass.request.getValue() );
+	}
+
+	/** Counts the keystrokes up to the request's as answered now, unless they were already. */
+	private void satisfy(Request request)
+	{
+		for (; satisfiedKeys <= request.lastKey; satisfiedKeys++)
+		{
+			stats.addLatency(looper.now() - keyTimes[satisfiedKeys]);
+		}
+	}
+
+	/* The filter */
+
+	/** As ExecutorFilter.submit. */
+	private void submit(String constraint)
+	{
+		stats.requests++;
+		if (!requests.offer(new Request(constraint, keyCount - 1) ) )
+		{
+			stats.droppedRequests++;  // Replaced one before the worker took it.
+		}
+		if (running == null)
+		{
+			startNext();
+		}
+		else if (!running.cancelled && running.token.isCancelled() )
+		{
+			// The running pass sees its token cancelled and gives up, before reporting anything more.
+			running.cancelled = true;
+			for (VirtualLooper.Message partial : running.partials)
+			{
+				looper.remove(partial);
+			}
+			looper.remove(running.finish);
+			running.finish = finishLater(running, 0);
+		}
+	}
+
+	/** Runs the waiting request on the worker, which is busy until the pass finishes. */
+	private void startNext()
+	{
+		RequestSlot.Request<Request> request = requests.take();
+		if (request == null)
+		{
+			return;
+		}
+		CancellationToken token = requests.token(request.getGeneration() );
+		final List<Long> partialTimes = new ArrayList<Long>();
+		final long start = System.nanoTime();
+		CountryFilterCore.Result result = core.filter(request.getValue().constraint, token,
+				new CountryFilterCore.PartialListener()
+		{
+			public void onPartial(RowList rows, CountryTable table, char[] highlighted)
+			{
+				partialTimes.add(System.nanoTime() - start);
+			}
+		} );
+		long millis = scale(System.nanoTime() - start);
+		final Pass pass = new Pass(request, token, result, millis);
+		for (long nanos : partialTimes)
+		{
+			pass.partials.add(looper.postDelayed(new Runnable()
+			{
+				public void run()
+				{
+					publishPartial(pass);
+				}
+			}, scale(nanos) ) );
+		}
+		pass.finish = finishLater(pass, millis);
+		running = pass;
+	}
+
+	private long scale(long nanos)
+	{
+		return Math.round(nanos / 1e6 * cpuScale);
+	}
+
+	private VirtualLooper.Message finishLater(final Pass pass, long delayMillis)
+	{
+		return looper.postDelayed(new Runnable()
+		{
+			public void run()
+			{
+				finish(pass);
+			}
+		}, delayMillis);
+	}
+
+	/** As ExecutorFilter.runPending, after performFiltering returns. */
+	private void finish(final Pass pass)
+	{
+		running = null;
+		stats.passes++;
+		if (pass.cancelled || pass.result == null)
+		{
+			stats.wastedPasses++;
+		}
+		else
+		{
+			delayer.recordFilterDuration(pass.millis);
+			looper.post(new Runnable()
+			{
+				public void run()
+				{
+					publish(pass);
+				}
+			} );
+		}
+		startNext();
+	}
+
+	/**
+	 * A constraint submitted to the filter, and the last keystroke before it.
+	 */
+	private static final class Request
+	{
+		final String constraint;
+		final int lastKey;
+
+		/** CONSTRUCTOR */
+		Request(String constraint, int lastKey)
+		{
+			this.constraint = constraint;
+			this.lastKey = lastKey;
+		}
+	}
+
+	/**
+	 * A request being filtered on the worker.
+	 */
+	private static final class Pass
+	{
+		final RequestSlot.Request<Request> request;
+		final CancellationToken token;
+		final CountryFilterCore.Result result;  // Null if the pass was cancelled.
+		final long millis;
+		final List<VirtualLooper.Message> partials = new ArrayList<VirtualLooper.Message>();
+		boolean cancelled;
+		VirtualLooper.Message finish;
+
+		/** CONSTRUCTOR */
+		Pass(RequestSlot.Request<Request> request, CancellationToken token, CountryFilterCore.Result result,
+				long millis)
+		{
+			this.request = request;
+			this.token = token;
+			this.result = result;
+			this.millis = millis;
+		}
+	}
+}
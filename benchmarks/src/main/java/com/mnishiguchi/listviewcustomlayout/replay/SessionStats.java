@@ -0,0 +1,68 @@
+package com.mnishiguchi.listviewcustomlayout.replay;
+
+import java.util.Arrays;
+
+/**
+ * What happened during replayed sessions: the time from each keystroke to the first result
+ * published for it or for a later keystroke, and how much filtering was thrown away.
+ */
+final class SessionStats
+{
+	int keys;
+	int requests;  // Submitted to the filter, after the debounce.
+	int droppedRequests;  // Replaced by a newer one before the worker took them.
+	int passes;  // Run by the worker.
+	int wastedPasses;  // Cancelled by a newer request.
+	int stalePublishes;  // Finished, but reached publishResults after a newer request, and dropped there.
+	int published;
+	int partialPublishes;  // The matches so far of streaming passes, shown before the pass finished.
+	private long[] latencies = new long[16];
+	private int latencyCount;
+
+	void addLatency(long millis)
+	{
+		if (latencyCount == latencies.length)
+		{
+			latencies = Arrays.copyOf(latencies, 2 * latencyCount);
+		}
+		latencies[latencyCount++] = millis;
+	}
+
+	/** Adds the counts and latencies of other sessions to these. */
+	void addAll(SessionStats other)
+	{
+		keys += other.keys;
+		requests += other.requests;
+		droppedRequests += other.droppedRequests;
+		passes += other.passes;
+		wastedPasses += other.wastedPasses;
+		stalePublishes += other.stalePublishes;
+		published += other.published;
+		partialPublishes += other.partialPublishes;
+		for (int i = 0; i < other.latencyCount; i++)
+		{
+			addLatency(other.latencies[i]);
+		}
+	}
+
+	/** Returns the latency in milliseconds that the passed-in share of keystrokes are within, by nearest rank. */
+	long percentile(double share)
+	{
+		if (latencyCount == 0)
+		{
+			return 0;
+		}
+		long[] sorted = Arrays.copyOf(latencies, latencyCount);
+		Arrays.sort(sorted);
+		int rank = (int) Math.ceil(share * latencyCount);
+		return sorted[Math.max(0, Math.min(latencyCount, rank) - 1)];
+	}
+
+	@Override
+	public String toString()
+	{
+		return String.format("keys %4d  p50 %5d ms  p99 %5d ms  requests %4d  dropped %4d  passes %4d  wasted %4d  stale %4d  partial %4d",
+				keys, percentile(0.50), percentile(0.99), requests, droppedRequests, passes, wastedPasses, stalePublishes,
+				partialPublishes);
+	}
+}
@@ -0,0 +1,153 @@
+package com.mnishiguchi.listviewcustomlayout.replay;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import com.mnishiguchi.listviewcustomlayout.CountryTable;
+
+/**
+ * A recorded or generated session of typing into the filter box: the text after each keystroke,
+ * and how long after the one before it came. Backspaces are keystrokes that shorten the text.
+ * Immutable once built.
+ */
+final class TypingSession
+{
+	// Timings of generated sessions, in milliseconds, after studies of typing on touch screens.
+	private static final double MEDIAN_GAP = 180;  // Between keys within a word.
+	private static final double GAP_SPREAD = 0.45;  // Sigma of the log-normal gaps.
+	private static final double PAUSE_CHANCE = 0.05;  // A pause to look at the list.
+	private static final long MIN_PAUSE = 600;
+	private static final long MAX_PAUSE = 1800;
+	private static final double TYPO_CHANCE = 0.06;  // A wrong key, noticed a few keys later.
+	private static final long BACKSPACE_GAP = 120;  // Backspaces come quicker than letters.
+
+	private final List<Long> gaps = new ArrayList<Long>();
+	private final List<String> texts = new ArrayList<String>();
+
+	int size()
+	{
+		return texts.size();
+	}
+
+	/** Returns how long after the keystroke before it the keystroke came; the first one's is from the start. */
+	long getGap(int key)
+	{
+		return gaps.get(key);
+	}
+
+	/** Returns the text of the filter box after the keystroke. */
+	String getText(int key)
+	{
+		return texts.get(key);
+	}
+
+	private void add(long gap, String text)
+	{
+		gaps.add(gap);
+		texts.add(text);
+	}
+
+	/**
+	 * Generates a session: the start of a name of the table typed with typos and their backspaces,
+	 * and sometimes a pause, then sometimes cleared again.
+	 */
+	static TypingSession generate(CountryTable table, Random random)
+	{
+		TypingSession session = new TypingSession();
+		String target = table.getName(random.nextInt(table.size() ) ).toLowerCase();
+		int length = Math.min(target.length(), 2 + random.nextInt(10) );
+		StringBuilder text = new StringBuilder();
+		int pendingTypo = -1;  // Where a wrong key went, until it is noticed.
+		while (text.length() < length || pendingTypo >= 0)
+		{
+			if (pendingTypo >= 0 && (text.length() >= length || random.nextInt(3) == 0) )
+			{
+				// Noticed: delete back to the wrong key.
+				while (text.length() > pendingTypo)
+				{
+					text.setLength(text.length() - 1);
+					session.add(BACKSPACE_GAP + random.nextInt(60), text.toString() );
+				}
+				pendingTypo = -1;
+				continue;
+			}
+			char next = target.charAt(text.length() );
+			if (pendingTypo < 0 && random.nextDouble() < TYPO_CHANCE)
+			{
+				pendingTypo = text.length();
+				next = (char) ('a' + random.nextInt(26) );
+			}
+			text.append(next);
+			session.add(gap(random), text.toString() );
+		}
+		if (random.nextInt(4) == 0)
+		{
+			// Clear the box with held-down backspace.
+			while (text.length() > 0)
+			{
+				text.setLength(text.length() - 1);
+				session.add(BACKSPACE_GAP / 2, text.toString() );
+			}
+		}
+		return session;
+	}
+
+	private static long gap(Random random)
+	{
+		if (random.nextDouble() < PAUSE_CHANCE)
+		{
+			return MIN_PAUSE + (long) (random.nextDouble() * (MAX_PAUSE - MIN_PAUSE) );
+		}
+		return Math.round(MEDIAN_GAP * Math.exp(GAP_SPREAD * random.nextGaussian() ) );
+	}
+
+	/**
+	 * Reads recorded sessions: one keystroke per line, as the gap in milliseconds, a tab, and
+	 * the text after it. A blank line ends a session; lines starting with # are skipped.
+	 */
+	static List<TypingSession> read(Reader in) throws IOException
+	{
+		List<TypingSession> sessions = new ArrayList<TypingSession>();
+		BufferedReader reader = new BufferedReader(in);
+		TypingSession session = new TypingSession();
+		String line;
+		while ( (line = reader.readLine() ) != null)
+		{
+			if (line.startsWith("#") )
+			{
+				continue;
+			}
+			if (line.trim().length() == 0)
+			{
+				if (session.size() > 0)
+				{
+					sessions.add(session);
+					session = new TypingSession();
+				}
+				continue;
+			}
+			int tab = line.indexOf('\t');
+			if (tab < 0)
+			{
+				throw new IOException("Expected <gap>\\t<text>: " + line);
+			}
+			try
+			{
+				session.add(Long.parseLong(line.substring(0, tab).trim() ), line.substring(tab + 1) );
+			}
+			catch (NumberFormatException e)
+			{
+				throw new IOException("Bad gap: " + line);
+			}
+		}
+		if (session.size() > 0)
+		{
+			sessions.add(session);
+		}
+		return sessions;
+	}
+}
@@ -0,0 +1,100 @@
+package com.mnishiguchi.listviewcustomlayout.replay;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.concurrent.Executor;
+
+/**
+ * A stand-in for a Handler and its Looper, on a virtual clock, so that a session of typing
+ * replays in the time it takes to compute and always the same way.
+ * Messages run in the order of their due time, and in posting order for the same time,
+ * as a Looper runs them. Time only moves when the next message is taken.
+ * Used from one thread only.
+ */
+final class VirtualLooper implements Executor
+{
+	private final PriorityQueue<Message> queue = new PriorityQueue<Message>();
+	private long now = 0;
+	private long posted = 0;  // Orders messages due at the same time.
+
+	/** Returns the virtual time in milliseconds. */
+	long now()
+	{
+		return now;
+	}
+
+	/** Same as Handler.post(). */
+	public void execute(Runnable runnable)
+	{
+		postDelayed(runnable, 0);
+	}
+
+	void post(Runnable runnable)
+	{
+		postDelayed(runnable, 0);
+	}
+
+	/** Same as Handler.postDelayed(). Returns the message, to be removed with {@link #remove}. */
+	Message postDelayed(Runnable runnable, long delayMillis)
+	{
+		Message message = new Message(now + Math.max(0, delayMillis), posted++, runnable);
+		queue.add(message);
+		return message;
+	}
+
+	/** Same as Handler.removeCallbacks(): removes every waiting message of the runnable. */
+	void removeCallbacks(Runnable runnable)
+	{
+		for (Iterator<Message> i = queue.iterator(); i.hasNext(); )
+		{
+			if (i.next().runnable == runnable)
+			{
+				i.remove();
+			}
+		}
+	}
+
+	/** Removes one waiting message. */
+	void remove(Message message)
+	{
+		queue.remove(message);
+	}
+
+	/** Runs the messages until there are none left, moving the clock to each one's due time. */
+	void runUntilIdle()
+	{
+		Message message;
+		while ( (message = queue.poll() ) != null)
+		{
+			now = Math.max(now, message.when);
+			message.runnable.run();
+		}
+	}
+
+	/**
+	 * A message waiting in the queue.
+	 */
+	static final class Message implements Comparable<Message>
+	{
+		final long when;
+		final long order;
+		final Runnable runnable;
+
+		/** CONSTRUCTOR */
+		Message(long when, long order, Runnable runnable)
+		{
+			this.when = when;
+			this.order = order;
+			this.runnable = runnable;
+		}
+
+		public int compareTo(Message other)
+		{
+			if (when != other.when)
+			{
+				return (when < other.when) ? -1 : 1;
+			}
+			return (order < other.order) ? -1 : (order == other.order) ? 0 : 1;
+		}
+	}
+}
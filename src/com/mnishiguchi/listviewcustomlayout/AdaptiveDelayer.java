@@ -0,0 +1,80 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * Decides how long to hold back a filter request, from how long recent filtering took
+ * and how fast the user is typing.
+ * While filtering is cheap, requests go out at once so the list follows every keystroke.
+ * When filtering is expensive, a request waits a little longer than the usual gap between
+ * keystrokes, so a burst of typing ends up as one filter pass instead of one per key.
+ * Thread-safe: durations are recorded in the worker thread, delays are asked for in the UI thread.
+ */
+public class AdaptiveDelayer
+{
+	/** Filtering faster than this (about one frame) is never delayed. */
+	public static final long CHEAP_FILTER_MILLIS = 16;
+
+	/** The longest delay; beyond this the list feels unresponsive. */
+	public static final long MAX_DELAY_MILLIS = 300;
+
+	/** A gap between keystrokes longer than this ends a typing burst and is not averaged in. */
+	private static final long BURST_GAP_MILLIS = 1000;
+
+	/** Weight of a new sample in the moving averages. */
+	private static final double SMOOTHING = 0.3;
+
+	private double filterMillis;  // Moving average of filtering durations.
+	private double keyGapMillis = BURST_GAP_MILLIS;  // Moving average of gaps between keystrokes.
+	private long lastKeyMillis = -1;
+
+	/**
+	 * Returns the delay for a request made now.
+	 * Also counts the call as a keystroke, to measure the typing cadence.
+	 *
+	 * @param constraint the constraint about to be filtered
+	 * @return the delay in milliseconds, 0 to filter at once
+	 */
+	public long getPostingDelay(CharSequence constraint)
+	{
+		return getPostingDelay(constraint, System.nanoTime() / 1000000);
+	}
+
+	/**
+	 * Same as {@link #getPostingDelay(CharSequence)}, for a request made at the passed-in time.
+	 */
+	public synchronized long getPostingDelay(CharSequence constraint, long nowMillis)
+	{
+		if (lastKeyMillis >= 0)
+		{
+			long gap = nowMillis - lastKeyMillis;
+			if (gap < BURST_GAP_MILLIS)
+			{
+				keyGapMillis += SMOOTHING * (gap - keyGapMillis);
+			}
+		}
+		lastKeyMillis = nowMillis;
+
+		if (filterMillis < CHEAP_FILTER_MILLIS || constraint == null || constraint.length() == 0)
+		{
+			return 0;  // Cheap, or clearing the filter: show the result right away.
+		}
+
+		// Wait for the next keystroke if it is likely to come before filtering would finish,
+		// but not longer than filtering itself takes.
+		long delay = (long) Math.min(keyGapMillis * 1.5, filterMillis);
+		return Math.min(delay, MAX_DELAY_MILLIS);
+	}
+
+	/**
+	 * Records how long a completed filter pass took.
+	 */
+	public synchronized void recordFilterDuration(long millis)
+	{
+		filterMillis += SMOOTHING * (millis - filterMillis);
+	}
+
+	/** Returns the moving average of filtering durations in milliseconds. */
+	public synchronized double getAverageFilterMillis()
+	{
+		return filterMillis;
+	}
+}
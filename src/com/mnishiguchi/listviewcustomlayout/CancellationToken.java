@@ -0,0 +1,20 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * Tells a long-running search that its result is no longer wanted.
+ * Searches poll it every few hundred rows and give up as soon as it says so.
+ */
+public interface CancellationToken
+{
+	/** A token that is never cancelled. */
+	CancellationToken NONE = new CancellationToken()
+	{
+		public boolean isCancelled()
+		{
+			return false;
+		}
+	};
+
+	/** Returns true if the work should stop. Called from the worker thread; must be cheap. */
+	boolean isCancelled();
+}
@@ -0,0 +1,370 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * What the country filter does with a constraint, apart from threads and views: it picks the
+ * search for the constraint and the options, puts the matches in the chosen order, counts them
+ * by facet, and computes the change set from the rows of the last pass.
+ * Plain Java, so the replay harness runs the very passes the activity does.
+ * <p>
+ * The options may be set from any thread and apply from the next pass. Passes run one at a time,
+ * on the filter's worker.
+ */
+public final class CountryFilterCore
+{
+	/** Told the matches found so far while a long pass runs, in the thread of the pass. */
+	public interface PartialListener
+	{
+		/**
+		 * @param rows the matches so far, each batch extending the one before
+		 * @param highlighted the folded substring the rows match, to highlight in them
+		 */
+		void onPartial(RowList rows, CountryTable table, char[] highlighted);
+	}
+
+	private final CountryStore store;
+	private final CountrySearcher searcher;
+	private RowList lastRows;  // The rows of the last pass.
+	private int lastLineage;  // The lineage of the data of the last pass.
+	private String lastConstraint;  // The constraint of the last pass.
+	private volatile CountryStore.Version lastVersion;  // The version of the data of the last pass.
+	private volatile boolean fuzzy = false;  // Typo-tolerant, ranked matching.
+	private volatile int topK = 0;  // How many best matches to compute first; 0 for all, in row order.
+	private String expandedConstraint = null;  // The constraint to compute every match for; guarded by this.
+	private CountryStore.Version expandedVersion = null;  // The version it was expanded on; guarded by this.
+	private volatile boolean streaming = false;  // Report the matches found so far during long passes.
+	private volatile int sortOrder = FieldIndex.ORDER_ROWS;  // The order of the rows, if not by relevance.
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param searcher a searcher of a version of the store, brought up to the current one by each pass
+	 */
+	public CountryFilterCore(CountryStore store, CountrySearcher searcher)
+	{
+		this.store = store;
+		this.searcher = searcher;
+		this.lastRows = searcher.getAllRows();
+		this.lastVersion = searcher.getVersion();
+		this.lastLineage = (lastVersion == null) ? 0 : lastVersion.getLineage();
+	}
+
+	public CountrySearcher getSearcher()
+	{
+		return searcher;
+	}
+
+	/**
+	 * Turns streaming on or off. When on, passes that compute every match of a plain constraint
+	 * report the matches found so far to their listener, in batches, in the order of the result:
+	 * row order, a sort order, or the best matches shown already followed by the rest by relevance.
+	 */
+	public void setStreaming(boolean streaming)
+	{
+		this.streaming = streaming;
+	}
+
+	/**
+	 * Makes plain constraints compute only the best k matches, by relevance, until
+	 * {@link #expand(String)} asks for the rest. 0 turns it off: every match, in row order.
+	 */
+	public void setTopK(int k)
+	{
+		topK = k;
+	}
+
+	/**
+	 * Makes the passes for the constraint compute every match, in the same order as its best ones,
+	 * until a pass is for another constraint or another version of the data.
+	 * Returns false if they do already, so there is nothing to filter again.
+	 */
+	public synchronized boolean expand(String constraint)
+	{
+		if (constraint.equals(expandedConstraint) && expandedVersion == lastVersion)
+		{
+			return false;
+		}
+		expandedConstraint = constraint;
+		expandedVersion = lastVersion;
+		return true;
+	}
+
+	/**
+	 * Returns true if the pass for the constraint over the version is to compute every match.
+	 * Drops the expansion otherwise, so that the best matches come first again, even if
+	 * the constraint it was for is typed again later.
+	 */
+	private synchronized boolean isExpanded(String constraint, CountryStore.Version version)
+	{
+		if (expandedConstraint != null && (!expandedConstraint.equals(constraint) || expandedVersion != version) )
+		{
+			expandedConstraint = null;
+			expandedVersion = null;
+		}
+		return expandedConstraint != null;
+	}
+
+	/**
+	 * Puts every match in one of the {@link FieldIndex} ORDER_* orders, through the precomputed
+	 * orders of the searcher. ORDER_ROWS turns it off: the best matches first, or row order.
+	 */
+	public void setSortOrder(int order)
+	{
+		sortOrder = order;
+	}
+
+	/**
+	 * Turns typo-tolerant matching on or off. When on, plain constraints also match rows
+	 * with words a small edit distance away, best match first.
+	 */
+	public void setFuzzy(boolean fuzzy)
+	{
+		this.fuzzy = fuzzy;
+	}
+
+	public boolean isFuzzy()
+	{
+		return fuzzy;
+	}
+
+	/**
+	 * Filters the current version of the store with the constraint. Returns null if the token
+	 * was cancelled; the rows of the last pass are kept for the next change set then.
+	 *
+	 * @param constraint the constraint, or null or empty for every row
+	 * @param listener told the matches found so far if streaming is on, or null
+	 */
+	public Result filter(String constraint, CancellationToken token, final PartialListener listener)
+	{
+		// Take the current version of the countries, without locking; it doesn't change during the pass.
+		final CountryStore.Version version = store.current();
+		searcher.update(version, token);
+		boolean expanded = isExpanded(constraint, version);
+
+		RowList rows;
+		final char[] highlighted;  // The folded substring the rows match, to highlight in them.
+		int order = sortOrder;
+		boolean sorted = (order != FieldIndex.ORDER_ROWS);  // Every match is needed before it is sorted.
+
+		// Ensure that constraint exists and its length is greater than zero.
+		if (constraint != null && constraint.length() > 0 && !CountryQuery.isPlain(constraint) )
+		{
+			// A query with field scopes or operators, e.g. continent:Asia -code:JPN
+			rows = CountryQuery.parse(constraint).evaluate(searcher, token);
+			highlighted = SearchText.EMPTY;
+		}
+		else if (constraint != null && constraint.length() > 0)
+		{
+			// Fold the constraint once; every row is matched against its precomputed folded fields.
+			char[] folded = SearchText.fold(constraint);
+			highlighted = folded;
+
+			// Filter the original list with the constraint (user-entered filter constraint string).
+			// The searcher refines its previous result when the constraint extends the previous one.
+			if (fuzzy)
+			{
+				rows = searcher.searchFuzzy(folded, token);
+			}
+			else if (sorted)
+			{
+				final int partialOrder = order;
+				final CancellationToken partialToken = token;
+				rows = searcher.search(folded, token, (streaming && listener != null) ? new ProgressListener()
+				{
+					public void onProgress(RowBitmap partial, int checkedRows)
+					{
+						RowList sortedPartial = searcher.sort(partial, partialOrder, partialToken);
+						if (sortedPartial != null)
+						{
+							listener.onPartial(sortedPartial, version.getTable(), highlighted);
+						}
+					}
+				} : null);
+			}
+			else if (topK > 0 && !expanded)
+			{
+				rows = searcher.searchTop(folded, topK, token);  // The best ones only, for now.
+			}
+			else if (topK > 0)
+			{
+				// Scrolled past the best ones, which stay on top while the rest stream in below them.
+				RankedRows top = (lastRows instanceof RankedRows && !( (RankedRows) lastRows).isComplete()
+						&& lastLineage == version.getLineage() && constraint.equals(lastConstraint) )
+						? (RankedRows) lastRows : null;
+				rows = searcher.searchRanked(folded, token, (streaming && listener != null)
+						? new RankedProgress(version.getTable(), folded, top, listener) : null);
+			}
+			else
+			{
+				rows = searcher.search(folded, token, (streaming && listener != null) ? new ProgressListener()
+				{
+					public void onProgress(RowBitmap partial, int checkedRows)
+					{
+						listener.onPartial(partial, version.getTable(), highlighted);
+					}
+				} : null);
+			}
+		}
+		else  // When the constraint is null, the original data must be restored.
+		{
+			rows = searcher.getAllRows();
+			highlighted = SearchText.EMPTY;
+		}
+
+		// Put the matches in the chosen order by walking its precomputed rows; nothing is compared.
+		if (sorted && rows != null && !token.isCancelled() )
+		{
+			rows = searcher.sort(rows, order, token);
+		}
+
+		if (rows == null || token.isCancelled() )
+		{
+			return null;  // Superseded.
+		}
+
+		// Count the matches by continent and region while they are at hand, rather than in the UI thread.
+		FacetCounts facets = FacetCounts.count(version.getTable(), rows,
+				!(rows instanceof RankedRows) || ( (RankedRows) rows).isComplete() );
+
+		// Between two results in row order, compute the change set here,
+		// so that the UI thread only has to swap the rows in.
+		// Rows of another lineage are numbered differently, so there is no change set to compute then.
+		Object values;
+		if (lastRows instanceof RowBitmap && rows instanceof RowBitmap && lastLineage == version.getLineage() )
+		{
+			values = ListDiff.compute( (RowBitmap) lastRows, (RowBitmap) rows);
+		}
+		else
+		{
+			values = rows;  // Ranked; there is no position to keep.
+		}
+		lastRows = rows;
+		lastLineage = version.getLineage();
+		lastVersion = version;
+		lastConstraint = constraint;
+		return new Result(version.getTable(), rows, values, facets, highlighted);
+	}
+
+	/**
+	 * Hands the listener the matches found so far by a ranked search, in the order of its result:
+	 * the best matches shown already, if any, then the others by {@link Relevance} tier and row order.
+	 * Each row's tier is computed once, as the row is reported.
+	 */
+	private static final class RankedProgress implements ProgressListener
+	{
+		private final CountryTable table;
+		private final char[] folded;
+		private final RankedRows top;
+		private final RowBitmap topRows;
+		private final PartialListener listener;
+		private final IntList[] tiers = new IntList[Relevance.TIER_COUNT];
+		private int checked = 0;  // The rows before this are in the tiers already.
+		private int count;
+
+		/**
+		 * CONSTRUCTOR
+		 *
+		 * @param top the best matches, which the complete result starts with, or null
+		 */
+		RankedProgress(CountryTable table, char[] folded, RankedRows top, PartialListener listener)
+		{
+			this.table = table;
+			this.folded = folded;
+			this.top = top;
+			this.listener = listener;
+			int[] rows = new int[(top == null) ? 0 : top.getCount()];
+			for (int position = 0; position < rows.length; position++)
+			{
+				rows[position] = top.getRow(position);
+			}
+			this.topRows = RowBitmap.of(rows, table.size() );
+			this.count = rows.length;
+			for (int t = 0; t < tiers.length; t++)
+			{
+				tiers[t] = new IntList();
+			}
+		}
+
+		public void onProgress(RowBitmap partial, int checkedRows)
+		{
+			// The partial result is final before checkedRows, so only the rows since the last one are new.
+			for (int row = partial.nextSetBit(checked); row >= 0 && row < checkedRows; row = partial.nextSetBit(row + 1) )
+			{
+				if (!topRows.contains(row) )
+				{
+					tiers[Relevance.tier(table, row, folded)].add(row);
+					count++;
+				}
+			}
+			checked = checkedRows;
+
+			int[] rows = new int[count];
+			int p = 0;
+			for (; top != null && p < top.getCount(); p++)
+			{
+				rows[p] = top.getRow(p);
+			}
+			for (IntList tier : tiers)
+			{
+				for (int i = 0; i < tier.size(); i++)
+				{
+					rows[p++] = tier.get(i);
+				}
+			}
+			listener.onPartial(new RankedRows(rows, false), table, folded);
+		}
+	}
+
+	/**
+	 * The outcome of a pass. Immutable.
+	 */
+	public static final class Result
+	{
+		private final CountryTable table;
+		private final RowList rows;
+		private final Object values;
+		private final FacetCounts facets;
+		private final char[] highlighted;
+
+		/** CONSTRUCTOR */
+		Result(CountryTable table, RowList rows, Object values, FacetCounts facets, char[] highlighted)
+		{
+			this.table = table;
+			this.rows = rows;
+			this.values = values;
+			this.facets = facets;
+			this.highlighted = highlighted;
+		}
+
+		/** Returns the table the rows are rows of. */
+		public CountryTable getTable()
+		{
+			return table;
+		}
+
+		/** Returns the matching rows, in display order. */
+		public RowList getRows()
+		{
+			return rows;
+		}
+
+		/**
+		 * Returns what to publish: a {@link ListDiff} from the rows of the last pass,
+		 * or the rows themselves when there is no position to keep.
+		 */
+		public Object getValues()
+		{
+			return values;
+		}
+
+		public FacetCounts getFacets()
+		{
+			return facets;
+		}
+
+		/** Returns the folded substring the rows match, to highlight in them; empty for none. Must not be modified. */
+		public char[] getHighlighted()
+		{
+			return highlighted;
+		}
+	}
+}
@@ -0,0 +1,553 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A filter constraint with field scopes and boolean operators, e.g.
+ * <pre>continent:Asia region:"East Asia" -code:JPN</pre>
+ * <ul>
+ * <li><code>continent:</code> and <code>region:</code> match the whole value;
+ *     <code>code:</code> and <code>name:</code> match a prefix.</li>
+ * <li>A term without a field matches a substring of any field, like a plain constraint.</li>
+ * <li>Terms next to each other must all match; <code>OR</code> joins alternatives;
+ *     <code>-</code> or <code>NOT</code> negates; parentheses group.</li>
+ * <li><code>AND</code> and <code>OR</code> are operators only between two terms, and <code>NOT</code>
+ *     only before a term that follows something; anywhere else they are words,
+ *     e.g. <code>AND</code> alone is Andorra's code.</li>
+ * </ul>
+ * A query is compiled once into a plan that evaluates the cheap, selective field lookups first,
+ * so substring terms only check the rows those left over.
+ * Parsing is lenient: it never fails, unbalanced quotes and parentheses are simply closed.
+ */
+public final class CountryQuery
+{
+	// Token types.
+	private static final int WORD = 0;
+	private static final int PHRASE = 1;
+	private static final int FIELD = 2;
+	private static final int OPEN = 3;
+	private static final int CLOSE = 4;
+	private static final int NOT = 5;
+	private static final int OR = 6;
+	private static final int AND = 7;
+
+	/** The scopes a term can have. */
+	private static final String[] FIELDS = { "code", "name", "continent", "region" };
+
+	// Costs that order the terms of an AND: lower runs first.
+	private static final int COST_EXACT = 1;
+	private static final int COST_PREFIX = 2;
+	private static final int COST_SUBSTRING = 3;
+	private static final int COST_NOT = 4;
+
+	private final Node root;
+
+	/** CONSTRUCTOR */
+	private CountryQuery(Node root)
+	{
+		this.root = root;
+	}
+
+	/**
+	 * Returns true if the constraint uses no query syntax at all.
+	 * Such a constraint is matched as one substring, spaces included, as it always was.
+	 * Parentheses without any other syntax don't count, so names like "Congo (Kinshasa)" stay plain.
+	 */
+	public static boolean isPlain(CharSequence constraint)
+	{
+		List<Token> tokens = tokenize(constraint.toString() );
+		for (Token token : tokens)
+		{
+			if (token.type != WORD && token.type != OPEN && token.type != CLOSE)
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Parses and compiles a constraint.
+	 */
+	public static CountryQuery parse(CharSequence constraint)
+	{
+		Parser parser = new Parser(tokenize(constraint.toString() ) );
+		Node root = parser.parseOr();
+		while (parser.hasMore() )  // Stray closing parentheses; carry on after them.
+		{
+			parser.next();
+			root = new And(Arrays.asList(root, parser.parseOr() ) );
+		}
+		return new CountryQuery(root);
+	}
+
+	/**
+	 * Returns the rows matching the query, or null if the token was cancelled.
+	 */
+	public RowBitmap evaluate(CountrySearcher searcher, CancellationToken token)
+	{
+		return root.evaluate(searcher, searcher.getAllRows(), token);
+	}
+
+	@Override
+	public String toString()
+	{
+		return root.toString();
+	}
+
+	/* Tokenizer */
+
+	private static List<Token> tokenize(String text)
+	{
+		List<Token> tokens = new ArrayList<Token>();
+		int i = 0;
+		int length = text.length();
+		while (i < length)
+		{
+			char c = text.charAt(i);
+			if (Character.isWhitespace(c) )
+			{
+				i++;
+			}
+			else if (c == '(' || c == ')')
+			{
+				tokens.add(new Token(c == '(' ? OPEN : CLOSE, null) );
+				i++;
+			}
+			else if (c == '"')
+			{
+				int end = text.indexOf('"', i + 1);
+				if (end < 0)
+				{
+					end = length;  // Unbalanced; the phrase runs to the end.
+				}
+				tokens.add(new Token(PHRASE, text.substring(i + 1, end) ) );
+				i = end + 1;
+			}
+			else if (c == '-' && i + 1 < length && !Character.isWhitespace(text.charAt(i + 1) )
+					&& (tokens.isEmpty() || i == 0 || Character.isWhitespace(text.charAt(i - 1) )
+							|| text.charAt(i - 1) == '(') )
+			{
+				tokens.add(new Token(NOT, null) );
+				i++;
+			}
+			else
+			{
+				int start = i;
+				while (i < length && !Character.isWhitespace(text.charAt(i) )
+						&& text.charAt(i) != '(' && text.charAt(i) != ')' && text.charAt(i) != '"')
+				{
+					i++;
+				}
+				addWord(tokens, text.substring(start, i) );
+			}
+		}
+		resolveOperators(tokens);
+		return tokens;
+	}
+
+	/**
+	 * Turns the operator words that have no operands to work on back into words.
+	 * AND and OR need a term on both sides; NOT needs one after it, and something before it,
+	 * as a query starting with a negation starts with "-". A "-" is always an operator.
+	 */
+	private static void resolveOperators(List<Token> tokens)
+	{
+		for (int i = 0; i < tokens.size(); i++)
+		{
+			Token token = tokens.get(i);
+			if (token.text == null || (token.type != AND && token.type != OR && token.type != NOT) )
+			{
+				continue;
+			}
+			boolean before = i > 0 && (token.type == NOT || endsTerm(tokens.get(i - 1).type) );
+			boolean after = i + 1 < tokens.size() && startsTerm(tokens.get(i + 1).type);
+			if (!before || !after)
+			{
+				tokens.set(i, new Token(WORD, token.text) );
+			}
+		}
+	}
+
+	private static boolean endsTerm(int type)
+	{
+		return type == WORD || type == PHRASE || type == FIELD || type == CLOSE;
+	}
+
+	private static boolean startsTerm(int type)
+	{
+		return type == WORD || type == PHRASE || type == FIELD || type == OPEN || type == NOT;
+	}
+
+	/**
+	 * Adds a word, which may be an operator or start with a field scope.
+	 * Operators keep their word, in case they turn out to be a word after all.
+	 */
+	private static void addWord(List<Token> tokens, String word)
+	{
+		if (word.equals("OR") || word.equals("|") )
+		{
+			tokens.add(new Token(OR, word) );
+			return;
+		}
+		if (word.equals("AND") )
+		{
+			tokens.add(new Token(AND, word) );
+			return;
+		}
+		if (word.equals("NOT") )
+		{
+			tokens.add(new Token(NOT, word) );
+			return;
+		}
+
+		int colon = word.indexOf(':');
+		if (colon > 0)
+		{
+			String field = word.substring(0, colon);
+			for (String known : FIELDS)
+			{
+				if (known.equalsIgnoreCase(field) )
+				{
+					tokens.add(new Token(FIELD, known) );
+					if (colon + 1 < word.length() )
+					{
+						tokens.add(new Token(WORD, word.substring(colon + 1) ) );
+					}
+					return;
+				}
+			}
+		}
+		tokens.add(new Token(WORD, word) );
+	}
+
+	private static final class Token
+	{
+		final int type;
+		final String text;
+
+		/** CONSTRUCTOR */
+		Token(int type, String text)
+		{
+			this.type = type;
+			this.text = text;
+		}
+	}
+
+	/* Parser: recursive descent over
+	 *   or   := and ("OR" and)*
+	 *   and  := unary (["AND"] unary)*
+	 *   unary := ("-" | "NOT") unary | "(" or ")" | [field ":"] (word | phrase)
+	 */
+
+	private static final class Parser
+	{
+		private final List<Token> tokens;
+		private int position;
+
+		/** CONSTRUCTOR */
+		Parser(List<Token> tokens)
+		{
+			this.tokens = tokens;
+		}
+
+		boolean hasMore()
+		{
+			return position < tokens.size();
+		}
+
+		Token next()
+		{
+			return tokens.get(position++);
+		}
+
+		private int peek()
+		{
+			return hasMore() ? tokens.get(position).type : -1;
+		}
+
+		Node parseOr()
+		{
+			List<Node> alternatives = new ArrayList<Node>();
+			alternatives.add(parseAnd() );
+			while (peek() == OR)
+			{
+				next();
+				alternatives.add(parseAnd() );
+			}
+			return (alternatives.size() == 1) ? alternatives.get(0) : new Or(alternatives);
+		}
+
+		private Node parseAnd()
+		{
+			List<Node> terms = new ArrayList<Node>();
+			while (hasMore() && peek() != OR && peek() != CLOSE)
+			{
+				if (peek() == AND)
+				{
+					next();
+					continue;
+				}
+				terms.add(parseUnary() );
+			}
+			if (terms.isEmpty() )
+			{
+				return new All();
+			}
+			return (terms.size() == 1) ? terms.get(0) : new And(terms);
+		}
+
+		private Node parseUnary()
+		{
+			Token token = next();
+			switch (token.type)
+			{
+				case NOT:
+					return hasMore() && peek() != OR && peek() != CLOSE ? new Not(parseUnary() ) : new All();
+				case OPEN:
+					Node inner = parseOr();
+					if (peek() == CLOSE)
+					{
+						next();
+					}
+					return inner;
+				case FIELD:
+					if (peek() == WORD || peek() == PHRASE)
+					{
+						return new FieldTerm(token.text, SearchText.fold(next().text) );
+					}
+					return new All();  // A scope with nothing after it.
+				default:
+					return new TextTerm(SearchText.fold(token.text) );
+			}
+		}
+	}
+
+	/* Plan nodes */
+
+	/**
+	 * A node of the compiled query.
+	 */
+	private abstract static class Node
+	{
+		/**
+		 * Returns the candidates that match, or null if cancelled.
+		 */
+		abstract RowBitmap evaluate(CountrySearcher searcher, RowBitmap candidates, CancellationToken token);
+
+		/** Returns how expensive the node is relative to others; cheaper ones run first. */
+		abstract int cost();
+	}
+
+	/** Matches every row: an empty group, or a scope or negation with nothing after it. */
+	private static final class All extends Node
+	{
+		RowBitmap evaluate(CountrySearcher searcher, RowBitmap candidates, CancellationToken token)
+		{
+			return candidates;
+		}
+
+		int cost()
+		{
+			return 0;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "*";
+		}
+	}
+
+	/** A substring of any field. */
+	private static final class TextTerm extends Node
+	{
+		private final char[] folded;
+
+		/** CONSTRUCTOR */
+		TextTerm(char[] folded)
+		{
+			this.folded = folded;
+		}
+
+		RowBitmap evaluate(CountrySearcher searcher, RowBitmap candidates, CancellationToken token)
+		{
+			return (folded.length == 0) ? candidates : searcher.search(folded, candidates, token);
+		}
+
+		int cost()
+		{
+			return COST_SUBSTRING;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "\"" + new String(folded) + "\"";
+		}
+	}
+
+	/** A value of one field: exact for continent and region, prefix for code and name. */
+	private static final class FieldTerm extends Node
+	{
+		private final String field;
+		private final char[] folded;
+
+		/** CONSTRUCTOR */
+		FieldTerm(String field, char[] folded)
+		{
+			this.field = field;
+			this.folded = folded;
+		}
+
+		RowBitmap evaluate(CountrySearcher searcher, RowBitmap candidates, CancellationToken token)
+		{
+			FieldIndex index = searcher.getFieldIndex();
+			RowBitmap rows;
+			if (field.equals("continent") )
+			{
+				rows = index.continentRows(folded);
+			}
+			else if (field.equals("region") )
+			{
+				rows = index.regionRows(folded);
+			}
+			else if (field.equals("code") )
+			{
+				rows = index.codePrefixRows(folded);
+			}
+			else
+			{
+				rows = index.namePrefixRows(folded);
+			}
+			return rows.and(candidates);
+		}
+
+		int cost()
+		{
+			return (field.equals("continent") || field.equals("region") ) ? COST_EXACT : COST_PREFIX;
+		}
+
+		@Override
+		public String toString()
+		{
+			return field + ":\"" + new String(folded) + "\"";
+		}
+	}
+
+	/** Rows that the child does not match. */
+	private static final class Not extends Node
+	{
+		private final Node child;
+
+		/** CONSTRUCTOR */
+		Not(Node child)
+		{
+			this.child = child;
+		}
+
+		RowBitmap evaluate(CountrySearcher searcher, RowBitmap candidates, CancellationToken token)
+		{
+			RowBitmap matched = child.evaluate(searcher, candidates, token);
+			return (matched == null) ? null : candidates.andNot(matched);
+		}
+
+		int cost()
+		{
+			return COST_NOT;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "-" + child;
+		}
+	}
+
+	/** Rows that every child matches. Children run cheapest first, each on what the previous left. */
+	private static final class And extends Node
+	{
+		private final List<Node> children;
+
+		/** CONSTRUCTOR */
+		And(List<Node> children)
+		{
+			this.children = new ArrayList<Node>(children);
+			Collections.sort(this.children, new Comparator<Node>()
+			{
+				public int compare(Node a, Node b)
+				{
+					return a.cost() - b.cost();
+				}
+			} );
+		}
+
+		RowBitmap evaluate(CountrySearcher searcher, RowBitmap candidates, CancellationToken token)
+		{
+			RowBitmap rows = candidates;
+			for (int i = 0; i < children.size() && rows != null && !rows.isEmpty(); i++)
+			{
+				rows = children.get(i).evaluate(searcher, rows, token);
+			}
+			return rows;
+		}
+
+		int cost()
+		{
+			return children.get(0).cost();
+		}
+
+		@Override
+		public String toString()
+		{
+			return "AND" + children;
+		}
+	}
+
+	/** Rows that any child matches. */
+	private static final class Or extends Node
+	{
+		private final List<Node> children;
+
+		/** CONSTRUCTOR */
+		Or(List<Node> children)
+		{
+			this.children = children;
+		}
+
+		RowBitmap evaluate(CountrySearcher searcher, RowBitmap candidates, CancellationToken token)
+		{
+			RowBitmap rows = null;
+			for (Node child : children)
+			{
+				RowBitmap matched = child.evaluate(searcher, candidates, token);
+				if (matched == null)
+				{
+					return null;
+				}
+				rows = (rows == null) ? matched : rows.or(matched);
+			}
+			return rows;
+		}
+
+		int cost()
+		{
+			int cost = 0;
+			for (Node child : children)
+			{
+				cost = Math.max(cost, child.cost() );
+			}
+			return cost;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "OR" + children;
+		}
+	}
+}
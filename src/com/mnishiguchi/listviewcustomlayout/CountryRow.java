@@ -0,0 +1,56 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * A light view of one row of a {@link CountryTable}.
+ * Holds only the table and the row number; the fields are read from the table when asked for.
+ */
+public final class CountryRow
+{
+	private final CountryTable table;
+	private final int row;
+
+	/** CONSTRUCTOR */
+	CountryRow(CountryTable table, int row)
+	{
+		this.table = table;
+		this.row = row;
+	}
+
+	/** Returns the row number in the table. */
+	public int getRow()
+	{
+		return row;
+	}
+
+	public String getCode()
+	{
+		return table.getCode(row);
+	}
+
+	public String getName()
+	{
+		return table.getName(row);
+	}
+
+	public String getContinent()
+	{
+		return table.getContinent(row);
+	}
+
+	public String getRegion()
+	{
+		return table.getRegion(row);
+	}
+
+	/** Copies the row into a standalone Country. */
+	public Country toCountry()
+	{
+		return new Country(getCode(), getName(), getContinent(), getRegion() );
+	}
+
+	@Override
+	public String toString()
+	{
+		return  getCode() + " " + getName() + " " + getContinent() + " " + getRegion();
+	}
+}
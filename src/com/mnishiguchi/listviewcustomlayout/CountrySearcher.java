@@ -0,0 +1,1035 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Finds the countries whose fields contain a constraint. Plain Java, so it can run off Android too.
+ * Caches the results of its searches: a constraint seen before (deleting back to "ja")
+ * is answered without checking any row, and a constraint that contains a cached one
+ * (typing "jap" after "ja") only has to check the cached result.
+ * When an executor is set, checking a large number of rows is split into shards
+ * that are checked in parallel and merged back in row order.
+ * Not thread-safe; use it from the filter's worker thread only. The exception is
+ * {@link #searchBatch}, which several threads may call at once.
+ */
+public final class CountrySearcher
+{
+	/** How many words (of 64 rows) are checked between two polls of the cancellation token. */
+	private static final int CANCEL_CHECK_WORDS = 16;
+
+	/** Below this many rows to check, the rows are checked sequentially even if an executor is set. */
+	public static final int DEFAULT_PARALLEL_THRESHOLD = 50000;
+
+	/** How many shards per thread; more shards balance uneven shards better. */
+	private static final int SHARDS_PER_THREAD = 4;
+
+	/** Words checked at most between two progress reports. The first reports come sooner. */
+	private static final int MAX_PROGRESS_WORDS = 1024;
+
+	private CountryTable table;
+	private TrigramIndex index;
+	private FieldIndex fieldIndex;  // Built on first use.
+	private FuzzyIndex fuzzyIndex;  // Built on first use.
+	private RowBitmap allRows;  // The live rows.
+	private CountryStore.Version version;  // The version of the data, if it came from a store.
+	private final ResultCache cache;
+
+	// Parallel checking; no executor means sequential.
+	private ExecutorService executor;
+	private int parallelism = 1;
+	private int parallelThreshold = DEFAULT_PARALLEL_THRESHOLD;
+
+	private FilterMetrics metrics;  // Null for none.
+
+	/** CONSTRUCTOR: indexes the table once. */
+	public CountrySearcher(CountryTable table)
+	{
+		this(table, ResultCache.DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * CONSTRUCTOR: indexes the table once.
+	 *
+	 * @param cacheBytes the memory budget of the result cache
+	 */
+	public CountrySearcher(CountryTable table, long cacheBytes)
+	{
+		this(table, null, cacheBytes);
+	}
+
+	/**
+	 * CONSTRUCTOR: uses an index built before, e.g. the one stored in a {@link CountrySnapshot}.
+	 *
+	 * @param index the index of the table, or null to build it
+	 * @param cacheBytes the memory budget of the result cache
+	 */
+	public CountrySearcher(CountryTable table, TrigramIndex index, long cacheBytes)
+	{
+		this.table = table;
+		this.cache = new ResultCache(cacheBytes);
+		rebuild(index, null);
+	}
+
+	/**
+	 * CONSTRUCTOR: searches a version of a store, and can be brought up to later ones with
+	 * {@link #update}.
+	 *
+	 * @param cacheBytes the memory budget of the result cache
+	 */
+	public CountrySearcher(CountryStore.Version version, long cacheBytes)
+	{
+		this.table = version.getTable();
+		this.version = version;
+		this.cache = new ResultCache(cacheBytes);
+		rebuild(version.getIndex(), version.getLive() );
+	}
+
+	/**
+	 * Creates an executor suitable for {@link #setExecutor}, with one daemon thread per processor.
+	 * It can be shared by several searchers.
+	 */
+	public static ExecutorService newScanExecutor()
+	{
+		final int threads = Runtime.getRuntime().availableProcessors();
+		return Executors.newFixedThreadPool(threads, new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(Runnable runnable)
+			{
+				Thread thread = new Thread(runnable, "CountryScan-" + count.incrementAndGet() );
+				thread.setDaemon(true);
+				return thread;
+			}
+		} );
+	}
+
+	/**
+	 * Lets the searcher check large numbers of rows in parallel.
+	 *
+	 * @param executor the executor to run the shards on, or null to always check sequentially
+	 * @param parallelism how many threads of the executor to use
+	 * @param threshold how many rows there have to be to check before going parallel
+	 */
+	public void setExecutor(ExecutorService executor, int parallelism, int threshold)
+	{
+		this.executor = executor;
+		this.parallelism = Math.max(parallelism, 1);
+		this.parallelThreshold = threshold;
+	}
+
+	/**
+	 * Records the cache lookups and the rows checked into the metrics, or nothing if null.
+	 */
+	public void setMetrics(FilterMetrics metrics)
+	{
+		this.metrics = metrics;
+	}
+
+	/**
+	 * Replaces the data: re-indexes it and drops every cached result.
+	 */
+	public void setTable(CountryTable table)
+	{
+		this.table = table;
+		this.version = null;
+		rebuild(null, null);
+	}
+
+	/**
+	 * Brings the data up to a version of a store. If the version only appended rows and marked
+	 * rows dead since the data of the searcher, i.e. it is a later version of the same lineage,
+	 * the cached results are patched instead of dropped: the dead rows are taken out of them,
+	 * and only the appended rows are checked, and added to the field and fuzzy indexes.
+	 * The trigram index comes with the version.
+	 * Otherwise it is the same as {@link #setTable(CountryTable)}, with the version's index.
+	 * Returns false if the token was cancelled; the data is still brought up to the version then,
+	 * but the cached results are dropped.
+	 */
+	public boolean update(CountryStore.Version newVersion, CancellationToken token)
+	{
+		if (newVersion == version)
+		{
+			return true;
+		}
+		CountryStore.Version oldVersion = version;
+		CountryTable oldTable = table;
+		this.table = newVersion.getTable();
+		this.version = newVersion;
+		if (oldVersion == null || oldVersion.getLineage() != newVersion.getLineage()
+				|| oldVersion.getNumber() > newVersion.getNumber() )
+		{
+			rebuild(newVersion.getIndex(), newVersion.getLive() );
+			return true;
+		}
+
+		// The rows of the old data are the same rows in the new data; only the appended ones need checking.
+		final RowBitmap live = newVersion.getLive();
+		final RowBitmap appended = live.andNot(RowBitmap.full(oldTable.size() ).withSize(live.size() ) );
+		final CancellationToken updateToken = token;
+		final boolean[] cancelled = new boolean[1];
+		this.index = newVersion.getIndex();
+		// The appended rows go into the other indexes, if they are built, rather than sorting every row again.
+		this.fieldIndex = (fieldIndex == null) ? null : fieldIndex.extend(table, live);
+		this.fuzzyIndex = (fuzzyIndex == null) ? null : fuzzyIndex.extend(table, live);
+		this.allRows = live;
+		cache.updateAll(new ResultCache.Updater()
+		{
+			public RowBitmap update(char[] folded, RowBitmap result)
+			{
+				RowBitmap added = appended.isEmpty() ? appended : verify(appended, folded, updateToken, null);
+				if (added == null)
+				{
+					cancelled[0] = true;
+					return null;
+				}
+				return result.withSize(live.size() ).and(live).or(added);
+			}
+		} );
+		if (cancelled[0])
+		{
+			cache.invalidate();
+			return false;
+		}
+		return true;
+	}
+
+	/** Returns the version of the store the data came from, or null if it was set as a table. */
+	public CountryStore.Version getVersion()
+	{
+		return version;
+	}
+
+	public CountryTable getTable()
+	{
+		return table;
+	}
+
+	/**
+	 * Returns the per-field indexes used by field-scoped queries, building them on first use.
+	 */
+	public FieldIndex getFieldIndex()
+	{
+		if (fieldIndex == null)
+		{
+			fieldIndex = new FieldIndex(table, allRows);
+		}
+		return fieldIndex;
+	}
+
+	/** Returns the result cache, e.g. to read its hit and miss counts. */
+	public ResultCache getCache()
+	{
+		return cache;
+	}
+
+	/** Returns the number of rows, dead rows included. */
+	public int getRowCount()
+	{
+		return allRows.size();
+	}
+
+	/** Returns every live row, which is the result for an empty constraint. */
+	public RowBitmap getAllRows()
+	{
+		return allRows;
+	}
+
+	/** Returns a light view of the row at the passed-in row number. */
+	public CountryRow getRow(int row)
+	{
+		return table.getRow(row);
+	}
+
+	/**
+	 * Returns the rows with a field that contains the folded constraint.
+	 *
+	 * @param folded a non-empty constraint folded by {@link SearchText#fold(CharSequence)}
+	 */
+	public RowBitmap search(char[] folded)
+	{
+		return search(folded, CancellationToken.NONE);
+	}
+
+	/**
+	 * Same as {@link #search(char[])}, but gives up when the token is cancelled.
+	 * Returns null if the search was cancelled; nothing is remembered in that case.
+	 */
+	public RowBitmap search(char[] folded, CancellationToken token)
+	{
+		return search(folded, token, null);
+	}
+
+	/**
+	 * Same as {@link #search(char[], CancellationToken)}, but reports the matches found so far
+	 * to the listener while the rows are being checked. Nothing is reported when the result
+	 * is known without checking any row.
+	 *
+	 * @param listener the listener, or null
+	 */
+	public RowBitmap search(char[] folded, CancellationToken token, ProgressListener listener)
+	{
+		RowBitmap result = cache.get(folded);
+		recordCacheLookup(result != null);
+		if (result != null)
+		{
+			return result;  // Seen before; nothing to check.
+		}
+
+		// Narrow down the candidates with the smallest cached result the new one must be a subset of.
+		RowBitmap base = cache.findNarrowestSuperset(folded);
+		if (base == null)
+		{
+			int[] candidates = index.candidates(folded);  // Null when the constraint is too short for the index.
+			base = (candidates == null) ? allRows : RowBitmap.of(candidates, allRows.size() ).and(allRows);
+		}
+		result = verify(base, folded, token, listener);
+		if (result != null)
+		{
+			cache.put(folded, result);
+			recordScan(base.cardinality(), result.cardinality() );
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the typo-tolerant index, building it on first use.
+	 */
+	public FuzzyIndex getFuzzyIndex()
+	{
+		if (fuzzyIndex == null)
+		{
+			fuzzyIndex = new FuzzyIndex(table, allRows);
+		}
+		return fuzzyIndex;
+	}
+
+	/**
+	 * Typo-tolerant search: the rows where the folded constraint is a substring of a field,
+	 * followed by the rows whose words are within a small edit distance of its words,
+	 * best match first. Returns null if the token was cancelled.
+	 * Constraints too short for typos to be told apart are matched exactly, in row order.
+	 */
+	public RowList searchFuzzy(char[] folded, CancellationToken token)
+	{
+		RowBitmap exact = search(folded, token);
+		if (exact == null || folded.length < FuzzyIndex.MIN_FUZZY_LENGTH)
+		{
+			return exact;
+		}
+		RankedRows ranked = getFuzzyIndex().search(folded, exact);
+		return token.isCancelled() ? null : ranked;
+	}
+
+	/**
+	 * Returns the best k rows for the folded constraint, by {@link Relevance} tier and then row order,
+	 * or null if the token was cancelled. The rows with an exact code or a name prefix are looked up
+	 * in the field indexes first; the other matches are then scanned in row order into a bounded heap,
+	 * which stops as soon as no later row could make it into the top k.
+	 * The scan uses the cache as {@link #search} does: a cached result is scanned as it is, and
+	 * otherwise only the narrowest cached superset, or the candidates of the index, are checked.
+	 * A scan that checks every candidate has found every match, so it caches them.
+	 * The result is marked incomplete if there may be more matches than k.
+	 */
+	public RankedRows searchTop(char[] folded, int k, CancellationToken token)
+	{
+		FieldIndex fields = getFieldIndex();
+		BoundedHeap heap = new BoundedHeap(k);
+
+		// The two best tiers come straight from the field indexes.
+		RowBitmap exactCode = fields.codeRows(folded);
+		RowBitmap namePrefix = fields.namePrefixRows(folded).andNot(exactCode);
+		offerAll(heap, exactCode, Relevance.EXACT_CODE);
+		offerAll(heap, namePrefix, Relevance.NAME_PREFIX);
+		RowBitmap known = exactCode.or(namePrefix);
+
+		// Scan the rest. Rows come in row order, so a later row only gets in with a better tier
+		// than the worst one in a full heap; once that is WORD_PREFIX, nothing later can.
+		// Not scanning at all is stopping too: the rows not looked at may match.
+		boolean stopped = heap.isFull() && heap.worstTier() <= Relevance.WORD_PREFIX;
+		if (!stopped)
+		{
+			RowBitmap base = cache.get(folded);  // Already verified if cached.
+			recordCacheLookup(base != null);
+			long[] matches = null;  // The matches found, to cache if every candidate gets checked.
+			if (base == null)
+			{
+				base = cache.findNarrowestSuperset(folded);
+				if (base == null)
+				{
+					int[] candidates = index.candidates(folded);
+					base = (candidates == null) ? allRows : RowBitmap.of(candidates, allRows.size() ).and(allRows);
+				}
+				matches = new long[base.wordCount()];
+			}
+			int checked = 0;
+			int scanned = 0;
+			for (int row = base.nextSetBit(0); row >= 0; row = base.nextSetBit(row + 1) )
+			{
+				if (++checked % (CANCEL_CHECK_WORDS * 64) == 0 && token.isCancelled() )
+				{
+					return null;
+				}
+				if (known.contains(row) )
+				{
+					continue;
+				}
+				scanned++;
+				int tier = Relevance.tier(table, row, folded);
+				if (tier == Relevance.NONE)
+				{
+					continue;  // A candidate that doesn't really match.
+				}
+				if (matches != null)
+				{
+					matches[row >>> 6] |= 1L << row;
+				}
+				heap.offer(tier, row);
+				if (heap.isFull() && heap.worstTier() <= Relevance.WORD_PREFIX)
+				{
+					stopped = true;
+					break;
+				}
+			}
+			recordScan(scanned, heap.getOffered() - known.cardinality() );
+			if (matches != null && !stopped)
+			{
+				cache.put(folded, RowBitmap.wrap(matches, base.size() ).or(known) );
+			}
+		}
+		return new RankedRows(heap.toSortedRows(), !stopped && heap.getOffered() <= k);
+	}
+
+	/**
+	 * Returns every row for the folded constraint, by {@link Relevance} tier and then row order,
+	 * or null if the token was cancelled. The order agrees with {@link #searchTop}, so its top k
+	 * can be replaced by this without moving them.
+	 */
+	public RankedRows searchRanked(char[] folded, CancellationToken token)
+	{
+		return searchRanked(folded, token, null);
+	}
+
+	/**
+	 * Same as {@link #searchRanked(char[], CancellationToken)}, but reports the matches found so far,
+	 * in row order, to the listener while the rows are being checked,
+	 * as {@link #search(char[], CancellationToken, ProgressListener)} does.
+	 *
+	 * @param listener the listener, or null
+	 */
+	public RankedRows searchRanked(char[] folded, CancellationToken token, ProgressListener listener)
+	{
+		RowBitmap matches = search(folded, token, listener);
+		if (matches == null)
+		{
+			return null;
+		}
+		return rank(matches, folded);
+	}
+
+	/**
+	 * Returns the rows by {@link Relevance} tier for the folded constraint and then row order,
+	 * the order of {@link #searchRanked}.
+	 */
+	public RankedRows rank(RowBitmap matches, char[] folded)
+	{
+		// A bucket sort over the tiers; each bucket stays in row order.
+		IntList[] tiers = new IntList[Relevance.TIER_COUNT];
+		for (int t = 0; t < tiers.length; t++)
+		{
+			tiers[t] = new IntList();
+		}
+		for (int row = matches.nextSetBit(0); row >= 0; row = matches.nextSetBit(row + 1) )
+		{
+			tiers[Relevance.tier(table, row, folded)].add(row);
+		}
+		int[] rows = new int[matches.cardinality()];
+		int p = 0;
+		for (IntList tier : tiers)
+		{
+			for (int i = 0; i < tier.size(); i++)
+			{
+				rows[p++] = tier.get(i);
+			}
+		}
+		return new RankedRows(rows);
+	}
+
+	/**
+	 * Returns the rows in one of the {@link FieldIndex} ORDER_* orders, or null if the token
+	 * was cancelled. Walks the precomputed order of the live rows and keeps the passed-in ones,
+	 * so nothing is compared. Row order returns the rows as a bitmap.
+	 */
+	public RowList sort(RowList rows, int order, CancellationToken token)
+	{
+		RowBitmap members = (rows instanceof RowBitmap) ? (RowBitmap) rows : RowBitmap.of(rowsOf(rows), allRows.size() );
+		int[] permutation = getFieldIndex().getOrder(order);
+		if (permutation == null)
+		{
+			return members;
+		}
+		int[] sorted = new int[members.cardinality()];
+		int n = 0;
+		for (int p = 0; p < permutation.length && n < sorted.length; p++)
+		{
+			if (p % (CANCEL_CHECK_WORDS * 64) == 0 && token.isCancelled() )
+			{
+				return null;
+			}
+			if (members.contains(permutation[p]) )
+			{
+				sorted[n++] = permutation[p];
+			}
+		}
+		return new RankedRows(sorted);
+	}
+
+	private static int[] rowsOf(RowList rows)
+	{
+		int[] result = new int[rows.getCount()];
+		for (int position = 0; position < result.length; position++)
+		{
+			result[position] = rows.getRow(position);
+		}
+		return result;
+	}
+
+	private void recordCacheLookup(boolean hit)
+	{
+		if (metrics != null)
+		{
+			metrics.recordCacheLookup(hit);
+		}
+	}
+
+	private void recordScan(int scanned, int matched)
+	{
+		if (metrics != null)
+		{
+			metrics.recordScan(scanned, matched);
+		}
+	}
+
+	private static void offerAll(BoundedHeap heap, RowBitmap rows, int tier)
+	{
+		for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1) )
+		{
+			heap.offer(tier, row);
+		}
+	}
+
+	/**
+	 * Searches a batch of constraints at once, e.g. the autocomplete requests a server
+	 * has waiting, for much less than searching them one by one:
+	 * <ul>
+	 * <li>Equal constraints are searched once.</li>
+	 * <li>Constraints are sorted, so a constraint comes right after the ones that are its prefixes.
+	 *     It only checks the rows of its longest prefix in the batch that matched, narrowed
+	 *     down further by the index.</li>
+	 * <li>Constraints too short for the index and without a prefix in the batch, which have
+	 *     to check every row, check them in one pass together.</li>
+	 * </ul>
+	 * Returns the rows for each constraint, in the order of the constraints, or null if the
+	 * token was cancelled. Result objects may be shared between equal constraints.
+	 * <p>
+	 * It neither reads nor fills the result cache, and builds nothing lazily, so several threads
+	 * may search batches at once, as long as the data isn't replaced meanwhile.
+	 */
+	public RowBitmap[] searchBatch(CharSequence[] constraints, CancellationToken token)
+	{
+		// Sort the constraints, equal ones next to each other.
+		BatchEntry[] entries = new BatchEntry[constraints.length];
+		for (int i = 0; i < entries.length; i++)
+		{
+			entries[i] = new BatchEntry(i, SearchText.fold(constraints[i]) );
+		}
+		Arrays.sort(entries, new Comparator<BatchEntry>()
+		{
+			public int compare(BatchEntry a, BatchEntry b)
+			{
+				for (int i = 0, n = Math.min(a.folded.length, b.folded.length); i < n; i++)
+				{
+					if (a.folded[i] != b.folded[i])
+					{
+						return a.folded[i] - b.folded[i];
+					}
+				}
+				return a.folded.length - b.folded.length;
+			}
+		} );
+
+		// Link each constraint to its longest prefix in the batch, through a stack of the prefixes of the last one.
+		// Those without a prefix that the index can't narrow down are checked in one pass together.
+		List<BatchEntry> stack = new ArrayList<BatchEntry>();
+		List<BatchEntry> scanned = new ArrayList<BatchEntry>();
+		for (int e = 0; e < entries.length; e++)
+		{
+			BatchEntry entry = entries[e];
+			if (e > 0 && Arrays.equals(entry.folded, entries[e - 1].folded) )
+			{
+				entry.same = entries[e - 1];
+				continue;
+			}
+			while (!stack.isEmpty() && !startsWith(entry.folded, stack.get(stack.size() - 1).folded) )
+			{
+				stack.remove(stack.size() - 1);
+			}
+			entry.prefix = stack.isEmpty() ? null : stack.get(stack.size() - 1);
+			stack.add(entry);
+			if (entry.folded.length == 0)
+			{
+				entry.rows = allRows;
+			}
+			else
+			{
+				entry.candidates = index.candidates(entry.folded);  // Null when it is too short for the index.
+				if (entry.prefix == null && entry.candidates == null)
+				{
+					scanned.add(entry);
+				}
+			}
+		}
+		if (!scanTogether(scanned, token) )
+		{
+			return null;
+		}
+
+		// The rest in sorted order, so a prefix is always done before the constraints it starts.
+		RowBitmap[] results = new RowBitmap[constraints.length];
+		for (BatchEntry entry : entries)
+		{
+			if (entry.same != null)
+			{
+				entry.rows = entry.same.rows;
+			}
+			else if (entry.rows == null)
+			{
+				RowBitmap base = (entry.prefix == null) ? allRows : entry.prefix.rows;
+				if (entry.candidates != null)
+				{
+					base = RowBitmap.of(entry.candidates, allRows.size() ).and(base);
+				}
+				entry.rows = verify(base, entry.folded, token, null);
+				if (entry.rows == null)
+				{
+					return null;
+				}
+				recordScan(base.cardinality(), entry.rows.cardinality() );
+			}
+			results[entry.index] = entry.rows;
+		}
+		return results;
+	}
+
+	/**
+	 * Checks every live row against each of the constraints in one pass, so the rows are
+	 * read once for all of them. Returns false if the token was cancelled.
+	 */
+	private boolean scanTogether(List<BatchEntry> entries, CancellationToken token)
+	{
+		if (entries.isEmpty() )
+		{
+			return true;
+		}
+		int n = entries.size();
+		CountryTable.Matcher[] matchers = new CountryTable.Matcher[n];
+		long[][] words = new long[n][allRows.wordCount()];
+		for (int i = 0; i < n; i++)
+		{
+			matchers[i] = table.matcher(entries.get(i).folded);
+		}
+		for (int w = 0; w < allRows.wordCount(); w++)
+		{
+			if (w % CANCEL_CHECK_WORDS == 0 && token.isCancelled() )
+			{
+				return false;
+			}
+			for (long bits = allRows.word(w); bits != 0; bits &= bits - 1)
+			{
+				int bit = Long.numberOfTrailingZeros(bits);
+				int row = (w << 6) + bit;
+				for (int i = 0; i < n; i++)
+				{
+					if (matchers[i].matches(row) )
+					{
+						words[i][w] |= 1L << bit;
+					}
+				}
+			}
+		}
+		for (int i = 0; i < n; i++)
+		{
+			entries.get(i).rows = RowBitmap.wrap(words[i], allRows.size() );
+			recordScan(allRows.cardinality(), entries.get(i).rows.cardinality() );
+		}
+		return true;
+	}
+
+	private static boolean startsWith(char[] text, char[] prefix)
+	{
+		if (prefix.length > text.length)
+		{
+			return false;
+		}
+		for (int i = 0; i < prefix.length; i++)
+		{
+			if (text[i] != prefix[i])
+			{
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Returns the rows among the candidates with a field that contains the folded constraint,
+	 * or null if the token was cancelled. Used to evaluate a term of a query
+	 * on the rows the other terms left.
+	 */
+	public RowBitmap search(char[] folded, RowBitmap candidates, CancellationToken token)
+	{
+		if (candidates == allRows)
+		{
+			return search(folded, token);
+		}
+
+		RowBitmap cached = cache.get(folded);
+		recordCacheLookup(cached != null);
+		if (cached != null)
+		{
+			return cached.and(candidates);
+		}
+
+		// Check only the candidates that also have every trigram of the constraint.
+		int[] indexed = index.candidates(folded);
+		RowBitmap base = (indexed == null) ? candidates : RowBitmap.of(indexed, allRows.size() ).and(candidates);
+		RowBitmap result = verify(base, folded, token, null);
+		if (result != null)
+		{
+			recordScan(base.cardinality(), result.cardinality() );
+		}
+		return result;
+	}
+
+	/**
+	 * Rebuilds everything for the table.
+	 *
+	 * @param index the index of the table, or null to build it
+	 * @param live the live rows, or null if every row is
+	 */
+	private void rebuild(TrigramIndex index, RowBitmap live)
+	{
+		if (index != null && index.getRowCount() != table.size() )
+		{
+			throw new IllegalArgumentException("The index is for " + index.getRowCount() + " rows, not " + table.size() );
+		}
+		this.index = (index == null) ? TrigramIndex.build(table) : index;
+		fieldIndex = null;
+		fuzzyIndex = null;
+		allRows = (live == null) ? RowBitmap.full(table.size() ) : live;
+		cache.invalidate();
+	}
+
+	/**
+	 * Returns the candidates that match, or null if cancelled.
+	 * Reports progress to the listener if there is one.
+	 */
+	private RowBitmap verify(RowBitmap candidates, char[] folded, CancellationToken token,
+			ProgressListener listener)
+	{
+		CountryTable.Matcher matcher = table.matcher(folded);
+		long[] words = new long[candidates.wordCount()];
+		if (executor == null || parallelism == 1 || candidates.cardinality() < parallelThreshold)
+		{
+			if (listener == null)
+			{
+				if (!verify(candidates, 0, words.length, matcher, token, words) )
+				{
+					return null;
+				}
+				return RowBitmap.wrap(words, candidates.size() );
+			}
+			
+			// Check the words in chunks that start small, so that the first matches are shown soon,
+			// and grow, so that later reports are batched.
+			int reported = 0;
+			int found = 0;
+			for (int from = 0, chunk = CANCEL_CHECK_WORDS; from < words.length;
+					from += chunk, chunk = Math.min(chunk * 2, MAX_PROGRESS_WORDS) )
+			{
+				int to = Math.min(from + chunk, words.length);
+				if (!verify(candidates, from, to, matcher, token, words) )
+				{
+					return null;
+				}
+				found += countRows(words, from, to);
+				if (found > reported && to < words.length)
+				{
+					reportProgress(listener, words, to, candidates.size() );
+					reported = found;
+				}
+			}
+			return RowBitmap.wrap(words, candidates.size() );
+		}
+
+		// Check the shards in parallel. Each shard owns a range of words, so they can all write
+		// into the same result without any merging.
+		int shards = parallelism * SHARDS_PER_THREAD;
+		int shardWords = (words.length + shards - 1) / shards;
+		List<Future<Boolean>> futures = new ArrayList<Future<Boolean>>(shards);
+		for (int from = 0; from < words.length; from += shardWords)
+		{
+			Shard shard = new Shard(candidates, from, Math.min(from + shardWords, words.length), matcher, token, words);
+			try
+			{
+				futures.add(executor.submit(shard) );
+			}
+			catch (RejectedExecutionException e)
+			{
+				// The executor is shut down, e.g. as its owner goes away; check the shard here.
+				FutureTask<Boolean> task = new FutureTask<Boolean>(shard);
+				task.run();
+				futures.add(task);
+			}
+		}
+
+		try
+		{
+			// The shards are waited for in row order, so once one is done, every row before it is checked.
+			int reported = 0;
+			int found = 0;
+			for (int s = 0; s < futures.size(); s++)
+			{
+				if (!futures.get(s).get() )
+				{
+					return null;  // Cancelled; the other shards notice the token too.
+				}
+				int from = s * shardWords;
+				int to = Math.min(from + shardWords, words.length);
+				found += countRows(words, from, to);
+				if (listener != null && found > reported && to < words.length)
+				{
+					reportProgress(listener, words, to, candidates.size() );
+					reported = found;
+				}
+			}
+		}
+		catch (InterruptedException e)
+		{
+			Thread.currentThread().interrupt();
+			return null;
+		}
+		catch (ExecutionException e)
+		{
+			throw new RuntimeException(e.getCause() );
+		}
+		finally
+		{
+			for (Future<Boolean> future : futures)
+			{
+				future.cancel(false);  // No-op for finished shards.
+			}
+		}
+		return RowBitmap.wrap(words, candidates.size() );
+	}
+
+	/** Returns the number of rows set in words [from, to). */
+	private static int countRows(long[] words, int from, int to)
+	{
+		int count = 0;
+		for (int w = from; w < to; w++)
+		{
+			count += Long.bitCount(words[w]);
+		}
+		return count;
+	}
+
+	/**
+	 * Hands the listener a copy of the words before checkedWords, which the checking
+	 * goes on to fill in.
+	 */
+	private static void reportProgress(ProgressListener listener, long[] words, int checkedWords, int size)
+	{
+		long[] partial = new long[words.length];
+		System.arraycopy(words, 0, partial, 0, checkedWords);
+		listener.onProgress(RowBitmap.wrap(partial, size), Math.min(checkedWords << 6, size) );
+	}
+
+	/**
+	 * Checks the candidates in the words [from, to) and sets the matching rows in result.
+	 * Returns false if cancelled.
+	 */
+	private static boolean verify(RowBitmap candidates, int from, int to, CountryTable.Matcher matcher,
+			CancellationToken token, long[] result)
+	{
+		for (int w = from; w < to; w++)
+		{
+			if ( (w - from) % CANCEL_CHECK_WORDS == 0 && token.isCancelled() )
+			{
+				return false;
+			}
+			long bits = candidates.word(w);
+			long matches = 0;
+			while (bits != 0)
+			{
+				int bit = Long.numberOfTrailingZeros(bits);
+				if (matcher.matches( (w << 6) + bit) )
+				{
+					matches |= 1L << bit;
+				}
+				bits &= bits - 1;
+			}
+			result[w] = matches;
+		}
+		return true;
+	}
+
+	/**
+	 * A constraint of a batch and what is known about it so far.
+	 */
+	private static final class BatchEntry
+	{
+		final int index;  // In the batch.
+		final char[] folded;
+		BatchEntry same;  // An equal constraint earlier in sorted order, whose rows these are.
+		BatchEntry prefix;  // The longest other constraint of the batch that this one starts with.
+		int[] candidates;  // From the index.
+		RowBitmap rows;
+
+		/** CONSTRUCTOR */
+		BatchEntry(int index, char[] folded)
+		{
+			this.index = index;
+			this.folded = folded;
+		}
+	}
+
+	/**
+	 * Keeps the best k (tier, row) pairs seen, in a max-heap whose root is the worst one.
+	 */
+	private static final class BoundedHeap
+	{
+		private final long[] heap;  // tier << 32 | row, so a smaller key is better.
+		private int size;
+		private int offered;
+
+		/** CONSTRUCTOR */
+		BoundedHeap(int capacity)
+		{
+			heap = new long[Math.max(capacity, 1)];
+		}
+
+		void offer(int tier, int row)
+		{
+			offered++;
+			long key = ( (long) tier << 32) | row;
+			if (size < heap.length)
+			{
+				// Sift up.
+				int i = size++;
+				while (i > 0 && heap[(i - 1) / 2] < key)
+				{
+					heap[i] = heap[(i - 1) / 2];
+					i = (i - 1) / 2;
+				}
+				heap[i] = key;
+			}
+			else if (key < heap[0])
+			{
+				// Replace the worst one and sift down.
+				int i = 0;
+				while (true)
+				{
+					int child = 2 * i + 1;
+					if (child >= size)
+					{
+						break;
+					}
+					if (child + 1 < size && heap[child + 1] > heap[child])
+					{
+						child++;
+					}
+					if (heap[child] <= key)
+					{
+						break;
+					}
+					heap[i] = heap[child];
+					i = child;
+				}
+				heap[i] = key;
+			}
+		}
+
+		boolean isFull()
+		{
+			return size == heap.length;
+		}
+
+		/** Returns the tier of the worst pair kept. */
+		int worstTier()
+		{
+			return (int) (heap[0] >>> 32);
+		}
+
+		/** Returns how many pairs were offered, kept or not. */
+		int getOffered()
+		{
+			return offered;
+		}
+
+		/** Returns the rows kept, best first. */
+		int[] toSortedRows()
+		{
+			long[] keys = Arrays.copyOf(heap, size);
+			Arrays.sort(keys);
+			int[] rows = new int[size];
+			for (int i = 0; i < size; i++)
+			{
+				rows[i] = (int) keys[i];
+			}
+			return rows;
+		}
+	}
+
+	/**
+	 * Checks one shard of the candidates on an executor thread.
+	 */
+	private static class Shard implements Callable<Boolean>
+	{
+		private final RowBitmap candidates;
+		private final int from;
+		private final int to;
+		private final CountryTable.Matcher matcher;
+		private final CancellationToken token;
+		private final long[] result;
+
+		/** CONSTRUCTOR */
+		Shard(RowBitmap candidates, int from, int to, CountryTable.Matcher matcher, CancellationToken token,
+				long[] result)
+		{
+			this.candidates = candidates;
+			this.from = from;
+			this.to = to;
+			this.matcher = matcher;
+			this.token = token;
+			this.result = result;
+		}
+
+		public Boolean call()
+		{
+			return verify(candidates, from, to, matcher, token, result);
+		}
+	}
+}
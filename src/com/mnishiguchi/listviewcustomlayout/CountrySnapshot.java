@@ -0,0 +1,540 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A country table and its trigram index, stored in one binary file that loads without parsing.
+ * Building a table folds every field and indexes every trigram, which is the slowest part
+ * of opening a big catalog. A snapshot stores the result of that work as it is in memory,
+ * so loading it is a handful of bulk copies out of a memory-mapped file.
+ * <p>
+ * The layout, little-endian, with all the counts in the header:
+ * <pre>
+ * header       magic, version, rows, code chars, name chars, continents, regions, trigrams, postings
+ * continents   string table: int offsets[continents + 1], then the chars
+ * regions      string table: int offsets[regions + 1], then the chars
+ * codes        char[code chars], then the same folded
+ * names        char[name chars], then the same folded
+ * rows         fixed-width records: int code end, int name end, short continent, short region
+ * index        long keys[trigrams], int offsets[trigrams + 1], int postings[postings]
+ * </pre>
+ * Immutable, so it can be shared between threads.
+ */
+public final class CountrySnapshot
+{
+	private static final int MAGIC = 0x43545259;  // "CTRY"
+	private static final int VERSION = 1;
+	private static final int HEADER_INTS = 9;
+	private static final int ROW_BYTES = 4 + 4 + 2 + 2;
+
+	private final CountryTable table;
+	private final TrigramIndex index;
+
+	/** CONSTRUCTOR */
+	private CountrySnapshot(CountryTable table, TrigramIndex index)
+	{
+		this.table = table;
+		this.index = index;
+	}
+
+	public CountryTable getTable()
+	{
+		return table;
+	}
+
+	public TrigramIndex getIndex()
+	{
+		return index;
+	}
+
+	/**
+	 * Writes the table and its index to the file, replacing it in one step:
+	 * the data goes to a temporary file first, which is then renamed.
+	 *
+	 * @param index the index of the table, or null to build it
+	 */
+	public static void write(CountryTable table, TrigramIndex index, File file) throws IOException
+	{
+		if (!table.hasNames() )
+		{
+			throw new IllegalArgumentException("The table has no names to write");
+		}
+		if (index == null || index.getTailRowCount() > 0)
+		{
+			index = TrigramIndex.build(table);  // Stored in one piece.
+		}
+		int rows = table.size();
+		String[] continents = table.getContinents();
+		String[] regions = table.getRegions();
+		int codeChars = table.getCodeCharCount();  // The columns may be longer than their text.
+		int nameChars = table.getNameCharCount();
+		long[] keys = index.getKeys();
+		int[] postings = index.getPostings();
+
+		long bytes = 4L * HEADER_INTS
+				+ stringTableBytes(continents) + stringTableBytes(regions)
+				+ 2L * 2 * (codeChars + nameChars)
+				+ (long) ROW_BYTES * rows
+				+ 8L * keys.length + 4L * (keys.length + 1) + 4L * postings.length;
+		if (bytes > Integer.MAX_VALUE)
+		{
+			throw new IOException("The table is too big for a snapshot: " + bytes + " bytes");
+		}
+
+		ByteBuffer buffer = ByteBuffer.allocate( (int) bytes).order(ByteOrder.LITTLE_ENDIAN);
+		buffer.putInt(MAGIC).putInt(VERSION).putInt(rows).putInt(codeChars).putInt(nameChars)
+				.putInt(continents.length).putInt(regions.length).putInt(keys.length).putInt(postings.length);
+		putStringTable(buffer, continents);
+		putStringTable(buffer, regions);
+		buffer.asCharBuffer().put(table.getCodeChars(), 0, codeChars);
+		buffer.position(buffer.position() + 2 * codeChars);
+		buffer.asCharBuffer().put(table.getFoldedCodeChars(), 0, codeChars);
+		buffer.position(buffer.position() + 2 * codeChars);
+		buffer.asCharBuffer().put(table.getNameChars(), 0, nameChars);
+		buffer.position(buffer.position() + 2 * nameChars);
+		buffer.asCharBuffer().put(table.getFoldedNameChars(), 0, nameChars);
+		buffer.position(buffer.position() + 2 * nameChars);
+		for (int row = 0; row < rows; row++)
+		{
+			buffer.putInt(table.getCodeStart(row) + table.getCodeLength(row) );
+			buffer.putInt(table.getNameStart(row) + table.getNameLength(row) );
+			buffer.putShort( (short) table.getContinentCode(row) );
+			buffer.putShort( (short) table.getRegionCode(row) );
+		}
+		buffer.asLongBuffer().put(keys);
+		buffer.position(buffer.position() + 8 * keys.length);
+		buffer.asIntBuffer().put(index.getOffsets() );
+		buffer.position(buffer.position() + 4 * (keys.length + 1) );
+		buffer.asIntBuffer().put(postings);
+		buffer.position(buffer.position() + 4 * postings.length);
+		buffer.flip();
+
+		File temp = new File(file.getPath() + ".tmp");
+		RandomAccessFile out = new RandomAccessFile(temp, "rw");
+		try
+		{
+			out.setLength(0);
+			FileChannel channel = out.getChannel();
+			while (buffer.hasRemaining() )
+			{
+				channel.write(buffer);
+			}
+			channel.force(true);
+		}
+		finally
+		{
+			out.close();
+		}
+		if (!temp.renameTo(file) )
+		{
+			temp.delete();
+			throw new IOException("Couldn't rename " + temp + " to " + file);
+		}
+	}
+
+	/**
+	 * Loads a snapshot written by {@link #write}. The file is memory-mapped and its sections
+	 * are copied out in bulk; no field is parsed, folded or indexed, and no row object is made.
+	 *
+	 * @throws IOException if the file can't be read or is not a valid snapshot
+	 */
+	public static CountrySnapshot load(File file) throws IOException
+	{
+		return load(file, true);
+	}
+
+	/**
+	 * Same as {@link #load(File)}, optionally without the names, which are most of the text:
+	 * the table is then for searching only, and its rows are shown out of the file with
+	 * {@link #openRows(File, CountryStore)}.
+	 *
+	 * @param names false to leave the names in the file; see {@link CountryTable#hasNames()}
+	 */
+	public static CountrySnapshot load(File file, boolean names) throws IOException
+	{
+		MappedByteBuffer mapped = map(file);
+		ByteBuffer buffer = mapped.order(ByteOrder.LITTLE_ENDIAN);
+		try
+		{
+			Layout layout = new Layout(buffer, file);
+			int rows = layout.rows;
+			int codeLength = layout.codeLength;
+			int nameLength = layout.nameLength;
+			int continentCount = layout.continents.length;
+			int regionCount = layout.regions.length;
+			int gramCount = layout.gramCount;
+			int postingCount = layout.postingCount;
+			String[] continents = layout.continents;
+			String[] regions = layout.regions;
+
+			char[] codes = getChars(buffer, codeLength);
+			char[] foldedCodes = getChars(buffer, codeLength);
+			char[] nameChars = null;
+			if (names)
+			{
+				nameChars = getChars(buffer, nameLength);
+			}
+			else
+			{
+				buffer.position(layout.names + 2 * nameLength);  // Within the buffer; the layout checked the sections.
+			}
+			char[] foldedNames = getChars(buffer, nameLength);
+
+			int[] codeOffsets = new int[rows + 1];
+			int[] nameOffsets = new int[rows + 1];
+			short[] continentCodes = new short[rows];
+			short[] regionCodes = new short[rows];
+			for (int row = 0; row < rows; row++)
+			{
+				codeOffsets[row + 1] = buffer.getInt();
+				nameOffsets[row + 1] = buffer.getInt();
+				continentCodes[row] = buffer.getShort();
+				regionCodes[row] = buffer.getShort();
+				if (codeOffsets[row + 1] < codeOffsets[row] || codeOffsets[row + 1] > codeLength
+						|| nameOffsets[row + 1] < nameOffsets[row] || nameOffsets[row + 1] > nameLength
+						|| continentCodes[row] < 0 || continentCodes[row] >= continentCount
+						|| regionCodes[row] < 0 || regionCodes[row] >= regionCount)
+				{
+					throw new IOException("Corrupt row " + row + ": " + file);
+				}
+			}
+
+			long[] keys = getLongs(buffer, gramCount);
+			int[] offsets = getInts(buffer, gramCount + 1);
+			int[] postings = getInts(buffer, postingCount);
+			checkIndex(keys, offsets, postings, rows);
+
+			CountryTable table = new CountryTable(codes, foldedCodes, codeOffsets, nameChars, foldedNames, nameOffsets,
+					continentCodes, regionCodes, continents, regions);
+			return new CountrySnapshot(table, new TrigramIndex(keys, offsets, postings, rows) );
+		}
+		catch (BufferUnderflowException e)
+		{
+			throw new IOException("Truncated snapshot: " + file);
+		}
+	}
+
+	/**
+	 * Opens the rows of a snapshot for paging: only the header and the dictionaries are read now.
+	 * Each page is read out of the memory-mapped file when it is asked for, row by row wherever
+	 * its rows are in the file, so the heap used doesn't depend on the number of rows. Thread-safe.
+	 *
+	 * @throws IOException if the file can't be read or is not a valid snapshot
+	 */
+	public static RowPager.Source openRows(File file) throws IOException
+	{
+		return new FileRows(file);
+	}
+
+	/**
+	 * Opens the rows of a store loaded from a snapshot without names, for paging: the rows of the
+	 * snapshot are read out of the file, as with {@link #openRows(File)}, and the rows appended since
+	 * out of the current version of the store, which has their names. Such a store is not compacted,
+	 * so its rows keep the numbers they have in the file. Thread-safe.
+	 *
+	 * @throws IOException if the file can't be read or is not a valid snapshot
+	 */
+	public static RowPager.Source openRows(File file, final CountryStore store) throws IOException
+	{
+		final FileRows snapshotRows = new FileRows(file);
+		final int fileRows = snapshotRows.layout.rows;
+		return new RowPager.Source()
+		{
+			public CountryTable load(int[] rows) throws IOException
+			{
+				IntList inFile = new IntList();
+				for (int row : rows)
+				{
+					if (row < fileRows)
+					{
+						inFile.add(row);
+					}
+				}
+				if (inFile.size() == rows.length)
+				{
+					return snapshotRows.load(rows);
+				}
+				CountryTable fromFile = snapshotRows.load(inFile.toArray() );
+				CountryTable table = store.current().getTable();
+				CountryTable.Builder builder = new CountryTable.Builder();
+				int f = 0;
+				for (int row : rows)
+				{
+					if (row < fileRows)
+					{
+						builder.add(fromFile.getCode(f), fromFile.getName(f), fromFile.getContinent(f), fromFile.getRegion(f) );
+						f++;
+					}
+					else
+					{
+						builder.add(table.getCode(row), table.getName(row), table.getContinent(row), table.getRegion(row) );
+					}
+				}
+				return builder.build();
+			}
+		};
+	}
+
+	/**
+	 * The rows of a snapshot file, read a page at a time.
+	 */
+	private static final class FileRows implements RowPager.Source
+	{
+		private final File file;
+		private final ByteBuffer mapped;
+		private final Layout layout;
+
+		/** CONSTRUCTOR: reads the header and the dictionaries. */
+		FileRows(File file) throws IOException
+		{
+			this.file = file;
+			this.mapped = map(file).order(ByteOrder.LITTLE_ENDIAN);
+			try
+			{
+				this.layout = new Layout(mapped, file);
+			}
+			catch (BufferUnderflowException e)
+			{
+				throw new IOException("Truncated snapshot: " + file);
+			}
+		}
+
+		public CountryTable load(int[] rows) throws IOException
+		{
+			// Absolute reads only, on a buffer of our own, so that pages can be loaded concurrently.
+			ByteBuffer buffer = mapped.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+			CountryTable.Builder builder = new CountryTable.Builder();
+			for (int row : rows)
+			{
+				if (row < 0 || row >= layout.rows)
+				{
+					throw new IOException("No row " + row + ": " + file);
+				}
+				// A row's fields start where the ones of the row before end.
+				int record = layout.rowRecords + ROW_BYTES * row;
+				int codeStart = (row == 0) ? 0 : buffer.getInt(record - ROW_BYTES);
+				int nameStart = (row == 0) ? 0 : buffer.getInt(record - ROW_BYTES + 4);
+				int codeEnd = buffer.getInt(record);
+				int nameEnd = buffer.getInt(record + 4);
+				int continent = buffer.getShort(record + 8);
+				int region = buffer.getShort(record + 10);
+				if (codeStart < 0 || codeEnd < codeStart || codeEnd > layout.codeLength
+						|| nameStart < 0 || nameEnd < nameStart || nameEnd > layout.nameLength
+						|| continent < 0 || continent >= layout.continents.length
+						|| region < 0 || region >= layout.regions.length)
+				{
+					throw new IOException("Corrupt row " + row + ": " + file);
+				}
+				builder.add(getString(buffer, layout.codes, codeStart, codeEnd),
+						getString(buffer, layout.names, nameStart, nameEnd),
+						layout.continents[continent], layout.regions[region]);
+			}
+			return builder.build();
+		}
+	}
+
+	private static MappedByteBuffer map(File file) throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			if (in.length() > Integer.MAX_VALUE)
+			{
+				throw new IOException("Too big for a snapshot: " + file);
+			}
+			// The mapping stays valid after the file is closed.
+			return in.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, in.length() );
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	/** Reads the chars [start, end) of the text section at the passed-in position. */
+	private static String getString(ByteBuffer buffer, int section, int start, int end)
+	{
+		char[] chars = new char[end - start];
+		for (int i = 0; i < chars.length; i++)
+		{
+			chars[i] = buffer.getChar(section + 2 * (start + i) );
+		}
+		return new String(chars);
+	}
+
+	/** Checks that the index can't point out of its arrays or out of the table. */
+	private static void checkIndex(long[] keys, int[] offsets, int[] postings, int rows) throws IOException
+	{
+		if (offsets[0] != 0 || offsets[keys.length] != postings.length)
+		{
+			throw new IOException("Corrupt index");
+		}
+		for (int i = 0; i < keys.length; i++)
+		{
+			if (offsets[i + 1] < offsets[i] || (i > 0 && keys[i] <= keys[i - 1]) )
+			{
+				throw new IOException("Corrupt index");
+			}
+		}
+		for (int posting : postings)
+		{
+			if (posting < 0 || posting >= rows)
+			{
+				throw new IOException("Corrupt index");
+			}
+		}
+	}
+
+	/**
+	 * The counts and dictionaries of a snapshot, and where its sections start.
+	 */
+	private static final class Layout
+	{
+		final int rows;
+		final int codeLength;
+		final int nameLength;
+		final int gramCount;
+		final int postingCount;
+		final String[] continents;
+		final String[] regions;
+		final int codes;  // Positions of the sections.
+		final int names;
+		final int rowRecords;
+
+		/**
+		 * CONSTRUCTOR: reads the header and the dictionaries, and leaves the buffer at the codes.
+		 */
+		Layout(ByteBuffer buffer, File file) throws IOException
+		{
+			if (buffer.getInt() != MAGIC)
+			{
+				throw new IOException("Not a country snapshot: " + file);
+			}
+			int version = buffer.getInt();
+			if (version != VERSION)
+			{
+				throw new IOException("Unsupported snapshot version " + version + ": " + file);
+			}
+			rows = count(buffer);
+			codeLength = count(buffer);
+			nameLength = count(buffer);
+			int continentCount = count(buffer);
+			int regionCount = count(buffer);
+			gramCount = count(buffer);
+			postingCount = count(buffer);
+			continents = getStringTable(buffer, continentCount);
+			regions = getStringTable(buffer, regionCount);
+
+			long end = buffer.position() + 2L * 2 * (codeLength + nameLength) + (long) ROW_BYTES * rows;
+			if (end > buffer.limit() )
+			{
+				throw new IOException("Truncated snapshot: " + file);
+			}
+			codes = buffer.position();
+			names = codes + 2 * 2 * codeLength;
+			rowRecords = names + 2 * 2 * nameLength;
+		}
+	}
+
+	private static long stringTableBytes(String[] values)
+	{
+		long chars = 0;
+		for (String value : values)
+		{
+			chars += value.length();
+		}
+		return 4L * (values.length + 1) + 2L * chars;
+	}
+
+	private static void putStringTable(ByteBuffer buffer, String[] values)
+	{
+		int offset = 0;
+		buffer.putInt(offset);
+		for (String value : values)
+		{
+			offset += value.length();
+			buffer.putInt(offset);
+		}
+		for (String value : values)
+		{
+			for (int i = 0, len = value.length(); i < len; i++)
+			{
+				buffer.putChar(value.charAt(i) );
+			}
+		}
+	}
+
+	private static String[] getStringTable(ByteBuffer buffer, int count) throws IOException
+	{
+		int[] offsets = getInts(buffer, count + 1);
+		char[] chars = getChars(buffer, offsets[count]);
+		String[] values = new String[count];
+		for (int i = 0; i < count; i++)
+		{
+			if (offsets[i] < 0 || offsets[i + 1] < offsets[i] || offsets[i + 1] > chars.length)
+			{
+				throw new IOException("Corrupt string table");
+			}
+			values[i] = new String(chars, offsets[i], offsets[i + 1] - offsets[i]);
+		}
+		return values;
+	}
+
+	/** Reads a count from the header, which also can't be more than the bytes left. */
+	private static int count(ByteBuffer buffer) throws IOException
+	{
+		int count = buffer.getInt();
+		if (count < 0 || count > buffer.remaining() )
+		{
+			throw new IOException("Corrupt snapshot header");
+		}
+		return count;
+	}
+
+	/**
+	 * Checks that length values of the width in bytes are left in the buffer, so that a corrupt
+	 * length fails as a corrupt snapshot rather than as an unchecked exception out of the buffer.
+	 */
+	private static void checkLength(ByteBuffer buffer, int length, int width) throws IOException
+	{
+		if (length < 0 || (long) width * length > buffer.remaining() )
+		{
+			throw new IOException("Corrupt snapshot: " + length + " values of " + width + " bytes with "
+					+ buffer.remaining() + " bytes left");
+		}
+	}
+
+	private static char[] getChars(ByteBuffer buffer, int length) throws IOException
+	{
+		checkLength(buffer, length, 2);
+		char[] chars = new char[length];
+		buffer.asCharBuffer().get(chars);
+		buffer.position(buffer.position() + 2 * length);
+		return chars;
+	}
+
+	private static int[] getInts(ByteBuffer buffer, int length) throws IOException
+	{
+		checkLength(buffer, length, 4);
+		int[] ints = new int[length];
+		buffer.asIntBuffer().get(ints);
+		buffer.position(buffer.position() + 4 * length);
+		return ints;
+	}
+
+	private static long[] getLongs(ByteBuffer buffer, int length) throws IOException
+	{
+		checkLength(buffer, length, 8);
+		long[] longs = new long[length];
+		buffer.asLongBuffer().get(longs);
+		buffer.position(buffer.position() + 8 * length);
+		return longs;
+	}
+}
@@ -0,0 +1,280 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Country data that changes while it is being filtered, e.g. by a sync feed.
+ * Readers take the current {@link Version}, an immutable snapshot, without locking, and keep
+ * using it however the data changes meanwhile. Writers apply batches of changes, one batch
+ * at a time, and each batch makes a new version.
+ * <p>
+ * A change never renumbers rows: a removed row is only marked dead, and an updated row is
+ * marked dead and appended again with its new values. So the index and the filter results of
+ * an older version stay valid for a newer one, apart from the dead and appended rows, and can
+ * be brought up to date incrementally. Once dead rows make up too much of the data, the next
+ * batch compacts it instead: the live rows are renumbered and everything is rebuilt, which
+ * starts a new lineage of versions.
+ * <p>
+ * As a consequence, an updated country moves to the end of the row order, and so below the
+ * countries of its relevance tier, wherever it was before. Compacting keeps the live rows
+ * in their order, so it stays there. Only the sort orders of {@link FieldIndex} don't depend
+ * on the row order.
+ * <p>
+ * Rows are identified by their code, which is expected to be unique. Thread-safe.
+ */
+public final class CountryStore
+{
+	/** Compact once dead rows make up more than this share of the rows. */
+	private static final double MAX_DEAD_SHARE = 0.25;
+
+	/** Build the index in full again once its tail has more than this share of the rows. */
+	private static final double MAX_TAIL_SHARE = 0.125;
+
+	/** Told about every new version, in the writing thread, after the batch is applied. */
+	public interface Listener
+	{
+		void onVersion(Version version);
+	}
+
+	private volatile Version current;
+	private final Map<String, Integer> rowsByCode = new HashMap<String, Integer>();  // Live rows. Writers only.
+	private volatile Listener listener;
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param index the index of the table, e.g. from a snapshot, or null to build it
+	 */
+	public CountryStore(CountryTable table, TrigramIndex index)
+	{
+		this.current = new Version(0, 0, table, (index == null) ? TrigramIndex.build(table) : index,
+				RowBitmap.full(table.size() ) );
+		indexCodes(table);
+	}
+
+	/** Returns the current version. Never blocks. */
+	public Version current()
+	{
+		return current;
+	}
+
+	public void setListener(Listener listener)
+	{
+		this.listener = listener;
+	}
+
+	/**
+	 * Applies a batch of changes, in order, and makes the result the current version.
+	 * Readers see either all of the batch or none of it. Returns the new version.
+	 */
+	public Version apply(Batch batch)
+	{
+		Version version;
+		synchronized (this)
+		{
+			version = applyLocked(batch);
+			current = version;
+		}
+		Listener listener = this.listener;
+		if (listener != null)
+		{
+			listener.onVersion(version);
+		}
+		return version;
+	}
+
+	private Version applyLocked(Batch batch)
+	{
+		Version base = current;
+		int baseSize = base.table.size();
+
+		// Work out the rows to mark dead and to append, without touching the store yet.
+		Map<String, Integer> changed = new HashMap<String, Integer>();  // Code to new row, or -1 if removed.
+		IntList dead = new IntList();
+		CountryTable.Builder appended = new CountryTable.Builder();
+		int appendedCount = 0;
+		for (Change change : batch.changes)
+		{
+			Integer row = changed.containsKey(change.code) ? changed.get(change.code) : rowsByCode.get(change.code);
+			if (row != null && row >= 0)
+			{
+				dead.add(row);
+			}
+			if (change.name == null)
+			{
+				changed.put(change.code, -1);
+			}
+			else
+			{
+				appended.add(change.code, change.name, change.continent, change.region);
+				changed.put(change.code, baseSize + appendedCount++);
+			}
+		}
+
+		CountryTable table = base.table.append(appended.build() );
+		long[] words = new long[RowBitmap.wordCount(table.size() )];
+		for (int w = 0; w < base.live.wordCount(); w++)
+		{
+			words[w] = base.live.word(w);
+		}
+		for (int row = baseSize; row < table.size(); row++)
+		{
+			words[row >>> 6] |= 1L << row;
+		}
+		for (int i = 0; i < dead.size(); i++)
+		{
+			words[dead.get(i) >>> 6] &= ~(1L << dead.get(i) );
+		}
+		RowBitmap live = RowBitmap.wrap(words, table.size() );
+
+		// A table without names isn't compacted: its rows are shown by their numbers in a snapshot.
+		if (table.size() - live.cardinality() > MAX_DEAD_SHARE * table.size() && table.hasNames() )
+		{
+			// Too many dead rows: renumber the live ones and rebuild everything.
+			CountryTable compacted = compact(table, live);
+			rowsByCode.clear();
+			indexCodes(compacted);
+			return new Version(base.number + 1, base.lineage + 1, compacted, TrigramIndex.build(compacted),
+					RowBitmap.full(compacted.size() ) );
+		}
+
+		for (Map.Entry<String, Integer> entry : changed.entrySet() )
+		{
+			if (entry.getValue() < 0)
+			{
+				rowsByCode.remove(entry.getKey() );
+			}
+			else
+			{
+				rowsByCode.put(entry.getKey(), entry.getValue() );
+			}
+		}
+		TrigramIndex index = base.index.extend(table);
+		if (index.getTailRowCount() > MAX_TAIL_SHARE * table.size() )
+		{
+			index = TrigramIndex.build(table);  // Same rows, so the results of the lineage stay valid.
+		}
+		return new Version(base.number + 1, base.lineage, table, index, live);
+	}
+
+	private void indexCodes(CountryTable table)
+	{
+		for (int row = 0, size = table.size(); row < size; row++)
+		{
+			rowsByCode.put(table.getCode(row), row);
+		}
+	}
+
+	/** Returns a table with the live rows only. */
+	private static CountryTable compact(CountryTable table, RowBitmap live)
+	{
+		CountryTable.Builder builder = new CountryTable.Builder();
+		for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1) )
+		{
+			builder.add(table.getCode(row), table.getName(row), table.getContinent(row), table.getRegion(row) );
+		}
+		return builder.build();
+	}
+
+	/**
+	 * An immutable snapshot of the data: a table, its index, and which of its rows are live.
+	 */
+	public static final class Version
+	{
+		private final long number;
+		private final int lineage;
+		private final CountryTable table;
+		private final TrigramIndex index;
+		private final RowBitmap live;
+
+		/** CONSTRUCTOR */
+		private Version(long number, int lineage, CountryTable table, TrigramIndex index, RowBitmap live)
+		{
+			this.number = number;
+			this.lineage = lineage;
+			this.table = table;
+			this.index = index;
+			this.live = live;
+		}
+
+		/** Returns the number of the version, counting from 0; a later version has a larger one. */
+		public long getNumber()
+		{
+			return number;
+		}
+
+		/**
+		 * Returns the lineage of the version. Versions of the same lineage number their rows
+		 * the same way: a later one only has rows appended and rows marked dead.
+		 */
+		public int getLineage()
+		{
+			return lineage;
+		}
+
+		/** Returns the table, dead rows included. */
+		public CountryTable getTable()
+		{
+			return table;
+		}
+
+		public TrigramIndex getIndex()
+		{
+			return index;
+		}
+
+		/** Returns the rows of the table that are live. */
+		public RowBitmap getLive()
+		{
+			return live;
+		}
+	}
+
+	/**
+	 * Changes to apply together, in order.
+	 */
+	public static final class Batch
+	{
+		private final List<Change> changes = new ArrayList<Change>();
+
+		/** Adds the country with the code, or replaces it if there is one; either way it comes last in row order. */
+		public Batch put(String code, String name, String continent, String region)
+		{
+			changes.add(new Change(code, (name == null) ? "" : name, continent, region) );
+			return this;
+		}
+
+		/** Removes the country with the code, if there is one. */
+		public Batch remove(String code)
+		{
+			changes.add(new Change(code, null, null, null) );
+			return this;
+		}
+
+		public boolean isEmpty()
+		{
+			return changes.isEmpty();
+		}
+	}
+
+	/** A put, or a removal if the name is null. */
+	private static final class Change
+	{
+		final String code;
+		final String name;
+		final String continent;
+		final String region;
+
+		/** CONSTRUCTOR */
+		Change(String code, String name, String continent, String region)
+		{
+			this.code = (code == null) ? "" : code;
+			this.name = name;
+			this.continent = continent;
+			this.region = region;
+		}
+	}
+}
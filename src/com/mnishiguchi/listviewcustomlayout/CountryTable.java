@@ -0,0 +1,541 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.nio.CharBuffer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Country data stored by column instead of as one object per row.
+ * Continents and regions have only a few dozen distinct values, so they are stored once
+ * in a dictionary and each row keeps a small code. Codes and names are packed into one
+ * char array per column, next to their folded copies for matching.
+ * A row is a number in [0, size); {@link #getRow(int)} gives a light view of one.
+ * <p>
+ * The columns may have spare capacity past the rows of the table. {@link #append} writes into it,
+ * when no other table has yet, and shares the columns with the longer table, so appending a few
+ * rows costs as much as those rows, not the whole table. The rows of a table are never written
+ * again, so it is still immutable, and can be shared between threads.
+ * <p>
+ * A table loaded for searching only may have no names for its first rows, which are shown
+ * from elsewhere, e.g. a page at a time out of a {@link CountrySnapshot}; see {@link #hasNames()}.
+ */
+public final class CountryTable
+{
+	private final int size;
+
+	// Packed text: the code of row r is codeChars[codeOffsets[r], codeOffsets[r + 1]).
+	private final char[] codeChars;
+	private final char[] foldedCodeChars;
+	private final int[] codeOffsets;
+	private final char[] nameChars;  // Null if the table has no names.
+	private final char[] foldedNameChars;
+	private final int[] nameOffsets;
+	private final int namesFrom;  // Without names: the first row appended since, whose names are in namedRows.
+	private final CountryTable namedRows;  // Without names: the rows [namesFrom, size), with their names; else null.
+
+	// Dictionary-encoded columns.
+	private final short[] continentCodes;
+	private final short[] regionCodes;
+	private final String[] continents;
+	private final String[] regions;
+	private final char[][] foldedContinents;
+	private final char[][] foldedRegions;
+	private final AtomicInteger columnRows;  // The size of the longest table the columns are written for.
+
+	/** CONSTRUCTOR: used by the builder. */
+	private CountryTable(Builder builder)
+	{
+		this.size = builder.size;
+		this.codeChars = Arrays.copyOf(builder.codeChars, builder.codeLength);
+		this.foldedCodeChars = SearchText.fold(CharBuffer.wrap(codeChars) );
+		this.codeOffsets = Arrays.copyOf(builder.codeOffsets, size + 1);
+		this.nameChars = Arrays.copyOf(builder.nameChars, builder.nameLength);
+		this.foldedNameChars = SearchText.fold(CharBuffer.wrap(nameChars) );
+		this.nameOffsets = Arrays.copyOf(builder.nameOffsets, size + 1);
+		this.continentCodes = Arrays.copyOf(builder.continentCodes, size);
+		this.regionCodes = Arrays.copyOf(builder.regionCodes, size);
+		this.continents = builder.continents.toArray();
+		this.regions = builder.regions.toArray();
+		this.foldedContinents = foldAll(continents);
+		this.foldedRegions = foldAll(regions);
+		this.columnRows = new AtomicInteger(size);
+		this.namesFrom = 0;
+		this.namedRows = null;
+	}
+
+	/**
+	 * CONSTRUCTOR: takes ownership of the columns, e.g. as loaded by {@link CountrySnapshot}.
+	 * Nothing is folded again; only the dictionaries, which are small.
+	 *
+	 * @param nameChars the names, or null for a table without names, for searching only
+	 */
+	CountryTable(char[] codeChars, char[] foldedCodeChars, int[] codeOffsets,
+			char[] nameChars, char[] foldedNameChars, int[] nameOffsets,
+			short[] continentCodes, short[] regionCodes, String[] continents, String[] regions)
+	{
+		this(continentCodes.length, codeChars, foldedCodeChars, codeOffsets, nameChars, foldedNameChars, nameOffsets,
+				continentCodes, regionCodes, continents, regions, new AtomicInteger(continentCodes.length),
+				(nameChars == null) ? continentCodes.length : 0,
+				(nameChars == null) ? new Builder().build() : null);
+	}
+
+	/**
+	 * CONSTRUCTOR: the first size rows of columns that may be longer, shared with the other tables
+	 * of columnRows.
+	 */
+	private CountryTable(int size, char[] codeChars, char[] foldedCodeChars, int[] codeOffsets,
+			char[] nameChars, char[] foldedNameChars, int[] nameOffsets,
+			short[] continentCodes, short[] regionCodes, String[] continents, String[] regions,
+			AtomicInteger columnRows, int namesFrom, CountryTable namedRows)
+	{
+		this.size = size;
+		this.namesFrom = namesFrom;
+		this.namedRows = namedRows;
+		this.codeChars = codeChars;
+		this.foldedCodeChars = foldedCodeChars;
+		this.codeOffsets = codeOffsets;
+		this.nameChars = nameChars;
+		this.foldedNameChars = foldedNameChars;
+		this.nameOffsets = nameOffsets;
+		this.continentCodes = continentCodes;
+		this.regionCodes = regionCodes;
+		this.continents = continents;
+		this.regions = regions;
+		this.foldedContinents = foldAll(continents);
+		this.foldedRegions = foldAll(regions);
+		this.columnRows = columnRows;
+	}
+
+	/**
+	 * Returns a table with the passed-in countries, in order.
+	 */
+	public static CountryTable of(List<Country> countries)
+	{
+		Builder builder = new Builder();
+		for (Country country : countries)
+		{
+			builder.add(country.getCode(), country.getName(), country.getContinent(), country.getRegion() );
+		}
+		return builder.build();
+	}
+
+	/**
+	 * Returns a table with the rows of this one followed by the rows of the other one.
+	 * The columns are copied as they are, folded copies included; only the dictionary
+	 * codes of the other table are mapped to this one's, so nothing is folded again.
+	 * If the columns of this table have room for the rows, and no longer table has been
+	 * appended to them yet, the rows are written into the spare capacity and the columns are
+	 * shared; otherwise they are copied once, with room for as many rows again.
+	 * If this table has no names, the names of the rows are kept apart, and the result has none either.
+	 */
+	public CountryTable append(CountryTable rows)
+	{
+		if (rows.size == 0)
+		{
+			return this;
+		}
+
+		// Merge the dictionaries: the values of this table keep their codes.
+		Dictionary continentDictionary = new Dictionary(continents);
+		Dictionary regionDictionary = new Dictionary(regions);
+		short[] continentMap = new short[rows.continents.length];
+		for (int code = 0; code < continentMap.length; code++)
+		{
+			continentMap[code] = continentDictionary.code(rows.continents[code]);
+		}
+		short[] regionMap = new short[rows.regions.length];
+		for (int code = 0; code < regionMap.length; code++)
+		{
+			regionMap[code] = regionDictionary.code(rows.regions[code]);
+		}
+
+		int n = size + rows.size;
+		int codeEnd = codeOffsets[size];
+		int nameEnd = nameOffsets[size];
+		int newCodeEnd = codeEnd + rows.codeOffsets[rows.size];
+		int newNameEnd = nameEnd + rows.nameOffsets[rows.size];
+		char[] newCodeChars = codeChars;
+		char[] newFoldedCodeChars = foldedCodeChars;
+		int[] newCodeOffsets = codeOffsets;
+		char[] newNameChars = nameChars;
+		char[] newFoldedNameChars = foldedNameChars;
+		int[] newNameOffsets = nameOffsets;
+		short[] newContinentCodes = continentCodes;
+		short[] newRegionCodes = regionCodes;
+		AtomicInteger newColumnRows = columnRows;
+		if (n + 1 > codeOffsets.length || n > continentCodes.length
+				|| newCodeEnd > codeChars.length || newNameEnd > foldedNameChars.length
+				|| !columnRows.compareAndSet(size, n) )
+		{
+			// No room, or another table has the room already: copy the rows of this table.
+			int rowCapacity = 2 * n;
+			newCodeChars = Arrays.copyOf(codeChars, 2 * newCodeEnd);
+			newFoldedCodeChars = Arrays.copyOf(foldedCodeChars, 2 * newCodeEnd);
+			newCodeOffsets = Arrays.copyOf(codeOffsets, rowCapacity + 1);
+			newNameChars = (nameChars == null) ? null : Arrays.copyOf(nameChars, 2 * newNameEnd);
+			newFoldedNameChars = Arrays.copyOf(foldedNameChars, 2 * newNameEnd);
+			newNameOffsets = Arrays.copyOf(nameOffsets, rowCapacity + 1);
+			newContinentCodes = Arrays.copyOf(continentCodes, rowCapacity);
+			newRegionCodes = Arrays.copyOf(regionCodes, rowCapacity);
+			newColumnRows = new AtomicInteger(n);
+		}
+
+		// Write the rows past the ones of this table, which no table reads yet.
+		System.arraycopy(rows.codeChars, 0, newCodeChars, codeEnd, newCodeEnd - codeEnd);
+		System.arraycopy(rows.foldedCodeChars, 0, newFoldedCodeChars, codeEnd, newCodeEnd - codeEnd);
+		if (newNameChars != null)
+		{
+			System.arraycopy(rows.nameChars, 0, newNameChars, nameEnd, newNameEnd - nameEnd);
+		}
+		System.arraycopy(rows.foldedNameChars, 0, newFoldedNameChars, nameEnd, newNameEnd - nameEnd);
+		for (int row = 0; row < rows.size; row++)
+		{
+			newCodeOffsets[size + row + 1] = codeEnd + rows.codeOffsets[row + 1];
+			newNameOffsets[size + row + 1] = nameEnd + rows.nameOffsets[row + 1];
+			newContinentCodes[size + row] = continentMap[rows.continentCodes[row]];
+			newRegionCodes[size + row] = regionMap[rows.regionCodes[row]];
+		}
+		return new CountryTable(n, newCodeChars, newFoldedCodeChars, newCodeOffsets,
+				newNameChars, newFoldedNameChars, newNameOffsets, newContinentCodes, newRegionCodes,
+				continentDictionary.toArray(), regionDictionary.toArray(), newColumnRows,
+				namesFrom, (namedRows == null) ? null : namedRows.append(rows) );
+	}
+
+	/** Returns the number of rows. */
+	public int size()
+	{
+		return size;
+	}
+
+	/** Returns a light view of a row. */
+	public CountryRow getRow(int row)
+	{
+		return new CountryRow(this, row);
+	}
+
+	public String getCode(int row)
+	{
+		return new String(codeChars, codeOffsets[row], codeOffsets[row + 1] - codeOffsets[row]);
+	}
+
+	/**
+	 * Returns the name of a row.
+	 *
+	 * @throws IllegalStateException if the table has no names, and the row is not one appended since
+	 */
+	public String getName(int row)
+	{
+		if (nameChars == null)
+		{
+			if (row < namesFrom)
+			{
+				throw new IllegalStateException("The table has no name for row " + row);
+			}
+			return namedRows.getName(row - namesFrom);
+		}
+		return new String(nameChars, nameOffsets[row], nameOffsets[row + 1] - nameOffsets[row]);
+	}
+
+	/**
+	 * Returns true if the table has the names of its rows. A table without names is for searching
+	 * only: the rows it was loaded with are shown from elsewhere, and only the names of the rows
+	 * appended since can be read, with {@link #getName(int)}; {@link #getNameChars()} is null.
+	 */
+	public boolean hasNames()
+	{
+		return nameChars != null;
+	}
+
+	/** Returns the continent of a row. Shared by all the rows of the continent. */
+	public String getContinent(int row)
+	{
+		return continents[continentCodes[row]];
+	}
+
+	/** Returns the region of a row. Shared by all the rows of the region. */
+	public String getRegion(int row)
+	{
+		return regions[regionCodes[row]];
+	}
+
+	/*
+	 * Allocation-free access to the packed text, e.g. for TextView.setText(char[], int, int).
+	 * The arrays may be longer than the text of the rows; see getCodeCharCount().
+	 */
+
+	public char[] getCodeChars()
+	{
+		return codeChars;
+	}
+
+	public int getCodeStart(int row)
+	{
+		return codeOffsets[row];
+	}
+
+	public int getCodeLength(int row)
+	{
+		return codeOffsets[row + 1] - codeOffsets[row];
+	}
+
+	/** Returns the number of chars of the codes of all the rows, the used part of the code chars. */
+	public int getCodeCharCount()
+	{
+		return codeOffsets[size];
+	}
+
+	/** Returns the names, or null if the table has none. */
+	public char[] getNameChars()
+	{
+		return nameChars;
+	}
+
+	public int getNameStart(int row)
+	{
+		return nameOffsets[row];
+	}
+
+	public int getNameLength(int row)
+	{
+		return nameOffsets[row + 1] - nameOffsets[row];
+	}
+
+	/** Returns the number of chars of the names of all the rows, the used part of the name chars. */
+	public int getNameCharCount()
+	{
+		return nameOffsets[size];
+	}
+
+	/* Dictionary-encoded columns. */
+
+	/** Returns the dictionary code of the continent of a row. */
+	public int getContinentCode(int row)
+	{
+		return continentCodes[row];
+	}
+
+	/** Returns the dictionary code of the region of a row. */
+	public int getRegionCode(int row)
+	{
+		return regionCodes[row];
+	}
+
+	/** Returns the distinct continents, indexed by code. Must not be modified. */
+	public String[] getContinents()
+	{
+		return continents;
+	}
+
+	/** Returns the distinct regions, indexed by code. Must not be modified. */
+	public String[] getRegions()
+	{
+		return regions;
+	}
+
+	/* Folded text, for matching and indexing. */
+
+	char[] getFoldedCodeChars()
+	{
+		return foldedCodeChars;
+	}
+
+	char[] getFoldedNameChars()
+	{
+		return foldedNameChars;
+	}
+
+	char[] getFoldedContinent(int code)
+	{
+		return foldedContinents[code];
+	}
+
+	char[] getFoldedRegion(int code)
+	{
+		return foldedRegions[code];
+	}
+
+	/**
+	 * Returns a matcher for a folded constraint.
+	 * It checks the continents and regions once, so matching a row only looks up its codes.
+	 */
+	public Matcher matcher(char[] folded)
+	{
+		return new Matcher(folded);
+	}
+
+	/** Returns the approximate number of bytes the table takes on the heap. */
+	public long estimateBytes()
+	{
+		return 2L * (codeChars.length + foldedCodeChars.length + foldedNameChars.length)
+				+ ( (nameChars == null) ? namedRows.estimateBytes() : 2L * nameChars.length)
+				+ 4L * (codeOffsets.length + nameOffsets.length)
+				+ 2L * (continentCodes.length + regionCodes.length);
+	}
+
+	private static char[][] foldAll(String[] values)
+	{
+		char[][] folded = new char[values.length][];
+		for (int i = 0; i < values.length; i++)
+		{
+			folded[i] = SearchText.fold(values[i]);
+		}
+		return folded;
+	}
+
+	/**
+	 * Matches the rows of the table against one folded constraint. A match never spans two fields.
+	 */
+	public final class Matcher
+	{
+		private final char[] folded;
+		private final boolean[] continentHits;  // By continent code.
+		private final boolean[] regionHits;  // By region code.
+
+		/** CONSTRUCTOR */
+		private Matcher(char[] folded)
+		{
+			this.folded = folded;
+			this.continentHits = hits(foldedContinents);
+			this.regionHits = hits(foldedRegions);
+		}
+
+		/** Returns true if any field of the row contains the constraint. Allocates nothing. */
+		public boolean matches(int row)
+		{
+			return continentHits[continentCodes[row]]
+					|| regionHits[regionCodes[row]]
+					|| SearchText.indexOf(foldedCodeChars, codeOffsets[row], codeOffsets[row + 1], folded) >= 0
+					|| SearchText.indexOf(foldedNameChars, nameOffsets[row], nameOffsets[row + 1], folded) >= 0;
+		}
+
+		private boolean[] hits(char[][] dictionary)
+		{
+			boolean[] hits = new boolean[dictionary.length];
+			for (int i = 0; i < dictionary.length; i++)
+			{
+				hits[i] = SearchText.contains(dictionary[i], folded);
+			}
+			return hits;
+		}
+	}
+
+	/**
+	 * Collects rows for a new table.
+	 */
+	public static final class Builder
+	{
+		private int size;
+		private char[] codeChars = new char[64];
+		private int codeLength;
+		private int[] codeOffsets = new int[16];
+		private char[] nameChars = new char[256];
+		private int nameLength;
+		private int[] nameOffsets = new int[16];
+		private short[] continentCodes = new short[16];
+		private short[] regionCodes = new short[16];
+		private final Dictionary continents = new Dictionary();
+		private final Dictionary regions = new Dictionary();
+
+		/** Adds a row. Null fields are stored as empty ones. */
+		public Builder add(String code, String name, String continent, String region)
+		{
+			if (size + 2 > codeOffsets.length)
+			{
+				int capacity = codeOffsets.length * 2;
+				codeOffsets = Arrays.copyOf(codeOffsets, capacity);
+				nameOffsets = Arrays.copyOf(nameOffsets, capacity);
+				continentCodes = Arrays.copyOf(continentCodes, capacity);
+				regionCodes = Arrays.copyOf(regionCodes, capacity);
+			}
+			codeChars = append(codeChars, codeLength, code);
+			codeLength += length(code);
+			nameChars = append(nameChars, nameLength, name);
+			nameLength += length(name);
+			continentCodes[size] = continents.code(continent);
+			regionCodes[size] = regions.code(region);
+			size++;
+			codeOffsets[size] = codeLength;
+			nameOffsets[size] = nameLength;
+			return this;
+		}
+
+		public CountryTable build()
+		{
+			return new CountryTable(this);
+		}
+
+		private static int length(String value)
+		{
+			return (value == null) ? 0 : value.length();
+		}
+
+		private static char[] append(char[] chars, int length, String value)
+		{
+			int n = length(value);
+			if (length + n > chars.length)
+			{
+				chars = Arrays.copyOf(chars, Math.max(chars.length * 2, length + n) );
+			}
+			if (n > 0)
+			{
+				value.getChars(0, n, chars, length);
+			}
+			return chars;
+		}
+	}
+
+	/**
+	 * Assigns small codes to distinct values, in order of first appearance.
+	 */
+	private static final class Dictionary
+	{
+		private final Map<String, Short> codes = new HashMap<String, Short>();
+		private String[] values = new String[8];
+
+		/** CONSTRUCTOR: an empty dictionary. */
+		Dictionary()
+		{
+		}
+
+		/** CONSTRUCTOR: a dictionary with the passed-in distinct values, keeping their codes. */
+		Dictionary(String[] initial)
+		{
+			for (String value : initial)
+			{
+				code(value);
+			}
+		}
+
+		short code(String value)
+		{
+			if (value == null)
+			{
+				value = "";
+			}
+			Short code = codes.get(value);
+			if (code == null)
+			{
+				if (codes.size() > Short.MAX_VALUE)
+				{
+					throw new IllegalStateException("Too many distinct values: " + codes.size() );
+				}
+				code = (short) codes.size();
+				codes.put(value, code);
+				if (code >= values.length)
+				{
+					values = Arrays.copyOf(values, values.length * 2);
+				}
+				values[code] = value;
+			}
+			return code;
+		}
+
+		String[] toArray()
+		{
+			return Arrays.copyOf(values, codes.size() );
+		}
+	}
+}
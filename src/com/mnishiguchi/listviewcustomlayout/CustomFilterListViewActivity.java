@@ -1,21 +1,30 @@
 package com.mnishiguchi.listviewcustomlayout;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.ArrayList;
-import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicReference;
 
 import android.app.Activity;
 import android.content.Context;
 import android.os.Bundle;
+import android.os.Handler;
+import android.os.SystemClock;
 import android.text.Editable;
 import android.text.TextWatcher;
 import android.util.Log;
 import android.view.LayoutInflater;
+import android.view.Menu;
+import android.view.MenuItem;
 import android.view.View;
 import android.view.ViewGroup;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
+import android.widget.BaseAdapter;
 import android.widget.EditText;
 import android.widget.Filter;
+import android.widget.Filterable;
+import android.widget.LinearLayout;
 import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
@@ -27,58 +36,73 @@ import android.widget.AdapterView.OnItemClickListener;
  */
 public class CustomFilterListViewActivity  extends Activity
 {
-	// INSTANCE VARIABLE
+	// CLASS VARIABLES
+	private static final int TOP_K = 48;  // How many best matches to show before the rest are loaded.
+	private static final int PAGE_ROWS = 256;  // Rows shown are read a page at a time.
+	private static final int MAX_PAGES = 8;
+	private static final String SNAPSHOT_FILE = "countries-1.snapshot";  // Renamed when the built-in data changes.
+	private static ExecutorService sScanExecutor = null;  // Shared by all the adapters of the process.
+	private static ExecutorService sFilterWorker = null;  // Runs the filtering of all the adapters of the process.
+	private static int sActivityCount = 0;  // The activities not destroyed yet; the executors go with the last one.
+
+	// INSTANCE VARIABLES
 	private CustomArrayAdapter mDataAdapter = null;
+	private CountryStore mStore = null;  // The countries, which may change while they are shown.
+	private boolean mDestroyed = false;  // Loaded countries aren't shown after onDestroy. UI thread only.
+	private ListView mListView = null;
+	private EditText mFilterText = null;
+	private View mFacets = null;  // Shows the facet bar, when there are facets.
+	private LinearLayout mFacetBar = null;  // One view per continent and region of the rows shown.
+	private final AdaptiveDelayer mDelayer = new AdaptiveDelayer();  // Debounces the filter requests.
+	private final FilterMetrics mMetrics = FilterMetrics.getDefault();  // Off unless telemetry turns it on.
+	private final Handler mHandler = new Handler();
+	private CharSequence mPendingInput = null;  // The latest input waiting for the debounce delay.
+	private final Runnable mFilterRunnable = new Runnable()
+	{
+		public void run()
+		{
+			if (mDataAdapter != null)  // Else the input is filtered once the countries are in.
+			{
+				mDataAdapter.getFilter().submit(mPendingInput);
+			}
+		}
+	};
 
 	@Override
 	public void onCreate(Bundle savedInstanceState)
 	{
 		super.onCreate(savedInstanceState);
 		setContentView(R.layout.main);
+		retainExecutors();
 	
 		displayListView();
 	}
 
 	/**
 	 * Display a list view with a filter text field.
+	 * The countries are loaded in the worker thread, and the list is filled once they are in.
 	 */
 	private void displayListView()
 	{
-		// Prepare a list of countries data
-		ArrayList<Country> countryList = new ArrayList<Country>();
-		Country country = new Country("AFG","Afghanistan","Asia", "Southern and Central Asia");
-		countryList.add(country);
-		country = new Country("ALB","Albania","Europe","Southern Europe");
-		countryList.add(country);
-		country = new Country("DZA","Algeria","Africa","Northern Africa");
-		countryList.add(country);
-		country = new Country("ASM","American Samoa","Oceania","Polynesia");
-		countryList.add(country);
-		country = new Country("AND","Andorra","Europe","Southern Europe");
-		countryList.add(country);
-		country = new Country("AGO","Angola","Africa","Central Africa");
-		countryList.add(country);
-		country = new Country("AIA","Anguilla","North America","Caribbean");
-		countryList.add(country);
-		country = new Country("JPN","Japan","Asia","East Asia");
-		countryList.add(country);
-		country = new Country("USA","United States of America", "North America", "North America");
-		countryList.add(country);
-	
-		// Create an adapter.
-		mDataAdapter = new CustomArrayAdapter(this, R.layout.list_item_countries, countryList);
+		getFilterWorker().execute(new Runnable()
+		{
+			public void run()
+			{
+				loadCountries();
+			}
+		} );
 		
 		/* ListView settings */ 
 		
-		ListView listView = (ListView) findViewById(R.id.listView1);
-		listView.setAdapter(mDataAdapter);
-		listView.setTextFilterEnabled(true);  // Enables filtering.
-		listView.setOnItemClickListener(new OnItemClickListener() {
+		// No setTextFilterEnabled: the list would call getFilter().filter(), which runs in a thread
+		// of the framework Filter, beside the worker. The filter text field submits to the worker instead.
+		mListView = (ListView) findViewById(R.id.listView1);
+		mListView.setOnItemClickListener(new OnItemClickListener() {
 			
 			public void onItemClick(AdapterView<?> parent, View view, int position, long id)
 			{
 				// When clicked, show a toast with the TextView text.
-				Country country = (Country) parent.getItemAtPosition(position);
+				CountryRow country = (CountryRow) parent.getItemAtPosition(position);
 				Toast.makeText(getApplicationContext(),
 						country.getCode(), Toast.LENGTH_SHORT).show();
 			}
@@ -86,8 +110,8 @@ public class CustomFilterListViewActivity  extends Activity
 
 		/* Filter text field settings */ 
 		
-		EditText etFilter = (EditText) findViewById(R.id.et_filter);
-		etFilter.addTextChangedListener(new TextWatcher() {
+		mFilterText = (EditText) findViewById(R.id.et_filter);
+		mFilterText.addTextChangedListener(new TextWatcher() {
 
 			public void afterTextChanged(Editable s) {  }  // Unused.
 			
@@ -95,40 +119,420 @@ public class CustomFilterListViewActivity  extends Activity
 			
 			public void onTextChanged(CharSequence input, int start, int before, int count)
 			{
-				// Call the filter with user's input.
-				mDataAdapter.getFilter().filter(input);
+				// Call the filter with user's input, after a delay that depends on how expensive filtering is.
+				// Any filtering still running for older input is abandoned.
+				mPendingInput = input.toString();
+				mHandler.removeCallbacks(mFilterRunnable);
+				long delay = mDelayer.getPostingDelay(input);
+				if (delay == 0)
+				{
+					mFilterRunnable.run();
+				}
+				else
+				{
+					mHandler.postDelayed(mFilterRunnable, delay);
+				}
+			}
+		} );
+		
+		/* Facet bar settings */
+		
+		mFacets = findViewById(R.id.facets);
+		mFacetBar = (LinearLayout) findViewById(R.id.facet_bar);
+	}
+
+	/**
+	 * Loads the countries and their index from the snapshot of an earlier launch, and shows them.
+	 * Loading it takes bulk copies only, of the columns searched: the names stay in the file, which
+	 * the rows shown are read from. The first launch builds them from the built-in data
+	 * and saves the snapshot. Invoked in the worker thread, as it reads and writes files.
+	 */
+	private void loadCountries()
+	{
+		File file = new File(getFilesDir(), SNAPSHOT_FILE);
+		CountryStore store = null;
+		RowPager.Source rows = null;
+		if (file.exists() )
+		{
+			try
+			{
+				// Only the columns searched are loaded; the rows shown are read straight from the file.
+				CountrySnapshot snapshot = CountrySnapshot.load(file, false);
+				store = new CountryStore(snapshot.getTable(), snapshot.getIndex() );
+				rows = CountrySnapshot.openRows(file, store);
+			}
+			catch (IOException e)
+			{
+				Log.w("Snapshot", "Rebuilding the country snapshot", e);
+				store = null;
+			}
+		}
+		if (store != null)
+		{
+			showCountries(store, rows);
+		}
+		else
+		{
+			CountryTable table = loadBuiltInCountries();
+			store = new CountryStore(table, null);
+			TrigramIndex index = store.current().getIndex();  // Of this table; the store may move on while it is shown.
+			showCountries(store, null);  // Bound straight from the table in memory.
+			try
+			{
+				CountrySnapshot.write(table, index, file);  // The index the store built, not a second one.
+			}
+			catch (IOException e)
+			{
+				Log.w("Snapshot", "Couldn't save the country snapshot", e);
+			}
+		}
+	}
+
+	/**
+	 * Fills the list with the countries in the UI thread, and filters what was typed while they
+	 * were loading. Does nothing if the activity is gone by then.
+	 *
+	 * @param rows reads the rows shown a page at a time, or null to bind them from the table in memory
+	 */
+	private void showCountries(final CountryStore store, final RowPager.Source rows)
+	{
+		mHandler.post(new Runnable()
+		{
+			public void run()
+			{
+				if (mDestroyed)
+				{
+					return;
+				}
+				mStore = store;
+				mDataAdapter = new CustomArrayAdapter(rows);
+				
+				// When the countries change, e.g. through a sync feed, filter the current input again.
+				// An updated country is appended again, so it moves to the end of the unsorted list.
+				mStore.setListener(new CountryStore.Listener()
+				{
+					public void onVersion(CountryStore.Version version)
+					{
+						mHandler.post(new Runnable()
+						{
+							public void run()
+							{
+								mDataAdapter.getFilter().submit(mFilterText.getText() );
+							}
+						} );
+					}
+				} );
+				
+				mListView.setAdapter(mDataAdapter);
+				if (mFilterText.getText().length() > 0)
+				{
+					mDataAdapter.getFilter().submit(mFilterText.getText() );
+				}
+			}
+		} );
+	}
+
+	/**
+	 * Shows how many of the rows shown are in each continent and each region, most first.
+	 * Clicking one narrows the filter to it. Invoked in the UI thread.
+	 */
+	private void showFacets(FacetCounts facets)
+	{
+		mFacetBar.removeAllViews();
+		int[] continents = facets.getContinentCodes();
+		int[] regions = facets.getRegionCodes();
+		String more = facets.isComplete() ? "" : "+";  // Counted from the best matches only.
+		for (int code : continents)
+		{
+			addFacet("continent", facets.getContinent(code), facets.getContinentCount(code) + more);
+		}
+		for (int code : regions)
+		{
+			addFacet("region", facets.getRegion(code), facets.getRegionCount(code) + more);
+		}
+		mFacets.setVisibility(mFacetBar.getChildCount() > 0 ? View.VISIBLE : View.GONE);
+	}
+
+	private void addFacet(final String field, final String value, String count)
+	{
+		LayoutInflater vi = (LayoutInflater) getSystemService(Context.LAYOUT_INFLATER_SERVICE);
+		TextView view = (TextView) vi.inflate(R.layout.list_item_facet, mFacetBar, false);
+		view.setText(value + " (" + count + ")");
+		view.setOnClickListener(new View.OnClickListener()
+		{
+			public void onClick(View v)
+			{
+				narrow(field, value);
 			}
 		} );
+		mFacetBar.addView(view);
+	}
+
+	/**
+	 * Narrows the filter input to the rows with the value in the field, e.g. continent:"Asia".
+	 * Editing the input filters again, as typing does.
+	 */
+	private void narrow(String field, String value)
+	{
+		String input = mFilterText.getText().toString();
+		if (input.trim().length() == 0)
+		{
+			input = "";
+		}
+		else if (CountryQuery.isPlain(input) && input.trim().indexOf(' ') >= 0)
+		{
+			input = "\"" + input + "\" ";  // A plain input is one substring, spaces included.
+		}
+		else
+		{
+			input = input + " ";
+		}
+		mFilterText.setText(input + field + ":\"" + value + "\"");
+		mFilterText.setSelection(mFilterText.getText().length() );
+	}
+
+	/**
+	 * Returns the built-in countries data.
+	 */
+	private static CountryTable loadBuiltInCountries()
+	{
+		// Prepare a list of countries data
+		ArrayList<Country> countryList = new ArrayList<Country>();
+		Country country = new Country("AFG","Afghanistan","Asia", "Southern and Central Asia");
+		countryList.add(country);
+		country = new Country("ALB","Albania","Europe","Southern Europe");
+		countryList.add(country);
+		country = new Country("DZA","Algeria","Africa","Northern Africa");
+		countryList.add(country);
+		country = new Country("ASM","American Samoa","Oceania","Polynesia");
+		countryList.add(country);
+		country = new Country("AND","Andorra","Europe","Southern Europe");
+		countryList.add(country);
+		country = new Country("AGO","Angola","Africa","Central Africa");
+		countryList.add(country);
+		country = new Country("AIA","Anguilla","North America","Caribbean");
+		countryList.add(country);
+		country = new Country("JPN","Japan","Asia","East Asia");
+		countryList.add(country);
+		country = new Country("USA","United States of America", "North America", "North America");
+		countryList.add(country);
+	
+		// The data is stored by column, so the Country objects can be dropped.
+		return CountryTable.of(countryList);
+	}
+
+	@Override
+	protected void onDestroy()
+	{
+		// Stop filtering for this activity, and the executors with the last activity.
+		mDestroyed = true;
+		mHandler.removeCallbacks(mFilterRunnable);
+		if (mDataAdapter != null)
+		{
+			mDataAdapter.getFilter().close();
+		}
+		releaseExecutors();
+		super.onDestroy();
+	}
+
+	@Override
+	public boolean onCreateOptionsMenu(Menu menu)
+	{
+		getMenuInflater().inflate(R.menu.main, menu);
+		return true;
+	}
+
+	@Override
+	public boolean onOptionsItemSelected(MenuItem item)
+	{
+		if (mDataAdapter == null && (item.getItemId() == R.id.fuzzy || sortOrder(item.getItemId() ) >= 0) )
+		{
+			return true;  // Nothing to filter until the countries are in.
+		}
+		if (item.getItemId() == R.id.fuzzy)
+		{
+			// Toggle typo-tolerant matching and filter the current input again.
+			boolean fuzzy = !item.isChecked();
+			item.setChecked(fuzzy);
+			mDataAdapter.getFilter().setFuzzy(fuzzy);
+			mDataAdapter.getFilter().submit(mFilterText.getText() );
+			return true;
+		}
+		int order = sortOrder(item.getItemId() );
+		if (order >= 0)
+		{
+			// Show the current matches in the chosen order.
+			item.setChecked(true);
+			mDataAdapter.getFilter().setSortOrder(order);
+			mDataAdapter.getFilter().submit(mFilterText.getText() );
+			return true;
+		}
+		return super.onOptionsItemSelected(item);
+	}
+
+	/**
+	 * Returns the FieldIndex order of a sort menu item, or -1 if it is not one.
+	 */
+	private static int sortOrder(int itemId)
+	{
+		if (itemId == R.id.sort_by_none)
+		{
+			return FieldIndex.ORDER_ROWS;
+		}
+		else if (itemId == R.id.sort_by_code)
+		{
+			return FieldIndex.ORDER_CODE;
+		}
+		else if (itemId == R.id.sort_by_name)
+		{
+			return FieldIndex.ORDER_NAME;
+		}
+		else if (itemId == R.id.sort_by_continent)
+		{
+			return FieldIndex.ORDER_CONTINENT;
+		}
+		else if (itemId == R.id.sort_by_region)
+		{
+			return FieldIndex.ORDER_REGION;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the executor that checks large lists in parallel, creating it on first use.
+	 */
+	private static synchronized ExecutorService getScanExecutor()
+	{
+		if (sScanExecutor == null)
+		{
+			sScanExecutor = CountrySearcher.newScanExecutor();
+		}
+		return sScanExecutor;
+	}
+
+	/**
+	 * Returns the worker that runs the filtering, creating it on first use.
+	 * Unlike the thread of the framework Filter, it doesn't quit between bursts of typing.
+	 */
+	private static synchronized ExecutorService getFilterWorker()
+	{
+		if (sFilterWorker == null)
+		{
+			sFilterWorker = ExecutorFilter.newWorker("Filter", android.os.Process.THREAD_PRIORITY_BACKGROUND);
+		}
+		return sFilterWorker;
+	}
+
+	/** Keeps the executors up until the activity is destroyed; see releaseExecutors(). */
+	private static synchronized void retainExecutors()
+	{
+		sActivityCount++;
+	}
+
+	/**
+	 * Shuts the executors down once no activity is left, e.g. when the user backs out of the list.
+	 * Work already running finishes: the filtering of a closed filter is dropped, pages being read
+	 * are reported as failed, and a scan checks its rows in the worker. The next activity creates them again.
+	 */
+	private static synchronized void releaseExecutors()
+	{
+		if (--sActivityCount > 0)
+		{
+			return;
+		}
+		if (sFilterWorker != null)
+		{
+			sFilterWorker.shutdown();
+			sFilterWorker = null;
+		}
+		if (sScanExecutor != null)
+		{
+			sScanExecutor.shutdown();
+			sScanExecutor = null;
+		}
 	}
 
 	/**
 	 * A custom adapter with a custom filter, designed specifically for the countries data.
 	 */
-	private class CustomArrayAdapter extends ArrayAdapter<Country>
+	private class CustomArrayAdapter extends BaseAdapter implements Filterable
 	{
 		// INSTANCE VARIABLES
-		private ArrayList<Country> mOriginalList;  // Remember the original list.
-		private ArrayList<Country> mFilteredList;  // Remember the filtered list.
+		private RowList mFilteredRows;  // Remember the filtered rows of the original list, in display order.
+		private CountrySearcher mSearcher;  // Indexed search over the countries. Used in the worker thread only.
+		private CountryTable mShownTable;  // The table the filtered rows are rows of. Used in the UI thread only.
 		private CountryFilter mFilter;  // A custom filter
+		private RowPager mPager;  // The display data of the rows around the visible ones, or null.
+		private MatchHighlighter mHighlighter = new MatchHighlighter(SearchText.EMPTY);  // For the rows shown. UI thread only.
+		private static final int PRELOAD_ROWS = 8;  // How close to the end the rest of the matches are loaded.
+		private static final int PRESTYLED_ROWS = 64;  // How many rows of a result are highlighted in the worker.
 
-		/** CONSTRUCTOR */
-		public CustomArrayAdapter(Context context,
-				int textViewResourceId, ArrayList<Country> countryList)
+		/**
+		 * CONSTRUCTOR
+		 *
+		 * @param rows the rows of the current version of the store, read a page at a time,
+		 *        or null to bind the rows straight from the table in memory
+		 */
+		public CustomArrayAdapter(RowPager.Source rows)
 		{
-			// super constructor
-			super(context, textViewResourceId, countryList);
+			// Search the current version of the countries, indexed once; later versions are caught up with
+			// incrementally. Large tables are checked on all the cores.
+			CountryStore.Version version = mStore.current();
+			this.mSearcher = new CountrySearcher(version, ResultCache.DEFAULT_MAX_BYTES);
+			this.mShownTable = version.getTable();
+			this.mSearcher.setExecutor(getScanExecutor(), Runtime.getRuntime().availableProcessors(),
+					CountrySearcher.DEFAULT_PARALLEL_THRESHOLD);
+			this.mSearcher.setMetrics(mMetrics);
 			
-			// Remember all the elements of the passed-in list. 
-			this.mOriginalList = new ArrayList<Country>();
-			this.mOriginalList.addAll(countryList);
+			// Initialize the filtered rows, initially all the rows of the passed-in table. 
+			this.mFilteredRows = mSearcher.getAllRows();
 			
-			// Initialize the filtered list, initially all the elements of the passed-in list. 
-			this.mFilteredList = new ArrayList<Country>();
-			this.mFilteredList.addAll(countryList);
+			// Keep only the pages of rows around the visible ones, and redraw the rows when their page comes in.
+			if (rows != null)
+			{
+				this.mPager = new RowPager(rows, mFilteredRows, PAGE_ROWS, MAX_PAGES, getScanExecutor(),
+						ExecutorFilter.handlerExecutor(mHandler), new RowPager.Listener()
+				{
+					public void onPageLoaded(int firstPosition, int count)
+					{
+						notifyDataSetChanged();
+					}
+					
+					public void onLoadFailed(int firstPosition, Exception e)
+					{
+						Log.w("RowPager", "Couldn't load the rows at " + firstPosition, e);
+					}
+				} );
+			}
+			
+			// Show only the best matches first; the rest are loaded when scrolled to.
+			// Passes that do check every row show the first matches while the rest are checked.
+			getFilter().setTopK(TOP_K);
+			getFilter().setStreaming(true);
+		}
+
+		/* The adapter reads through the filtered rows. */
+
+		@Override
+		public int getCount()
+		{
+			return mFilteredRows.getCount();
+		}
+
+		@Override
+		public CountryRow getItem(int position)
+		{
+			return mShownTable.getRow(mFilteredRows.getRow(position) );
+		}
+
+		@Override
+		public long getItemId(int position)
+		{
+			return mFilteredRows.getRow(position);
 		}
 
 		@Override
-		public Filter getFilter()
+		public CountryFilter getFilter()
 		{
 			// Create only one instance of the CountryFilter.
 			if (mFilter == null)
@@ -154,7 +558,15 @@ public class CustomFilterListViewActivity  extends Activity
 		public View getView(int position, View convertView, ViewGroup parent)
 		{
 			ViewHolder holder = null;
-			Log.v("ConvertView", String.valueOf(position) );
+			long bindStart = mMetrics.startTimer();
+			boolean inflated = (convertView == null);
+			
+			// Load the rest of the matches when the user scrolls near the end of the best ones.
+			if (position >= getCount() - 1 - PRELOAD_ROWS && mFilteredRows instanceof RankedRows
+					&& !( (RankedRows) mFilteredRows).isComplete() )
+			{
+				getFilter().loadAll();
+			}
 			
 			// If the recycled view is not provided, create a new one.
 			if (convertView == null)
@@ -179,25 +591,146 @@ public class CustomFilterListViewActivity  extends Activity
 				holder = (ViewHolder) convertView.getTag();
 			}
 			
-			// Get data for this position.
-			Country country = mFilteredList.get(position);
+			// Get the row for this position, and the page it is on. Without a pager, the table
+			// has the names, and the rows are bound straight from it.
+			int row = mFilteredRows.getRow(position);
+			CountryTable page = mShownTable;
+			int i = row;
+			if (mPager != null)
+			{
+				page = mPager.getPage(position);
+				i = mPager.indexInPage(position);
+			}
+			if (page == null)
+			{
+				// Leave the item blank until its page is loaded; it is redrawn then.
+				holder.code.setText("");
+				holder.name.setText("");
+				holder.continent.setText("");
+				holder.region.setText("");
+				mMetrics.recordBind(bindStart, inflated);
+				return convertView;
+			}
 			
-			// Set the data text on each TextView.
-			holder.code.setText(country.getCode() );
-			holder.name.setText(country.getName() );
-			holder.continent.setText(country.getContinent() );
-			holder.region.setText(country.getRegion() );
+			// Set the data text on each TextView, straight from the page without creating Strings,
+			// or the text with the matches highlighted, usually styled in the worker already.
+			MatchHighlighter.StyledRow styled = mHighlighter.get(row, page, i);
+			if (styled != null && styled.code != null)
+			{
+				holder.code.setText(styled.code);
+			}
+			else
+			{
+				holder.code.setText(page.getCodeChars(), page.getCodeStart(i), page.getCodeLength(i) );
+			}
+			if (styled != null && styled.name != null)
+			{
+				holder.name.setText(styled.name);
+			}
+			else
+			{
+				holder.name.setText(page.getNameChars(), page.getNameStart(i), page.getNameLength(i) );
+			}
+			holder.continent.setText( (styled != null && styled.continent != null) ? styled.continent
+					: page.getContinent(i) );  // Shared dictionary values.
+			holder.region.setText( (styled != null && styled.region != null) ? styled.region : page.getRegion(i) );
 			
+			mMetrics.recordBind(bindStart, inflated);
 			return convertView;
 		}
 
 		/**
 		 * A custom filter that is designed specifically for the countries data.
-		 * Case-insensitive.
+		 * Case- and accent-insensitive. Understands the query syntax of CountryQuery.
+		 * What a pass does is up to a {@link CountryFilterCore}; this runs it and shows its result.
 		 */
-		private class CountryFilter extends Filter
+		private class CountryFilter extends ExecutorFilter
 		{
-			/* No instance variables*/
+			// INSTANCE VARIABLES
+			private final CountryFilterCore mCore = new CountryFilterCore(mStore, mSearcher);  // Worker thread only, but for the options.
+			private String mShownConstraint = "";  // The constraint of the rows shown. Used in the UI thread only.
+			private final AtomicReference<PartialRows> mPendingPartial = new AtomicReference<PartialRows>();
+			private int mCompletedGeneration = -1;  // The generation of the last complete result. UI thread only.
+			private final Runnable mPublishPartial = new Runnable()
+			{
+				public void run()
+				{
+					publishPartial();
+				}
+			};
+			
+			/**
+			 * Turns streaming on or off. Applies from the next request.
+			 * When on, passes that compute every match show the matches found so far, in batches
+			 * and in the order of the result, until the complete result is published as usual.
+			 * With the best matches first, that is when the rest are loaded below them. Listeners passed to
+			 * {@link #submit(CharSequence, Filter.FilterListener)} are still told once, with the total count.
+			 */
+			public void setStreaming(boolean streaming)
+			{
+				mCore.setStreaming(streaming);
+			}
+			
+			/**
+			 * Makes plain constraints compute only the best k matches, by relevance, until
+			 * {@link #loadAll()} asks for the rest. 0 turns it off: every match, in row order.
+			 */
+			public void setTopK(int k)
+			{
+				mCore.setTopK(k);
+			}
+			
+			/**
+			 * Computes every match of the constraint shown now, in the same order as its best matches.
+			 * Does nothing if they are being computed already.
+			 */
+			public void loadAll()
+			{
+				if (mCore.expand(mShownConstraint) )
+				{
+					submit(mShownConstraint);
+				}
+			}
+			
+			/**
+			 * Shows every match in one of the {@link FieldIndex} ORDER_* orders, through the precomputed
+			 * orders of the searcher. ORDER_ROWS turns it off: the best matches first, or row order.
+			 * Applies from the next request.
+			 */
+			public void setSortOrder(int order)
+			{
+				mCore.setSortOrder(order);
+			}
+			
+			/**
+			 * Turns typo-tolerant matching on or off. Applies from the next request.
+			 * When on, plain constraints also match rows with words a small edit distance away,
+			 * best match first.
+			 */
+			public void setFuzzy(boolean fuzzy)
+			{
+				mCore.setFuzzy(fuzzy);
+			}
+			
+			public boolean isFuzzy()
+			{
+				return mCore.isFuzzy();
+			}
+			
+			/** CONSTRUCTOR */
+			CountryFilter()
+			{
+				super(getFilterWorker(), ExecutorFilter.handlerExecutor(mHandler) );
+			}
+			
+			/*
+			 * Invoked in a thread of the framework Filter, for requests made with filter().
+			 */
+			@Override
+			protected FilterResults performFiltering(CharSequence constraint)
+			{
+				return performFiltering(constraint, getGeneration() );
+			}
 			
 			/*
 			 * Invoked in a worker thread to filter the data according to the constraint.
@@ -206,39 +739,44 @@ public class CustomFilterListViewActivity  extends Activity
 			 * through the publishResults method.
 			 */
 			@Override
-			protected FilterResults performFiltering(CharSequence constraint)
+			protected FilterResults performFiltering(CharSequence constraint, final int generation)
 			{
-				// Create a filter result object.
-				FilterResults result = new FilterResults();
+				long start = SystemClock.uptimeMillis();
+				long metricsStart = mMetrics.startTimer();
 				
-				// Ensure that constraint exists and its length is greater than zero.
-				if (constraint != null && constraint.length() > 0)
+				// This pass is superseded as soon as a request is submitted after its own, even before it starts.
+				CancellationToken token = getToken(generation);
+				CountryFilterCore.Result pass = mCore.filter( (constraint == null) ? null : constraint.toString(), token,
+						new CountryFilterCore.PartialListener()
 				{
-					// Filter the original list with the constraint (user-entered filter constraint string).
-					ArrayList<Country> filteredItems = new ArrayList<Country>();
-					for (Country country : mOriginalList)
+					public void onPartial(RowList rows, CountryTable table, char[] highlighted)
 					{
-						if (country.toString().toLowerCase(Locale.US).contains(
-								constraint.toString().toLowerCase(Locale.US) ) )  // Case-insensitive.
-						{
-							filteredItems.add(country);
-						}
+						postPartial(generation, rows, table, highlighted);
 					}
-					
-					// Set the result data.
-					result.count = filteredItems.size();
-					result.values = filteredItems;
-				}
-				else  // When the constraint is null, the original data must be restored.
+				} );
+				
+				if (pass == null)
 				{
-					// The synchronized keyword is used to keep variables or methods thread-safe.
-					synchronized(this)
-					{
-						// Set the result to the original data.
-						result.values = mOriginalList;
-						result.count = mOriginalList.size();
-					}
+					// Superseded; the result is left empty and won't be published.
+					CountryResults result = new CountryResults(generation, null);
+					result.count = -1;
+					return result;
 				}
+				
+				// Create a filter result object.
+				CountryResults result = new CountryResults(generation, pass.getTable() );
+				result.facets = pass.getFacets();
+				
+				// Highlight the matches in the first rows here, so that binding them only sets the text.
+				result.highlighter = new MatchHighlighter(pass.getHighlighted() );
+				result.highlighter.prebuild(pass.getTable(), pass.getRows(), PRESTYLED_ROWS);
+				
+				mDelayer.recordFilterDuration(SystemClock.uptimeMillis() - start);
+				
+				// Set the result data: the change set from the rows shown, or the rows to swap in.
+				result.count = pass.getRows().getCount();
+				result.values = pass.getValues();
+				mMetrics.recordFilter(metricsStart);
 				return result;
 			}
 
@@ -246,27 +784,165 @@ public class CustomFilterListViewActivity  extends Activity
 			 * Invoked in the UI thread to publish the FilterResults.
 			 * Displays the results computed in the performFiltering method.
 			 */
-			@SuppressWarnings("unchecked")
 			@Override
 			protected void publishResults(CharSequence constraint, FilterResults results)
 			{
-				// Remember the filtered data.
-				mFilteredList = (ArrayList<Country>) results.values;
+				long start = mMetrics.startTimer();
+				showResults(constraint, results);
+				mMetrics.recordPublish(start);
+			}
+			
+			private void showResults(CharSequence constraint, FilterResults results)
+			{
+				if (results.values == null)
+				{
+					return;  // Superseded, or performFiltering failed; keep showing the current rows.
+				}
+				if ( (results instanceof CountryResults)
+						&& !isCurrent( ( (CountryResults) results).generation) )
+				{
+					return;  // A newer request is on its way; don't show a stale result.
+				}
+				mCompletedGeneration = ( (CountryResults) results).generation;  // Later partial rows are stale.
+				showTable( ( (CountryResults) results).table);
+				showFacets( ( (CountryResults) results).facets);
+				mHighlighter = ( (CountryResults) results).highlighter;
+				String shown = mShownConstraint;
+				mShownConstraint = (constraint == null) ? "" : constraint.toString();
+				if (results.values instanceof RowList)
+				{
+					// Swap the ranked rows in. For a new constraint, start from the best match;
+					// for the rest of the matches of the same one, stay where the user is.
+					setFilteredRows( (RowList) results.values);
+					(CustomArrayAdapter.this).notifyDataSetChanged();
+					if (!mShownConstraint.equals(shown) )
+					{
+						mListView.setSelection(0);
+					}
+					return;
+				}
 				
-				// Notifies the attached observers that the underlying data has been changed
-				// and any View reflecting the data set should refresh itself.
+				ListDiff diff = (ListDiff) results.values;
+				if (diff.getOldRows() != mFilteredRows)
+				{
+					// The diff is not against what is shown now, e.g. partial rows; swap the rows in.
+					// The partial rows are a prefix of the complete ones, so the rows on screen stay put.
+					setFilteredRows(diff.getNewRows() );
+					(CustomArrayAdapter.this).notifyDataSetChanged();
+					return;
+				}
+				if (!diff.hasChanges() )
+				{
+					return;  // Nothing to redraw.
+				}
+				
+				// Remember which row is at the top of the screen, so that it stays there.
+				int first = mListView.getFirstVisiblePosition();
+				View top = mListView.getChildAt(0);
+				int topOffset = (top == null) ? 0 : top.getTop();
+				
+				// Swap in the filtered rows in one step and notify the observers once.
+				setFilteredRows(diff.getNewRows() );
 				(CustomArrayAdapter.this).notifyDataSetChanged();
 				
-				// Clear the adapter's list and add the filtered data to it.
-				(CustomArrayAdapter.this).clear();  // Clear data in the adapter.
-				for (int i = 0, len = mFilteredList.size(); i < len; i++)
+				// Restore the scroll position to the same row, or to the row that took its place.
+				int newFirst = diff.mapPosition(first);
+				if (newFirst >= 0 && newFirst != first)
 				{
-					(CustomArrayAdapter.this).add(mFilteredList.get(i) );  // Add data to the adapter.
+					mListView.setSelectionFromTop(newFirst, topOffset);
 				}
+			}
+			
+			/**
+			 * Called from the worker thread with the matches found so far.
+			 * Only the latest partial rows are kept, and the UI thread is woken up once
+			 * for however many arrive before it gets to them.
+			 */
+			private void postPartial(int generation, RowList rows, CountryTable table, char[] highlighted)
+			{
+				PartialRows partial = new PartialRows(generation, rows, table, new MatchHighlighter(highlighted) );
+				if (mPendingPartial.getAndSet(partial) == null)
+				{
+					getResultPoster().execute(mPublishPartial);
+				}
+			}
+			
+			/**
+			 * Invoked in the UI thread to show the latest partial rows, unless they are stale.
+			 */
+			private void publishPartial()
+			{
+				PartialRows partial = mPendingPartial.getAndSet(null);
+				if (partial == null || !isCurrent(partial.generation)
+						|| partial.generation == mCompletedGeneration)
+				{
+					return;  // Superseded, or the complete result is shown already.
+				}
+				showTable(partial.table);
+				mHighlighter = partial.highlighter;
+				setFilteredRows(partial.rows);
+				(CustomArrayAdapter.this).notifyDataSetChanged();
+			}
+			
+			/**
+			 * Makes the rows about to be shown rows of the passed-in table. The pages of the pager
+			 * stay valid, as the table of a pager has no names and so keeps its row numbers.
+			 * Used in the UI thread only.
+			 */
+			private void showTable(CountryTable table)
+			{
+				mShownTable = table;
+			}
+			
+			/** Swaps in the rows to show, in display order. Used in the UI thread only. */
+			private void setFilteredRows(RowList rows)
+			{
+				mFilteredRows = rows;
+				if (mPager != null)
+				{
+					mPager.setRows(rows);
+				}
+			}
+			
+			/**
+			 * The matches found so far by a pass of the passed-in generation, the table they are rows of,
+			 * and a highlighter for them, which styles rows as they are bound.
+			 */
+			private class PartialRows
+			{
+				final int generation;
+				final RowList rows;
+				final CountryTable table;
+				final MatchHighlighter highlighter;
+				
+				/** CONSTRUCTOR */
+				PartialRows(int generation, RowList rows, CountryTable table, MatchHighlighter highlighter)
+				{
+					this.generation = generation;
+					this.rows = rows;
+					this.table = table;
+					this.highlighter = highlighter;
+				}
+			}
+			
+			/**
+			 * FilterResults remembering which request generation they were computed for,
+			 * and the table the rows are rows of, along with the facet counts of the rows
+			 * and their highlighted text.
+			 */
+			private class CountryResults extends FilterResults
+			{
+				final int generation;
+				final CountryTable table;
+				FacetCounts facets;
+				MatchHighlighter highlighter;
 				
-				// Notifies the attached observers that the underlying data is no longer valid or available.
-				// Once invoked this adapter is no longer valid and should not report further data set changes.
-				(CustomArrayAdapter.this).notifyDataSetInvalidated();
+				/** CONSTRUCTOR */
+				CountryResults(int generation, CountryTable table)
+				{
+					this.generation = generation;
+					this.table = table;
+				}
 			}
 		}
 	}
@@ -0,0 +1,244 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import android.os.Handler;
+import android.util.Log;
+import android.widget.Filter;
+
+/**
+ * A Filter that runs its requests on a long-lived worker instead of its own HandlerThread.
+ * The framework Filter starts a thread on first use and quits it 3 seconds after the last
+ * request, so each burst of typing pays for the thread start-up again and runs on a thread
+ * whose caches are cold. Requests made with {@link #submit(CharSequence)} go to a worker that
+ * stays up and can be shared by every filter of the process.
+ * <p>
+ * Each filter keeps at most one request waiting: a newer request replaces the waiting one.
+ * Requests are numbered with a generation when they are submitted, see {@link RequestSlot},
+ * so a subclass can tell a request that a newer one superseded from the current one.
+ * Results are handed to an Executor that runs them in the UI thread, normally a Handler's,
+ * so that they can be run some other way, e.g. in a test.
+ * <p>
+ * {@link #filter(CharSequence)} still works as it does in the framework Filter.
+ */
+public abstract class ExecutorFilter extends Filter
+{
+	private static final String LOG_TAG = "ExecutorFilter";
+
+	private final Executor mWorker;
+	private final Executor mResultPoster;
+	private final RequestSlot<Request> mRequests = new RequestSlot<Request>();  // Latest wins.
+	private volatile boolean mClosed = false;
+	private final Runnable mRunPending = new Runnable()
+	{
+		public void run()
+		{
+			runPending();
+		}
+	};
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param worker runs the filtering, one request at a time, e.g. {@link #newWorker(String, int)}
+	 * @param resultPoster runs the publishing in the UI thread, e.g. {@link #handlerExecutor(Handler)}
+	 */
+	public ExecutorFilter(Executor worker, Executor resultPoster)
+	{
+		this.mWorker = worker;
+		this.mResultPoster = resultPoster;
+	}
+
+	/**
+	 * Returns a worker with one thread, started on first use and kept up until the worker
+	 * is shut down. Its thread runs at the passed-in priority, one of the
+	 * android.os.Process.THREAD_PRIORITY_* values, and doesn't keep the process alive.
+	 * Filters submitting to a worker that has been shut down drop their requests.
+	 */
+	public static ExecutorService newWorker(final String name, final int priority)
+	{
+		ThreadFactory factory = new ThreadFactory()
+		{
+			private final AtomicInteger count = new AtomicInteger();
+
+			public Thread newThread(final Runnable runnable)
+			{
+				Thread thread = new Thread(new Runnable()
+				{
+					public void run()
+					{
+						android.os.Process.setThreadPriority(priority);
+						runnable.run();
+					}
+				}, name + "-" + count.incrementAndGet() );
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+		return new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(), factory);
+	}
+
+	/**
+	 * Returns an Executor that posts to the passed-in Handler.
+	 */
+	public static Executor handlerExecutor(final Handler handler)
+	{
+		return new Executor()
+		{
+			public void execute(Runnable runnable)
+			{
+				handler.post(runnable);
+			}
+		};
+	}
+
+	/** Returns the Executor that runs the publishing in the UI thread. */
+	protected Executor getResultPoster()
+	{
+		return mResultPoster;
+	}
+
+	/**
+	 * Starts filtering the data with the constraint on the worker.
+	 * Replaces the request that is still waiting for the worker, if any.
+	 */
+	public void submit(CharSequence constraint)
+	{
+		submit(constraint, null);
+	}
+
+	/**
+	 * Same as {@link #submit(CharSequence)}, and notifies the listener after the results
+	 * are published, as {@link #filter(CharSequence, Filter.FilterListener)} does.
+	 */
+	public void submit(CharSequence constraint, FilterListener listener)
+	{
+		if (mClosed)
+		{
+			return;
+		}
+
+		// Use an immutable copy of the constraint, so that it doesn't change while it is being filtered.
+		Request request = new Request( (constraint == null) ? null : constraint.toString(), listener);
+		if (!mRequests.offer(request) )
+		{
+			return;  // The worker has yet to take the replaced request; it takes this one instead.
+		}
+		try
+		{
+			mWorker.execute(mRunPending);
+		}
+		catch (RejectedExecutionException e)
+		{
+			mRequests.clear();
+			Log.w(LOG_TAG, "The worker is shut down; dropping the request", e);
+		}
+	}
+
+	/**
+	 * Drops the waiting request, supersedes the one being filtered, and stops publishing results,
+	 * for good. Call it when the filter's views go away.
+	 */
+	public void close()
+	{
+		mClosed = true;
+		mRequests.supersede();
+	}
+
+	public boolean isClosed()
+	{
+		return mClosed;
+	}
+
+	/** Returns the generation of the latest request, e.g. for filtering a request made with filter(). */
+	protected int getGeneration()
+	{
+		return mRequests.getGeneration();
+	}
+
+	/** Returns true if no request was submitted after the one of the generation, and the filter isn't closed. */
+	protected boolean isCurrent(int generation)
+	{
+		return mRequests.isCurrent(generation);
+	}
+
+	/** Returns a token that is cancelled as soon as a newer request is submitted or the filter is closed. */
+	protected CancellationToken getToken(int generation)
+	{
+		return mRequests.token(generation);
+	}
+
+	/**
+	 * Invoked in the worker to filter a request made with {@link #submit(CharSequence)}.
+	 * The generation is the one the request got when it was submitted.
+	 * By default the same as {@link #performFiltering(CharSequence)}.
+	 */
+	protected FilterResults performFiltering(CharSequence constraint, int generation)
+	{
+		return performFiltering(constraint);
+	}
+
+	/**
+	 * Invoked in the worker to run the latest request.
+	 */
+	private void runPending()
+	{
+		RequestSlot.Request<Request> taken = mRequests.take();
+		if (taken == null || mClosed)
+		{
+			return;
+		}
+
+		final Request request = taken.getValue();
+		FilterResults results;
+		try
+		{
+			results = performFiltering(request.constraint, taken.getGeneration() );
+		}
+		catch (Exception e)
+		{
+			results = new FilterResults();
+			Log.w(LOG_TAG, "An exception occured during performFiltering()!", e);
+		}
+
+		final FilterResults published = (results == null) ? new FilterResults() : results;
+		mResultPoster.execute(new Runnable()
+		{
+			public void run()
+			{
+				if (mClosed)
+				{
+					return;
+				}
+				publishResults(request.constraint, published);
+				if (request.listener != null)
+				{
+					request.listener.onFilterComplete(published.count);
+				}
+			}
+		} );
+	}
+
+	/**
+	 * A constraint waiting for the worker.
+	 */
+	private static class Request
+	{
+		final String constraint;
+		final FilterListener listener;
+
+		/** CONSTRUCTOR */
+		Request(String constraint, FilterListener listener)
+		{
+			this.constraint = constraint;
+			this.listener = listener;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * How many rows of a filter result are in each continent and each region,
+ * e.g. to show "Asia (3), Europe (2)" next to the filter box.
+ * Counted by dictionary code into int arrays, so counting allocates nothing per row. Immutable.
+ */
+public final class FacetCounts
+{
+	private final CountryTable table;
+	private final int[] continentCounts;  // By continent code.
+	private final int[] regionCounts;  // By region code.
+	private final boolean complete;
+
+	/** CONSTRUCTOR */
+	private FacetCounts(CountryTable table, int[] continentCounts, int[] regionCounts, boolean complete)
+	{
+		this.table = table;
+		this.continentCounts = continentCounts;
+		this.regionCounts = regionCounts;
+		this.complete = complete;
+	}
+
+	/**
+	 * Counts the rows of a result by continent and by region.
+	 *
+	 * @param rows rows of the table
+	 * @param complete false if the rows are only some of the result, e.g. its best matches;
+	 *        the counts are then lower bounds
+	 */
+	public static FacetCounts count(CountryTable table, RowList rows, boolean complete)
+	{
+		int[] continentCounts = new int[table.getContinents().length];
+		int[] regionCounts = new int[table.getRegions().length];
+		if (rows instanceof RowBitmap)
+		{
+			RowBitmap bitmap = (RowBitmap) rows;
+			for (int row = bitmap.nextSetBit(0); row >= 0; row = bitmap.nextSetBit(row + 1) )
+			{
+				continentCounts[table.getContinentCode(row)]++;
+				regionCounts[table.getRegionCode(row)]++;
+			}
+		}
+		else
+		{
+			for (int position = 0, count = rows.getCount(); position < count; position++)
+			{
+				int row = rows.getRow(position);
+				continentCounts[table.getContinentCode(row)]++;
+				regionCounts[table.getRegionCode(row)]++;
+			}
+		}
+		return new FacetCounts(table, continentCounts, regionCounts, complete);
+	}
+
+	/** Returns false if the counts are lower bounds, counted from only some of the result. */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	/** Returns the continent with the code. */
+	public String getContinent(int code)
+	{
+		return table.getContinents()[code];
+	}
+
+	/** Returns the region with the code. */
+	public String getRegion(int code)
+	{
+		return table.getRegions()[code];
+	}
+
+	/** Returns the number of rows in the continent with the code. */
+	public int getContinentCount(int code)
+	{
+		return continentCounts[code];
+	}
+
+	/** Returns the number of rows in the region with the code. */
+	public int getRegionCount(int code)
+	{
+		return regionCounts[code];
+	}
+
+	/** Returns the codes of the continents with rows, the one with the most rows first. */
+	public int[] getContinentCodes()
+	{
+		return byCount(continentCounts);
+	}
+
+	/** Returns the codes of the regions with rows, the one with the most rows first. */
+	public int[] getRegionCodes()
+	{
+		return byCount(regionCounts);
+	}
+
+	/**
+	 * Returns the codes with a non-zero count, by count and then by code.
+	 * There are only a few dozen codes, so an insertion sort does.
+	 */
+	private static int[] byCount(int[] counts)
+	{
+		int n = 0;
+		for (int count : counts)
+		{
+			if (count > 0)
+			{
+				n++;
+			}
+		}
+		int[] codes = new int[n];
+		n = 0;
+		for (int code = 0; code < counts.length; code++)
+		{
+			if (counts[code] == 0)
+			{
+				continue;
+			}
+			int i = n++;
+			while (i > 0 && counts[codes[i - 1]] < counts[code])
+			{
+				codes[i] = codes[i - 1];
+				i--;
+			}
+			codes[i] = code;
+		}
+		return codes;
+	}
+}
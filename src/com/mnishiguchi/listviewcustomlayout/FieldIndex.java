@@ -0,0 +1,544 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.Arrays;
+
+/**
+ * Per-field indexes over a {@link CountryTable}, for queries scoped to one field.
+ * Continents and regions are looked up by exact (folded) value through a posting list per
+ * dictionary code. Codes and names are looked up by prefix through the rows sorted by the
+ * folded field, where the rows with a prefix form one range found by binary search.
+ * <p>
+ * The sorted rows double as sort orders: a result is put in the order of a field by walking
+ * its order and keeping the rows of the result, with no comparisons. Continents and regions
+ * are ordered by value and then by name.
+ * Immutable, so it can be shared between threads.
+ */
+public final class FieldIndex
+{
+	// The orders of getOrder().
+	public static final int ORDER_ROWS = 0;
+	public static final int ORDER_CODE = 1;
+	public static final int ORDER_NAME = 2;
+	public static final int ORDER_CONTINENT = 3;
+	public static final int ORDER_REGION = 4;
+
+	private final CountryTable table;
+	private final RowBitmap live;  // The rows looked up; the others are left out of every result.
+
+	// Rows grouped by dictionary code: the rows of code c are xxxRows[xxxOffsets[c], xxxOffsets[c + 1]).
+	private final int[] continentOffsets;
+	private final int[] continentRows;
+	private final int[] regionOffsets;
+	private final int[] regionRows;
+
+	// Live rows sorted by folded code, by folded name, and by folded continent and region and then name.
+	private final int[] codeOrder;
+	private final int[] nameOrder;
+	private final int[] continentOrder;
+	private final int[] regionOrder;
+
+	/** CONSTRUCTOR: builds every index of the table. */
+	public FieldIndex(CountryTable table)
+	{
+		this(table, RowBitmap.full(table.size() ) );
+	}
+
+	/**
+	 * CONSTRUCTOR: builds every index of the table, over the passed-in rows only,
+	 * e.g. the live rows of a {@link CountryStore} version.
+	 */
+	public FieldIndex(CountryTable table, RowBitmap live)
+	{
+		this(table, live,
+				liveOnly(sortRows(allRows(table.size() ), table.getFoldedCodeChars(), codeRanges(table) ), live),
+				liveOnly(sortRows(allRows(table.size() ), table.getFoldedNameChars(), nameRanges(table) ), live) );
+	}
+
+	/** CONSTRUCTOR: takes the sorted live rows, and groups the rows by continent and region. */
+	private FieldIndex(CountryTable table, RowBitmap live, int[] codeOrder, int[] nameOrder)
+	{
+		this.table = table;
+		this.live = live;
+		this.codeOrder = codeOrder;
+		this.nameOrder = nameOrder;
+
+		// Counting sorts, with no comparisons.
+		int size = table.size();
+		int[] continentCodes = new int[size];
+		int[] regionCodes = new int[size];
+		for (int row = 0; row < size; row++)
+		{
+			continentCodes[row] = table.getContinentCode(row);
+			regionCodes[row] = table.getRegionCode(row);
+		}
+		this.continentOffsets = new int[table.getContinents().length + 1];
+		this.continentRows = groupByCode(continentCodes, continentOffsets);
+		this.regionOffsets = new int[table.getRegions().length + 1];
+		this.regionRows = groupByCode(regionCodes, regionOffsets);
+
+		// Regroup the name order by value; there are only a few dozen values to sort.
+		char[][] foldedContinents = new char[table.getContinents().length][];
+		for (int code = 0; code < foldedContinents.length; code++)
+		{
+			foldedContinents[code] = table.getFoldedContinent(code);
+		}
+		char[][] foldedRegions = new char[table.getRegions().length][];
+		for (int code = 0; code < foldedRegions.length; code++)
+		{
+			foldedRegions[code] = table.getFoldedRegion(code);
+		}
+		this.continentOrder = groupOrder(nameOrder, continentCodes, foldedContinents);
+		this.regionOrder = groupOrder(nameOrder, regionCodes, foldedRegions);
+	}
+
+	/**
+	 * Returns the index of a later version of the table, which has rows appended, over its live rows,
+	 * which are the live rows of this index, less some, plus some of the appended ones.
+	 * Only the appended rows are sorted; each goes into the orders by binary search,
+	 * so a few changed rows cost as much as copying the orders, not sorting them again.
+	 */
+	public FieldIndex extend(CountryTable newTable, RowBitmap newLive)
+	{
+		int oldSize = table.size();
+		if (newTable.size() < oldSize)
+		{
+			throw new IllegalArgumentException("Rows can only be appended: " + newTable.size() + " < " + oldSize);
+		}
+		IntList appended = new IntList();
+		for (int row = newLive.nextSetBit(oldSize); row >= 0; row = newLive.nextSetBit(row + 1) )
+		{
+			appended.add(row);
+		}
+		int[] rows = appended.toArray();
+		char[] codeChars = newTable.getFoldedCodeChars();
+		Ranges codeRanges = codeRanges(newTable);
+		char[] nameChars = newTable.getFoldedNameChars();
+		Ranges nameRanges = nameRanges(newTable);
+		return new FieldIndex(newTable, newLive,
+				insertRows(codeOrder, sortRows(rows, codeChars, codeRanges), codeChars, codeRanges, newLive),
+				insertRows(nameOrder, sortRows(rows, nameChars, nameRanges), nameChars, nameRanges, newLive) );
+	}
+
+	/**
+	 * Returns the live rows of the order with the sorted rows put in, which come after every row
+	 * of the order, so they go after the rows they tie with.
+	 */
+	private static int[] insertRows(int[] order, int[] sorted, char[] chars, Ranges ranges, RowBitmap live)
+	{
+		int[] result = new int[live.cardinality()];
+		int n = 0;
+		int from = 0;
+		for (int row : sorted)
+		{
+			// The first row of the order past the ones the row sorts after or ties with.
+			int lo = from;
+			int hi = order.length;
+			while (lo < hi)
+			{
+				int mid = (lo + hi) >>> 1;
+				if (compare(chars, ranges, order[mid], row) <= 0)
+				{
+					lo = mid + 1;
+				}
+				else
+				{
+					hi = mid;
+				}
+			}
+			n = copyLive(order, from, lo, live, result, n);
+			result[n++] = row;
+			from = lo;
+		}
+		n = copyLive(order, from, order.length, live, result, n);
+		return result;
+	}
+
+	/** Copies the live rows of order[from, to) to result from n. Returns the new n. */
+	private static int copyLive(int[] order, int from, int to, RowBitmap live, int[] result, int n)
+	{
+		for (int p = from; p < to; p++)
+		{
+			if (live.contains(order[p]) )
+			{
+				result[n++] = order[p];
+			}
+		}
+		return n;
+	}
+
+	private static Ranges codeRanges(final CountryTable table)
+	{
+		return new Ranges()
+		{
+			public int start(int row)
+			{
+				return table.getCodeStart(row);
+			}
+
+			public int length(int row)
+			{
+				return table.getCodeLength(row);
+			}
+		};
+	}
+
+	private static Ranges nameRanges(final CountryTable table)
+	{
+		return new Ranges()
+		{
+			public int start(int row)
+			{
+				return table.getNameStart(row);
+			}
+
+			public int length(int row)
+			{
+				return table.getNameLength(row);
+			}
+		};
+	}
+
+	/**
+	 * Returns the rows of the order, grouped by the value of their code with the values in
+	 * folded order, keeping the order within a value.
+	 */
+	private static int[] groupOrder(int[] order, int[] rowCodes, char[][] folded)
+	{
+		// Sort the codes by value, then rank them.
+		int[] codes = new int[folded.length];
+		for (int code = 0; code < codes.length; code++)
+		{
+			int i = code;
+			while (i > 0 && compare(folded[codes[i - 1]], folded[code]) > 0)
+			{
+				codes[i] = codes[i - 1];
+				i--;
+			}
+			codes[i] = code;
+		}
+		int[] ranks = new int[codes.length];
+		for (int rank = 0; rank < codes.length; rank++)
+		{
+			ranks[codes[rank]] = rank;
+		}
+
+		// A counting sort by rank, which keeps the order within a rank.
+		int[] offsets = new int[codes.length + 1];
+		for (int row : order)
+		{
+			offsets[ranks[rowCodes[row]] + 1]++;
+		}
+		for (int r = 1; r < offsets.length; r++)
+		{
+			offsets[r] += offsets[r - 1];
+		}
+		int[] rows = new int[order.length];
+		for (int row : order)
+		{
+			rows[offsets[ranks[rowCodes[row]]]++] = row;
+		}
+		return rows;
+	}
+
+	private static int compare(char[] a, char[] b)
+	{
+		for (int i = 0, n = Math.min(a.length, b.length); i < n; i++)
+		{
+			if (a[i] != b[i])
+			{
+				return a[i] - b[i];
+			}
+		}
+		return a.length - b.length;
+	}
+
+	/** Returns the rows of the order that are live, in the same order. */
+	private static int[] liveOnly(int[] order, RowBitmap live)
+	{
+		if (live.cardinality() == order.length)
+		{
+			return order;
+		}
+		int[] result = new int[live.cardinality()];
+		int n = 0;
+		for (int row : order)
+		{
+			if (live.contains(row) )
+			{
+				result[n++] = row;
+			}
+		}
+		return result;
+	}
+
+	/** Returns the rows whose continent equals the folded value. */
+	public RowBitmap continentRows(char[] folded)
+	{
+		IntList codes = new IntList();
+		String[] continents = table.getContinents();
+		for (int code = 0; code < continents.length; code++)
+		{
+			if (Arrays.equals(table.getFoldedContinent(code), folded) )
+			{
+				codes.add(code);
+			}
+		}
+		return postings(codes, continentOffsets, continentRows);
+	}
+
+	/** Returns the rows whose region equals the folded value. */
+	public RowBitmap regionRows(char[] folded)
+	{
+		IntList codes = new IntList();
+		String[] regions = table.getRegions();
+		for (int code = 0; code < regions.length; code++)
+		{
+			if (Arrays.equals(table.getFoldedRegion(code), folded) )
+			{
+				codes.add(code);
+			}
+		}
+		return postings(codes, regionOffsets, regionRows);
+	}
+
+	/** Returns the rows whose code starts with the folded prefix. */
+	public RowBitmap codePrefixRows(char[] folded)
+	{
+		return prefixRows(codeOrder, table.getFoldedCodeChars(), true, folded);
+	}
+
+	/** Returns the rows whose code equals the folded value. */
+	public RowBitmap codeRows(char[] folded)
+	{
+		RowBitmap prefixed = codePrefixRows(folded);
+		long[] words = new long[prefixed.wordCount()];
+		for (int row = prefixed.nextSetBit(0); row >= 0; row = prefixed.nextSetBit(row + 1) )
+		{
+			if (table.getCodeLength(row) == folded.length)
+			{
+				words[row >>> 6] |= 1L << row;
+			}
+		}
+		return RowBitmap.wrap(words, table.size() );
+	}
+
+	/** Returns the rows whose name starts with the folded prefix. */
+	public RowBitmap namePrefixRows(char[] folded)
+	{
+		return prefixRows(nameOrder, table.getFoldedNameChars(), false, folded);
+	}
+
+	/** Returns the rows sorted by folded code. Must not be modified. */
+	public int[] getCodeOrder()
+	{
+		return codeOrder;
+	}
+
+	/** Returns the rows sorted by folded name. Must not be modified. */
+	public int[] getNameOrder()
+	{
+		return nameOrder;
+	}
+
+	/**
+	 * Returns the live rows in one of the ORDER_* orders, or null for ORDER_ROWS,
+	 * which is row order. Must not be modified.
+	 */
+	public int[] getOrder(int order)
+	{
+		switch (order)
+		{
+			case ORDER_ROWS:
+				return null;
+			case ORDER_CODE:
+				return codeOrder;
+			case ORDER_NAME:
+				return nameOrder;
+			case ORDER_CONTINENT:
+				return continentOrder;
+			case ORDER_REGION:
+				return regionOrder;
+			default:
+				throw new IllegalArgumentException("order: " + order);
+		}
+	}
+
+	private RowBitmap postings(IntList codes, int[] offsets, int[] rows)
+	{
+		long[] words = new long[RowBitmap.wordCount(table.size() )];
+		for (int i = 0; i < codes.size(); i++)
+		{
+			int code = codes.get(i);
+			for (int p = offsets[code], end = offsets[code + 1]; p < end; p++)
+			{
+				words[rows[p] >>> 6] |= 1L << rows[p];
+			}
+		}
+		for (int w = 0; w < words.length; w++)
+		{
+			words[w] &= live.word(w);  // The postings have every row of the table.
+		}
+		return RowBitmap.wrap(words, table.size() );
+	}
+
+	private RowBitmap prefixRows(int[] order, char[] chars, boolean code, char[] prefix)
+	{
+		// The first row not below the prefix, then the first row past the ones starting with it.
+		int lo = 0;
+		int hi = order.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (comparePrefix(chars, order[mid], code, prefix) < 0)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+		int from = lo;
+		hi = order.length;
+		while (lo < hi)
+		{
+			int mid = (lo + hi) >>> 1;
+			if (comparePrefix(chars, order[mid], code, prefix) == 0)
+			{
+				lo = mid + 1;
+			}
+			else
+			{
+				hi = mid;
+			}
+		}
+
+		long[] words = new long[RowBitmap.wordCount(table.size() )];
+		for (int p = from; p < lo; p++)
+		{
+			words[order[p] >>> 6] |= 1L << order[p];
+		}
+		return RowBitmap.wrap(words, table.size() );
+	}
+
+	/**
+	 * Compares the start of a row's field with the prefix: negative if the field sorts before
+	 * the prefix, 0 if it starts with it, positive if it sorts after it.
+	 */
+	private int comparePrefix(char[] chars, int row, boolean code, char[] prefix)
+	{
+		int start = code ? table.getCodeStart(row) : table.getNameStart(row);
+		int length = code ? table.getCodeLength(row) : table.getNameLength(row);
+		for (int i = 0; i < prefix.length; i++)
+		{
+			if (i == length)
+			{
+				return -1;  // The field is a proper prefix of the prefix.
+			}
+			int diff = chars[start + i] - prefix[i];
+			if (diff != 0)
+			{
+				return diff;
+			}
+		}
+		return 0;
+	}
+
+	/**
+	 * Groups rows by their code with a counting sort, keeping row order within a code.
+	 * Fills offsets, which has one more entry than there are codes.
+	 */
+	static int[] groupByCode(int[] codes, int[] offsets)
+	{
+		for (int code : codes)
+		{
+			offsets[code + 1]++;
+		}
+		for (int c = 1; c < offsets.length; c++)
+		{
+			offsets[c] += offsets[c - 1];
+		}
+		int[] next = Arrays.copyOf(offsets, offsets.length - 1);
+		int[] rows = new int[codes.length];
+		for (int row = 0; row < codes.length; row++)
+		{
+			rows[next[codes[row]]++] = row;
+		}
+		return rows;
+	}
+
+	private static int[] allRows(int size)
+	{
+		int[] rows = new int[size];
+		for (int row = 0; row < size; row++)
+		{
+			rows[row] = row;
+		}
+		return rows;
+	}
+
+	/**
+	 * Returns the rows, which are in row order, sorted by their text in chars, ties in row order.
+	 * A merge sort over primitive ints, so nothing is boxed.
+	 */
+	static int[] sortRows(int[] rows, char[] chars, Ranges ranges)
+	{
+		int size = rows.length;
+		rows = rows.clone();
+		int[] buffer = new int[size];
+		for (int width = 1; width < size; width *= 2)
+		{
+			for (int lo = 0; lo < size; lo += 2 * width)
+			{
+				int mid = Math.min(lo + width, size);
+				int hi = Math.min(lo + 2 * width, size);
+				int i = lo;
+				int j = mid;
+				int k = lo;
+				while (i < mid && j < hi)
+				{
+					buffer[k++] = (compare(chars, ranges, rows[j], rows[i]) < 0) ? rows[j++] : rows[i++];
+				}
+				while (i < mid)
+				{
+					buffer[k++] = rows[i++];
+				}
+				while (j < hi)
+				{
+					buffer[k++] = rows[j++];
+				}
+			}
+			int[] swap = rows;
+			rows = buffer;
+			buffer = swap;
+		}
+		return rows;
+	}
+
+	private static int compare(char[] chars, Ranges ranges, int a, int b)
+	{
+		int aStart = ranges.start(a);
+		int aLength = ranges.length(a);
+		int bStart = ranges.start(b);
+		int bLength = ranges.length(b);
+		for (int i = 0, n = Math.min(aLength, bLength); i < n; i++)
+		{
+			int diff = chars[aStart + i] - chars[bStart + i];
+			if (diff != 0)
+			{
+				return diff;
+			}
+		}
+		return aLength - bLength;
+	}
+
+	/**
+	 * Where the text of each row is in a packed char array.
+	 */
+	interface Ranges
+	{
+		int start(int row);
+
+		int length(int row);
+	}
+}
@@ -0,0 +1,328 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Counters and latency histograms of the filtering and of the list binding, for finding out
+ * why a list is slow where it is slow. Off until {@link #setEnabled(boolean)} turns it on;
+ * while off, every recording method returns after one volatile read.
+ * <p>
+ * Timings go through {@link #startTimer()}, which returns 0 while off, so that the clock isn't
+ * read either; a timer started while off is not recorded even if it is turned on meanwhile.
+ * <p>
+ * Everything is counted with atomic adds, without locking, so it can be recorded from the
+ * worker, the scan threads and the UI thread at once. Telemetry pulls the numbers with
+ * {@link #snapshot(boolean)}. Thread-safe.
+ */
+public final class FilterMetrics
+{
+	private static final FilterMetrics DEFAULT = new FilterMetrics();
+
+	private volatile boolean enabled = false;
+
+	private final Histogram filterLatency = new Histogram();
+	private final Histogram publishDuration = new Histogram();
+	private final Histogram bindTime = new Histogram();
+	private final AtomicLong rowsScanned = new AtomicLong();
+	private final AtomicLong rowsMatched = new AtomicLong();
+	private final AtomicLong cacheHits = new AtomicLong();
+	private final AtomicLong cacheMisses = new AtomicLong();
+	private final AtomicLong inflates = new AtomicLong();
+	private final AtomicLong recycles = new AtomicLong();
+
+	/** Returns the metrics shared by the process, which the activity records into. */
+	public static FilterMetrics getDefault()
+	{
+		return DEFAULT;
+	}
+
+	/** Turns the recording on or off. The numbers recorded so far are kept. */
+	public void setEnabled(boolean enabled)
+	{
+		this.enabled = enabled;
+	}
+
+	public boolean isEnabled()
+	{
+		return enabled;
+	}
+
+	/** Returns the time to pass to one of the timer methods, or 0 while off. */
+	public long startTimer()
+	{
+		return enabled ? System.nanoTime() : 0;
+	}
+
+	/** Records a filter pass, from the start of performFiltering to its result. */
+	public void recordFilter(long start)
+	{
+		record(filterLatency, start);
+	}
+
+	/** Records a publishResults. */
+	public void recordPublish(long start)
+	{
+		record(publishDuration, start);
+	}
+
+	/** Records a getView, and whether it inflated a new view or recycled one. */
+	public void recordBind(long start, boolean inflated)
+	{
+		if (start == 0 || !enabled)
+		{
+			return;
+		}
+		record(bindTime, start);
+		(inflated ? inflates : recycles).incrementAndGet();
+	}
+
+	/** Records rows checked against a constraint, and how many of them matched. */
+	public void recordScan(int scanned, int matched)
+	{
+		if (enabled)
+		{
+			rowsScanned.addAndGet(scanned);
+			rowsMatched.addAndGet(matched);
+		}
+	}
+
+	/** Records a lookup of a constraint in the result cache. */
+	public void recordCacheLookup(boolean hit)
+	{
+		if (enabled)
+		{
+			(hit ? cacheHits : cacheMisses).incrementAndGet();
+		}
+	}
+
+	private void record(Histogram histogram, long start)
+	{
+		if (start != 0 && enabled)
+		{
+			histogram.add(System.nanoTime() - start);
+		}
+	}
+
+	/**
+	 * Returns the numbers recorded so far. Each one is read atomically, but not all of them
+	 * at the same instant, so numbers recorded meanwhile may be in some and not in others.
+	 *
+	 * @param reset true to start counting from 0 again, e.g. for telemetry sent at intervals
+	 */
+	public Snapshot snapshot(boolean reset)
+	{
+		return new Snapshot(filterLatency.snapshot(reset), publishDuration.snapshot(reset), bindTime.snapshot(reset),
+				read(rowsScanned, reset), read(rowsMatched, reset), read(cacheHits, reset), read(cacheMisses, reset),
+				read(inflates, reset), read(recycles, reset) );
+	}
+
+	private static long read(AtomicLong counter, boolean reset)
+	{
+		return reset ? counter.getAndSet(0) : counter.get();
+	}
+
+	/**
+	 * A histogram of durations in buckets of powers of 2 microseconds: bucket b has the
+	 * durations below 2^b microseconds that are not in bucket b - 1; the last one has the rest.
+	 */
+	private static final class Histogram
+	{
+		static final int BUCKETS = 24;  // Up to about 8 seconds.
+
+		private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+		private final AtomicLong totalNanos = new AtomicLong();
+
+		void add(long nanos)
+		{
+			long micros = nanos / 1000;
+			int bucket = Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(micros) );
+			counts.incrementAndGet(bucket);
+			totalNanos.addAndGet(nanos);
+		}
+
+		LatencyHistogram snapshot(boolean reset)
+		{
+			long[] copy = new long[BUCKETS];
+			for (int b = 0; b < BUCKETS; b++)
+			{
+				copy[b] = reset ? counts.getAndSet(b, 0) : counts.get(b);
+			}
+			return new LatencyHistogram(copy, reset ? totalNanos.getAndSet(0) : totalNanos.get() );
+		}
+	}
+
+	/**
+	 * The durations recorded for one operation. Immutable.
+	 */
+	public static final class LatencyHistogram
+	{
+		private final long[] counts;
+		private final long totalNanos;
+		private final long count;
+
+		/** CONSTRUCTOR */
+		LatencyHistogram(long[] counts, long totalNanos)
+		{
+			this.counts = counts;
+			this.totalNanos = totalNanos;
+			long count = 0;
+			for (long c : counts)
+			{
+				count += c;
+			}
+			this.count = count;
+		}
+
+		public long getCount()
+		{
+			return count;
+		}
+
+		/** Returns the mean duration in microseconds, or 0 if nothing was recorded. */
+		public long getMeanMicros()
+		{
+			return (count == 0) ? 0 : totalNanos / count / 1000;
+		}
+
+		/**
+		 * Returns an upper bound in microseconds of the duration the passed-in share of the
+		 * operations took at most, e.g. 0.99 for the 99th percentile; at most twice the real one.
+		 */
+		public long getPercentileMicros(double share)
+		{
+			long rank = (long) Math.ceil(share * count);
+			long seen = 0;
+			for (int b = 0; b < counts.length; b++)
+			{
+				seen += counts[b];
+				if (seen >= rank && seen > 0)
+				{
+					return 1L << b;
+				}
+			}
+			return 0;
+		}
+
+		/** Returns the number of durations in a bucket; see {@link #getBucketLimitMicros(int)}. */
+		public long getCountInBucket(int bucket)
+		{
+			return counts[bucket];
+		}
+
+		public int getBucketCount()
+		{
+			return counts.length;
+		}
+
+		/** Returns the duration in microseconds that the durations of a bucket are below, but for the last bucket. */
+		public static long getBucketLimitMicros(int bucket)
+		{
+			return 1L << bucket;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "n=" + count + " mean=" + getMeanMicros() + "us p50<=" + getPercentileMicros(0.5)
+					+ "us p99<=" + getPercentileMicros(0.99) + "us";
+		}
+	}
+
+	/**
+	 * The numbers recorded up to a point in time. Immutable.
+	 */
+	public static final class Snapshot
+	{
+		private final LatencyHistogram filterLatency;
+		private final LatencyHistogram publishDuration;
+		private final LatencyHistogram bindTime;
+		private final long rowsScanned;
+		private final long rowsMatched;
+		private final long cacheHits;
+		private final long cacheMisses;
+		private final long inflates;
+		private final long recycles;
+
+		/** CONSTRUCTOR */
+		Snapshot(LatencyHistogram filterLatency, LatencyHistogram publishDuration, LatencyHistogram bindTime,
+				long rowsScanned, long rowsMatched, long cacheHits, long cacheMisses, long inflates, long recycles)
+		{
+			this.filterLatency = filterLatency;
+			this.publishDuration = publishDuration;
+			this.bindTime = bindTime;
+			this.rowsScanned = rowsScanned;
+			this.rowsMatched = rowsMatched;
+			this.cacheHits = cacheHits;
+			this.cacheMisses = cacheMisses;
+			this.inflates = inflates;
+			this.recycles = recycles;
+		}
+
+		/** Returns the durations of the filter passes that produced a result. */
+		public LatencyHistogram getFilterLatency()
+		{
+			return filterLatency;
+		}
+
+		public LatencyHistogram getPublishDuration()
+		{
+			return publishDuration;
+		}
+
+		public LatencyHistogram getBindTime()
+		{
+			return bindTime;
+		}
+
+		/** Returns the number of rows checked against a constraint one by one. */
+		public long getRowsScanned()
+		{
+			return rowsScanned;
+		}
+
+		/** Returns the number of the scanned rows that matched. */
+		public long getRowsMatched()
+		{
+			return rowsMatched;
+		}
+
+		public long getCacheHits()
+		{
+			return cacheHits;
+		}
+
+		public long getCacheMisses()
+		{
+			return cacheMisses;
+		}
+
+		/** Returns the share of cache lookups that hit, or 0 if there were none. */
+		public double getCacheHitRate()
+		{
+			long lookups = cacheHits + cacheMisses;
+			return (lookups == 0) ? 0 : (double) cacheHits / lookups;
+		}
+
+		/** Returns the number of list items bound into newly inflated views. */
+		public long getInflates()
+		{
+			return inflates;
+		}
+
+		/** Returns the number of list items bound into recycled views. */
+		public long getRecycles()
+		{
+			return recycles;
+		}
+
+		@Override
+		public String toString()
+		{
+			return "filter: " + filterLatency + "; publish: " + publishDuration + "; bind: " + bindTime
+					+ "; scanned " + rowsScanned + ", matched " + rowsMatched
+					+ "; cache hits " + cacheHits + ", misses " + cacheMisses
+					+ "; inflated " + inflates + ", recycled " + recycles;
+		}
+	}
+}
@@ -0,0 +1,604 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * A typo-tolerant index over the words of the codes and names of a {@link CountryTable}.
+ * The distinct words are kept in a BK-tree under Damerau-Levenshtein distance, a metric,
+ * so finding the words within a small distance of a query word visits only a fraction of them
+ * instead of computing the distance to every row. Each word has a posting list of the rows
+ * that have it, and where in the row.
+ * Results are ranked: exact substring matches first, then by edit distance, then by
+ * how early in the row the match is.
+ * Immutable, so it can be shared between threads.
+ */
+public final class FuzzyIndex
+{
+	/** Query words shorter than this are only matched exactly; one typo in two letters is anything. */
+	public static final int MIN_FUZZY_LENGTH = 3;
+
+	/** Where an exact match that is in neither the code nor the name ranks, after matches within them. */
+	private static final int POSITION_ELSEWHERE = 0xFFFF;
+
+	private final CountryTable table;
+	private final RowBitmap live;  // The rows matched; the postings may have others, left out of every result.
+	private final char[][] words;  // Distinct folded words, by word id.
+
+	// Postings: the rows of word w are postingRows[postingOffsets[w], postingOffsets[w + 1]),
+	// with the word's index within the row in postingPositions.
+	private final int[] postingOffsets;
+	private final int[] postingRows;
+	private final int[] postingPositions;
+
+	// BK-tree over the word ids; node ids are word ids, the root is word 0.
+	private final int[][] childWords;
+	private final int[][] childDistances;
+
+	/** CONSTRUCTOR: splits the codes and names into words and indexes them. */
+	public FuzzyIndex(CountryTable table)
+	{
+		this(table, RowBitmap.full(table.size() ) );
+	}
+
+	/**
+	 * CONSTRUCTOR: indexes the passed-in rows only, e.g. the live rows of a {@link CountryStore} version.
+	 */
+	public FuzzyIndex(CountryTable table, RowBitmap live)
+	{
+		this.table = table;
+		this.live = live;
+
+		// Collect (word, row, position) postings.
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		IntList wordIds = new IntList();
+		IntList rows = new IntList();
+		IntList positions = new IntList();
+		for (int row = live.nextSetBit(0); row >= 0; row = live.nextSetBit(row + 1) )
+		{
+			int position = addWords(ids, wordIds, rows, positions, row, 0, table.getFoldedCodeChars(),
+					table.getCodeStart(row), table.getCodeLength(row) );
+			addWords(ids, wordIds, rows, positions, row, position, table.getFoldedNameChars(),
+					table.getNameStart(row), table.getNameLength(row) );
+		}
+
+		this.words = new char[ids.size()][];
+		for (Map.Entry<String, Integer> entry : ids.entrySet() )
+		{
+			words[entry.getValue()] = entry.getKey().toCharArray();
+		}
+
+		// Group the postings by word, keeping row order.
+		int[] ofWord = wordIds.toArray();
+		this.postingOffsets = new int[words.length + 1];
+		int[] order = FieldIndex.groupByCode(ofWord, postingOffsets);
+		this.postingRows = new int[order.length];
+		this.postingPositions = new int[order.length];
+		for (int i = 0; i < order.length; i++)
+		{
+			postingRows[i] = rows.get(order[i]);
+			postingPositions[i] = positions.get(order[i]);
+		}
+
+		// Build the BK-tree by inserting every word under the root.
+		this.childWords = new int[words.length][];
+		this.childDistances = new int[words.length][];
+		for (int w = 1; w < words.length; w++)
+		{
+			insert(words, childWords, childDistances, w);
+		}
+	}
+
+	/** CONSTRUCTOR */
+	private FuzzyIndex(CountryTable table, RowBitmap live, char[][] words, int[] postingOffsets, int[] postingRows,
+			int[] postingPositions, int[][] childWords, int[][] childDistances)
+	{
+		this.table = table;
+		this.live = live;
+		this.words = words;
+		this.postingOffsets = postingOffsets;
+		this.postingRows = postingRows;
+		this.postingPositions = postingPositions;
+		this.childWords = childWords;
+		this.childDistances = childDistances;
+	}
+
+	/**
+	 * Returns the index of a later version of the table, which has rows appended, over its live rows,
+	 * which are the live rows of this index, less some, plus some of the appended ones.
+	 * Only the words of the appended rows are added; rows no longer live are left in the postings,
+	 * and out of the results.
+	 */
+	public FuzzyIndex extend(CountryTable newTable, RowBitmap newLive)
+	{
+		int oldSize = table.size();
+		if (newTable.size() < oldSize)
+		{
+			throw new IllegalArgumentException("Rows can only be appended: " + newTable.size() + " < " + oldSize);
+		}
+
+		// Collect the postings of the appended rows, with ids of their own for now.
+		Map<String, Integer> ids = new HashMap<String, Integer>();
+		IntList wordIds = new IntList();
+		IntList rows = new IntList();
+		IntList positions = new IntList();
+		for (int row = newLive.nextSetBit(oldSize); row >= 0; row = newLive.nextSetBit(row + 1) )
+		{
+			int position = addWords(ids, wordIds, rows, positions, row, 0, newTable.getFoldedCodeChars(),
+					newTable.getCodeStart(row), newTable.getCodeLength(row) );
+			addWords(ids, wordIds, rows, positions, row, position, newTable.getFoldedNameChars(),
+					newTable.getNameStart(row), newTable.getNameLength(row) );
+		}
+
+		// Map them to the ids of the words already indexed, and number the new words after those.
+		int[] idMap = new int[ids.size()];
+		int added = 0;
+		for (Map.Entry<String, Integer> entry : ids.entrySet() )
+		{
+			char[] word = entry.getKey().toCharArray();
+			int id = find(word);
+			if (id < 0)
+			{
+				id = words.length + added++;
+			}
+			idMap[entry.getValue()] = id;
+		}
+		char[][] newWords = Arrays.copyOf(words, words.length + added);
+		for (Map.Entry<String, Integer> entry : ids.entrySet() )
+		{
+			int id = idMap[entry.getValue()];
+			if (id >= words.length)
+			{
+				newWords[id] = entry.getKey().toCharArray();
+			}
+		}
+
+		// Group the new postings by word, and put them after the ones of the same word, keeping row order.
+		int[] ofWord = new int[wordIds.size()];
+		for (int i = 0; i < ofWord.length; i++)
+		{
+			ofWord[i] = idMap[wordIds.get(i)];
+		}
+		int[] addedOffsets = new int[newWords.length + 1];
+		int[] order = FieldIndex.groupByCode(ofWord, addedOffsets);
+		int[] newOffsets = new int[newWords.length + 1];
+		int[] newRows = new int[postingRows.length + order.length];
+		int[] newPositions = new int[newRows.length];
+		int p = 0;
+		for (int w = 0; w < newWords.length; w++)
+		{
+			newOffsets[w] = p;
+			if (w < words.length)
+			{
+				int length = postingOffsets[w + 1] - postingOffsets[w];
+				System.arraycopy(postingRows, postingOffsets[w], newRows, p, length);
+				System.arraycopy(postingPositions, postingOffsets[w], newPositions, p, length);
+				p += length;
+			}
+			for (int i = addedOffsets[w]; i < addedOffsets[w + 1]; i++)
+			{
+				newRows[p] = rows.get(order[i]);
+				newPositions[p++] = positions.get(order[i]);
+			}
+		}
+		newOffsets[newWords.length] = p;
+
+		// Insert the new words into a copy of the BK-tree; insert copies the nodes it changes.
+		int[][] newChildWords = Arrays.copyOf(childWords, newWords.length);
+		int[][] newChildDistances = Arrays.copyOf(childDistances, newWords.length);
+		for (int w = Math.max(words.length, 1); w < newWords.length; w++)
+		{
+			insert(newWords, newChildWords, newChildDistances, w);
+		}
+		return new FuzzyIndex(newTable, newLive, newWords, newOffsets, newRows, newPositions,
+				newChildWords, newChildDistances);
+	}
+
+	/** Returns the id of the word, or -1 if it is not indexed. */
+	private int find(char[] word)
+	{
+		int node = 0;
+		while (node < words.length)
+		{
+			int distance = distance(words[node], word);
+			if (distance == 0)
+			{
+				return node;
+			}
+			int[] children = childWords[node];
+			int c = 0;
+			while (children != null && c < children.length && childDistances[node][c] != distance)
+			{
+				c++;
+			}
+			if (children == null || c == children.length)
+			{
+				return -1;
+			}
+			node = children[c];  // The word can only be under the child at the same distance.
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the rows matching the folded constraint, best first.
+	 * Every word of the constraint must match a word of the row within the edit distance
+	 * allowed for its length, or the whole constraint must be a substring of a field.
+	 *
+	 * @param exact the rows where the constraint is a substring of a field, ranked first
+	 */
+	public RankedRows search(char[] folded, RowBitmap exact)
+	{
+		// Rank the exact matches by the word the constraint starts in, numbered as the postings are,
+		// so that they rank alongside the fuzzy matches.
+		char[] codes = table.getFoldedCodeChars();
+		char[] names = table.getFoldedNameChars();
+		long[] ranked = new long[exact.cardinality()];
+		int n = 0;
+		for (int row = exact.nextSetBit(0); row >= 0; row = exact.nextSetBit(row + 1) )
+		{
+			int codeStart = table.getCodeStart(row);
+			int codeEnd = codeStart + table.getCodeLength(row);
+			int nameStart = table.getNameStart(row);
+			int nameEnd = nameStart + table.getNameLength(row);
+			int position = POSITION_ELSEWHERE;
+			int at = SearchText.indexOf(codes, codeStart, codeEnd, folded);
+			if (at >= 0)
+			{
+				position = wordsBefore(codes, codeStart, codeEnd, at);
+			}
+			else if ( (at = SearchText.indexOf(names, nameStart, nameEnd, folded) ) >= 0)
+			{
+				position = wordsBefore(codes, codeStart, codeEnd, codeEnd) + wordsBefore(names, nameStart, nameEnd, at);
+			}
+			ranked[n++] = score(0, position, row);
+		}
+
+		// Then the rows whose words are all close to the words of the constraint.
+		long[] fuzzy = fuzzyMatches(folded);
+		long[] all = Arrays.copyOf(ranked, n + fuzzy.length);
+		int m = n;
+		for (long match : fuzzy)
+		{
+			if (!exact.contains(rowOf(match) ) )
+			{
+				all[m++] = match;
+			}
+		}
+		Arrays.sort(all, 0, m);
+
+		int[] rows = new int[m];
+		for (int i = 0; i < m; i++)
+		{
+			rows[i] = rowOf(all[i]);
+		}
+		return new RankedRows(rows);
+	}
+
+	/** Returns the edit distance allowed for a query word of the passed-in length. */
+	public static int maxDistance(int length)
+	{
+		return (length < MIN_FUZZY_LENGTH) ? 0 : (length < 6) ? 1 : 2;
+	}
+
+	/**
+	 * Returns the scores of the rows whose words are all within distance of the query words,
+	 * in row order.
+	 */
+	private long[] fuzzyMatches(char[] folded)
+	{
+		long[] result = null;
+		int start = -1;
+		for (int i = 0; i <= folded.length; i++)
+		{
+			boolean inWord = i < folded.length && Character.isLetterOrDigit(folded[i]);
+			if (inWord && start < 0)
+			{
+				start = i;
+			}
+			else if (!inWord && start >= 0)
+			{
+				long[] matches = wordMatches(Arrays.copyOfRange(folded, start, i) );
+				result = (result == null) ? matches : intersect(result, matches);
+				start = -1;
+				if (result.length == 0)
+				{
+					break;
+				}
+			}
+		}
+		return (result == null) ? new long[0] : result;
+	}
+
+	/**
+	 * Returns the best score of every row with a word within distance of the query word, in row order.
+	 */
+	private long[] wordMatches(char[] query)
+	{
+		int maxDistance = maxDistance(query.length);
+		if (maxDistance == 0 || words.length == 0)
+		{
+			return new long[0];
+		}
+
+		// Find the close words in the BK-tree, then collect their postings.
+		IntList found = new IntList();
+		IntList distances = new IntList();
+		IntList stack = new IntList();
+		stack.add(0);
+		while (stack.size() > 0)
+		{
+			int node = stack.get(stack.size() - 1);
+			stack.removeLast();
+			int distance = distance(words[node], query);  // Exact, for the pruning below.
+			if (distance <= maxDistance)
+			{
+				found.add(node);
+				distances.add(distance);
+			}
+			int[] children = childWords[node];
+			if (children == null)
+			{
+				continue;
+			}
+			int[] childDistance = childDistances[node];
+			for (int c = 0; c < children.length; c++)
+			{
+				// By the triangle inequality, only children this close can be within distance.
+				if (Math.abs(childDistance[c] - distance) <= maxDistance)
+				{
+					stack.add(children[c]);
+				}
+			}
+		}
+
+		int total = 0;
+		for (int i = 0; i < found.size(); i++)
+		{
+			int w = found.get(i);
+			total += postingOffsets[w + 1] - postingOffsets[w];
+		}
+		long[] scores = new long[total];
+		int n = 0;
+		for (int i = 0; i < found.size(); i++)
+		{
+			int w = found.get(i);
+			for (int p = postingOffsets[w]; p < postingOffsets[w + 1]; p++)
+			{
+				if (live.contains(postingRows[p]) )
+				{
+					scores[n++] = score(distances.get(i), postingPositions[p], postingRows[p]);
+				}
+			}
+		}
+
+		// Keep the best score of each row, in row order.
+		for (int i = 0; i < n; i++)
+		{
+			scores[i] = byRow(scores[i]);
+		}
+		Arrays.sort(scores, 0, n);
+		int m = 0;
+		for (int i = 0; i < n; i++)
+		{
+			if (m == 0 || rowOf(fromByRow(scores[m - 1]) ) != rowOf(fromByRow(scores[i]) ) )
+			{
+				scores[m++] = scores[i];
+			}
+		}
+		for (int i = 0; i < m; i++)
+		{
+			scores[i] = fromByRow(scores[i]);
+		}
+		return Arrays.copyOf(scores, m);
+	}
+
+	/**
+	 * Intersects two score lists in row order. The scores of a row are added up,
+	 * keeping the earlier position.
+	 */
+	private static long[] intersect(long[] a, long[] b)
+	{
+		long[] result = new long[Math.min(a.length, b.length)];
+		int i = 0;
+		int j = 0;
+		int n = 0;
+		while (i < a.length && j < b.length)
+		{
+			int rowA = rowOf(a[i]);
+			int rowB = rowOf(b[j]);
+			if (rowA < rowB)
+			{
+				i++;
+			}
+			else if (rowB < rowA)
+			{
+				j++;
+			}
+			else
+			{
+				result[n++] = score(distanceOf(a[i]) + distanceOf(b[j]),
+						Math.min(positionOf(a[i]), positionOf(b[j]) ), rowA);
+				i++;
+				j++;
+			}
+		}
+		return Arrays.copyOf(result, n);
+	}
+
+	private static void insert(char[][] words, int[][] childWords, int[][] childDistances, int word)
+	{
+		int node = 0;
+		while (true)
+		{
+			int distance = distance(words[node], words[word]);
+			int[] children = childWords[node];
+			int c = 0;
+			while (children != null && c < children.length && childDistances[node][c] != distance)
+			{
+				c++;
+			}
+			if (children != null && c < children.length)
+			{
+				node = children[c];  // Descend into the child at the same distance.
+				continue;
+			}
+			int length = (children == null) ? 0 : children.length;
+			childWords[node] = (children == null) ? new int[1] : Arrays.copyOf(children, length + 1);
+			childDistances[node] = (children == null) ? new int[1] : Arrays.copyOf(childDistances[node], length + 1);
+			childWords[node][length] = word;
+			childDistances[node][length] = distance;
+			return;
+		}
+	}
+
+	/**
+	 * Returns the Damerau-Levenshtein distance between a and b: the fewest insertions, deletions,
+	 * substitutions and transpositions of adjacent characters that turn one into the other,
+	 * where a transposed pair may still be edited around. Unlike the restricted variant, which
+	 * edits every substring at most once, it obeys the triangle inequality, which the BK-tree
+	 * relies on: e.g. "ca" to "abc" is 2, through "ac".
+	 */
+	static int distance(char[] a, char[] b)
+	{
+		// d[i + 1][j + 1] is the distance between the first i chars of a and the first j of b;
+		// row and column 0 are a bound that no transposition can come from.
+		int bound = a.length + b.length;
+		int[][] d = new int[a.length + 2][b.length + 2];
+		d[0][0] = bound;
+		for (int i = 0; i <= a.length; i++)
+		{
+			d[i + 1][0] = bound;
+			d[i + 1][1] = i;
+		}
+		for (int j = 0; j <= b.length; j++)
+		{
+			d[0][j + 1] = bound;
+			d[1][j + 1] = j;
+		}
+
+		// The last row of a each char was seen in, for the chars seen so far; words are short.
+		char[] seenChars = new char[a.length];
+		int[] seenRows = new int[a.length];
+		int seen = 0;
+		for (int i = 1; i <= a.length; i++)
+		{
+			int lastMatch = 0;  // The last column of this row where a[i - 1] matched.
+			for (int j = 1; j <= b.length; j++)
+			{
+				int k = 0;  // The last row before i with the char b[j - 1].
+				for (int s = 0; s < seen; s++)
+				{
+					if (seenChars[s] == b[j - 1])
+					{
+						k = seenRows[s];
+						break;
+					}
+				}
+				int l = lastMatch;
+				int cost = 1;
+				if (a[i - 1] == b[j - 1])
+				{
+					cost = 0;
+					lastMatch = j;
+				}
+				d[i + 1][j + 1] = Math.min(Math.min(d[i][j] + cost, d[i + 1][j] + 1),
+						Math.min(d[i][j + 1] + 1, d[k][l] + (i - k - 1) + 1 + (j - l - 1) ) );
+			}
+			int s = 0;
+			while (s < seen && seenChars[s] != a[i - 1])
+			{
+				s++;
+			}
+			seenChars[s] = a[i - 1];
+			seenRows[s] = i;
+			seen = Math.max(seen, s + 1);
+		}
+		return d[a.length + 1][b.length + 1];
+	}
+
+	/**
+	 * Adds the words of text[start, start + length) for a row, numbering them from position.
+	 * Returns the position after the last word.
+	 */
+	private static int addWords(Map<String, Integer> ids, IntList wordIds, IntList rows, IntList positions,
+			int row, int position, char[] text, int start, int length)
+	{
+		int wordStart = -1;
+		for (int i = start, end = start + length; i <= end; i++)
+		{
+			boolean inWord = i < end && Character.isLetterOrDigit(text[i]);
+			if (inWord && wordStart < 0)
+			{
+				wordStart = i;
+			}
+			else if (!inWord && wordStart >= 0)
+			{
+				String word = new String(text, wordStart, i - wordStart);
+				Integer id = ids.get(word);
+				if (id == null)
+				{
+					id = ids.size();
+					ids.put(word, id);
+				}
+				wordIds.add(id);
+				rows.add(row);
+				positions.add(position++);
+				wordStart = -1;
+			}
+		}
+		return position;
+	}
+
+	/**
+	 * Returns the number of words of text[start, end) that end at or before the index, as
+	 * {@link #addWords} splits them; i.e. the position of the word the index is in, or of the
+	 * next word if the index is between words.
+	 */
+	private static int wordsBefore(char[] text, int start, int end, int index)
+	{
+		int count = 0;
+		for (int i = start + 1; i <= index; i++)
+		{
+			if (Character.isLetterOrDigit(text[i - 1]) && (i == end || !Character.isLetterOrDigit(text[i]) ) )
+			{
+				count++;
+			}
+		}
+		return count;
+	}
+
+	/* A score packs distance, position and row into a long that sorts best first. */
+
+	private static long score(int distance, int position, int row)
+	{
+		return ( (long) Math.min(distance, 0x7FFF) << 48) | ( (long) Math.min(position, 0xFFFF) << 32) | row;
+	}
+
+	private static int distanceOf(long score)
+	{
+		return (int) (score >>> 48);
+	}
+
+	private static int positionOf(long score)
+	{
+		return (int) (score >>> 32) & 0xFFFF;
+	}
+
+	private static int rowOf(long score)
+	{
+		return (int) score;
+	}
+
+	/** Rearranges a score to sort by row first. */
+	private static long byRow(long score)
+	{
+		return ( (long) rowOf(score) << 32) | (score >>> 32);
+	}
+
+	private static long fromByRow(long byRow)
+	{
+		return (byRow << 32) | (byRow >>> 32);
+	}
+}
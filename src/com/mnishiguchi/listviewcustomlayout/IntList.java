@@ -0,0 +1,71 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.Arrays;
+
+/**
+ * A growable list of primitive ints. Avoids boxing in the filtering hot paths.
+ */
+public final class IntList
+{
+	private int[] values;
+	private int size;
+
+	/** CONSTRUCTOR */
+	public IntList()
+	{
+		this(16);
+	}
+
+	/** CONSTRUCTOR */
+	public IntList(int initialCapacity)
+	{
+		values = new int[Math.max(initialCapacity, 1)];
+	}
+
+	public void add(int value)
+	{
+		if (size == values.length)
+		{
+			values = Arrays.copyOf(values, size * 2);
+		}
+		values[size++] = value;
+	}
+
+	public int get(int index)
+	{
+		return values[index];
+	}
+
+	public void set(int index, int value)
+	{
+		values[index] = value;
+	}
+
+	/** Removes the last value. */
+	public void removeLast()
+	{
+		size--;
+	}
+
+	/** Returns the last value, or -1 if the list is empty. */
+	public int last()
+	{
+		return (size == 0) ? -1 : values[size - 1];
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		size = 0;
+	}
+
+	/** Returns a copy of the values trimmed to the size. */
+	public int[] toArray()
+	{
+		return Arrays.copyOf(values, size);
+	}
+}
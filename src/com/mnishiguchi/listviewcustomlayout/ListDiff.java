@@ -0,0 +1,187 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * The change set between two filtered lists, as runs of unchanged, removed and inserted rows.
+ * Both lists are row bitmaps shown in row order, so the diff is computed in one pass over
+ * their words, which is cheap enough to run on the filter's worker thread for every pass.
+ * Immutable.
+ */
+public final class ListDiff
+{
+	/** Rows in both lists. */
+	public static final int UNCHANGED = 0;
+	/** Rows only in the old list. */
+	public static final int REMOVED = 1;
+	/** Rows only in the new list. */
+	public static final int INSERTED = 2;
+
+	private static final int OP_WIDTH = 4;  // type, old start, new start, length
+
+	private final RowBitmap oldRows;
+	private final RowBitmap newRows;
+	private final int[] ops;
+	private final boolean changed;
+
+	/** CONSTRUCTOR */
+	private ListDiff(RowBitmap oldRows, RowBitmap newRows, int[] ops, boolean changed)
+	{
+		this.oldRows = oldRows;
+		this.newRows = newRows;
+		this.ops = ops;
+		this.changed = changed;
+	}
+
+	/**
+	 * Computes the change set between two sets of rows over the same data.
+	 * The new rows may be over more rows, if rows were appended to the data in between.
+	 */
+	public static ListDiff compute(RowBitmap oldRows, RowBitmap newRows)
+	{
+		IntList ops = new IntList();
+		boolean changed = false;
+		int i = 0;  // Position in the old list.
+		int j = 0;  // Position in the new list.
+		int oldWords = oldRows.wordCount();
+		for (int w = 0, words = Math.max(oldWords, newRows.wordCount() ); w < words; w++)
+		{
+			long oldWord = (w < oldWords) ? oldRows.word(w) : 0;
+			long newWord = (w < newRows.wordCount() ) ? newRows.word(w) : 0;
+			long bits = oldWord | newWord;
+			if (oldWord == newWord)
+			{
+				// The common case: a whole word is unchanged.
+				if (bits != 0)
+				{
+					int count = Long.bitCount(bits);
+					addRun(ops, UNCHANGED, i, j, count);
+					i += count;
+					j += count;
+				}
+				continue;
+			}
+			while (bits != 0)
+			{
+				long bit = bits & -bits;
+				bits &= bits - 1;
+				int type;
+				if ( (newWord & bit) == 0)
+				{
+					type = REMOVED;
+				}
+				else if ( (oldWord & bit) == 0)
+				{
+					type = INSERTED;
+				}
+				else
+				{
+					type = UNCHANGED;
+				}
+				changed |= (type != UNCHANGED);
+				addRun(ops, type, i, j, 1);
+				if (type != INSERTED)
+				{
+					i++;
+				}
+				if (type != REMOVED)
+				{
+					j++;
+				}
+			}
+		}
+		return new ListDiff(oldRows, newRows, ops.toArray(), changed);
+	}
+
+	/**
+	 * Extends the last run if it is of the same type, otherwise starts a new one.
+	 */
+	private static void addRun(IntList ops, int type, int oldStart, int newStart, int length)
+	{
+		int size = ops.size();
+		if (size > 0 && ops.get(size - OP_WIDTH) == type)
+		{
+			ops.set(size - 1, ops.get(size - 1) + length);
+		}
+		else
+		{
+			ops.add(type);
+			ops.add(oldStart);
+			ops.add(newStart);
+			ops.add(length);
+		}
+	}
+
+	public RowBitmap getOldRows()
+	{
+		return oldRows;
+	}
+
+	public RowBitmap getNewRows()
+	{
+		return newRows;
+	}
+
+	/** Returns true if any row was removed or inserted. */
+	public boolean hasChanges()
+	{
+		return changed;
+	}
+
+	/** Returns the number of runs. */
+	public int getRunCount()
+	{
+		return ops.length / OP_WIDTH;
+	}
+
+	/** Returns the type of a run: {@link #UNCHANGED}, {@link #REMOVED} or {@link #INSERTED}. */
+	public int getRunType(int run)
+	{
+		return ops[run * OP_WIDTH];
+	}
+
+	/** Returns the position in the old list where a run starts. */
+	public int getRunOldStart(int run)
+	{
+		return ops[run * OP_WIDTH + 1];
+	}
+
+	/** Returns the position in the new list where a run starts. */
+	public int getRunNewStart(int run)
+	{
+		return ops[run * OP_WIDTH + 2];
+	}
+
+	/** Returns the number of rows in a run. */
+	public int getRunLength(int run)
+	{
+		return ops[run * OP_WIDTH + 3];
+	}
+
+	/**
+	 * Maps a position in the old list to the position of the same row in the new list.
+	 * If the row was removed, returns the position of the row that took its place.
+	 * Returns -1 if the new list is empty.
+	 */
+	public int mapPosition(int oldPosition)
+	{
+		if (newRows.cardinality() == 0)
+		{
+			return -1;
+		}
+		for (int run = 0, runs = getRunCount(); run < runs; run++)
+		{
+			int type = getRunType(run);
+			int oldStart = getRunOldStart(run);
+			if (type == INSERTED || oldPosition >= oldStart + getRunLength(run) )
+			{
+				continue;
+			}
+			int newPosition = getRunNewStart(run);
+			if (type == UNCHANGED)
+			{
+				newPosition += oldPosition - oldStart;
+			}
+			return Math.min(newPosition, newRows.cardinality() - 1);
+		}
+		return newRows.cardinality() - 1;
+	}
+}
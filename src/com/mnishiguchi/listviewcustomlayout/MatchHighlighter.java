@@ -0,0 +1,156 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import android.graphics.Typeface;
+import android.text.SpannableString;
+import android.text.Spanned;
+import android.text.style.BackgroundColorSpan;
+import android.text.style.StyleSpan;
+
+/**
+ * Styled text of rows with the matches of a constraint highlighted, cached by row.
+ * Folding keeps the length of a text, so the offsets of a match in the folded field are
+ * the offsets to highlight in the field itself.
+ * <p>
+ * The filter styles the first rows of a result in the worker, so that binding them only sets
+ * ready-made text; other rows are styled when they are first bound. Filled in one thread,
+ * then handed over to the UI thread with the result and used there only.
+ */
+final class MatchHighlighter
+{
+	/** Styled rows kept at most; about a screenful of rows either way of the visible ones. */
+	private static final int MAX_STYLED_ROWS = 128;
+
+	private static final int HIGHLIGHT_COLOR = 0x66FFEB3B;  // A translucent yellow.
+
+	/** A row without a match in any field: its fields are bound as they are. */
+	private static final StyledRow UNSTYLED = new StyledRow(null, null, null, null);
+
+	private final char[] folded;
+	private final Map<Integer, StyledRow> rows = new LinkedHashMap<Integer, StyledRow>(16, 0.75f, true)
+	{
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<Integer, StyledRow> eldest)
+		{
+			return size() > MAX_STYLED_ROWS;
+		}
+	};
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param folded the folded constraint whose matches to highlight; empty to highlight nothing
+	 */
+	MatchHighlighter(char[] folded)
+	{
+		this.folded = folded;
+	}
+
+	/**
+	 * Styles the rows at the first positions of a result, e.g. in the worker,
+	 * so that they are ready when they are first bound. Does nothing for a table without names,
+	 * whose rows are styled from their pages as they are bound.
+	 */
+	void prebuild(CountryTable table, RowList result, int count)
+	{
+		if (folded.length == 0 || !table.hasNames() )
+		{
+			return;
+		}
+		for (int position = 0, end = Math.min(count, result.getCount() ); position < end; position++)
+		{
+			int row = result.getRow(position);
+			rows.put(row, style(table, row) );
+		}
+	}
+
+	/**
+	 * Returns the styled text of a row, styling it if it isn't already, or null if the row
+	 * has nothing to highlight.
+	 *
+	 * @param row the row number, by which the styled text is cached
+	 * @param page a table with the row, e.g. a page of a {@link RowPager}
+	 * @param index the index of the row in the page
+	 */
+	StyledRow get(int row, CountryTable page, int index)
+	{
+		if (folded.length == 0)
+		{
+			return null;
+		}
+		StyledRow styled = rows.get(row);
+		if (styled == null)
+		{
+			styled = style(page, index);
+			rows.put(row, styled);
+		}
+		return (styled == UNSTYLED) ? null : styled;
+	}
+
+	private StyledRow style(CountryTable table, int row)
+	{
+		int codeStart = table.getCodeStart(row);
+		int nameStart = table.getNameStart(row);
+		CharSequence code = style(table.getCodeChars(), table.getFoldedCodeChars(), codeStart,
+				codeStart + table.getCodeLength(row) );
+		CharSequence name = style(table.getNameChars(), table.getFoldedNameChars(), nameStart,
+				nameStart + table.getNameLength(row) );
+		String continent = table.getContinent(row);
+		String region = table.getRegion(row);
+		CharSequence styledContinent = style(continent.toCharArray(), table.getFoldedContinent(table.getContinentCode(row) ),
+				0, continent.length() );
+		CharSequence styledRegion = style(region.toCharArray(), table.getFoldedRegion(table.getRegionCode(row) ),
+				0, region.length() );
+		if (code == null && name == null && styledContinent == null && styledRegion == null)
+		{
+			return UNSTYLED;
+		}
+		return new StyledRow(code, name, styledContinent, styledRegion);
+	}
+
+	/**
+	 * Returns the text chars[from, to) with every match in the folded copy highlighted,
+	 * or null if there is none.
+	 */
+	private CharSequence style(char[] chars, char[] foldedChars, int from, int to)
+	{
+		int match = SearchText.indexOf(foldedChars, from, to, folded);
+		if (match < 0)
+		{
+			return null;
+		}
+		SpannableString text = new SpannableString(new String(chars, from, to - from) );
+		while (match >= 0)
+		{
+			// A span object marks one range only, so each match gets its own.
+			int start = match - from;
+			int end = start + folded.length;
+			text.setSpan(new BackgroundColorSpan(HIGHLIGHT_COLOR), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+			text.setSpan(new StyleSpan(Typeface.BOLD), start, end, Spanned.SPAN_EXCLUSIVE_EXCLUSIVE);
+			match = SearchText.indexOf(foldedChars, match + folded.length, to, folded);
+		}
+		return text;
+	}
+
+	/**
+	 * The text of the fields of a row; null for a field without a match, which is bound as it is.
+	 */
+	static final class StyledRow
+	{
+		final CharSequence code;
+		final CharSequence name;
+		final CharSequence continent;
+		final CharSequence region;
+
+		/** CONSTRUCTOR */
+		StyledRow(CharSequence code, CharSequence name, CharSequence continent, CharSequence region)
+		{
+			this.code = code;
+			this.name = name;
+			this.continent = continent;
+			this.region = region;
+		}
+	}
+}
@@ -0,0 +1,15 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * Receives the matches found so far while a long search is still running,
+ * so that they can be shown before the search is over.
+ */
+public interface ProgressListener
+{
+	/**
+	 * Called from the searching thread, in row order, each time more matches are found.
+	 * The partial result is final for the rows before checkedRows and empty after them,
+	 * so each one extends the one before and the complete result extends the last one.
+	 */
+	void onProgress(RowBitmap partial, int checkedRows);
+}
@@ -0,0 +1,44 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * Filter result rows in an explicit order, e.g. best match first.
+ * May hold only the best rows of a larger result, see {@link #isComplete()}. Immutable.
+ */
+public final class RankedRows implements RowList
+{
+	private final int[] rows;
+	private final boolean complete;
+
+	/** CONSTRUCTOR: takes ownership of the rows, which are the whole result. */
+	public RankedRows(int[] rows)
+	{
+		this(rows, true);
+	}
+
+	/**
+	 * CONSTRUCTOR: takes ownership of the rows.
+	 *
+	 * @param complete false if there are more matching rows than these
+	 */
+	public RankedRows(int[] rows, boolean complete)
+	{
+		this.rows = rows;
+		this.complete = complete;
+	}
+
+	/** Returns false if only the best rows of a larger result are here. */
+	public boolean isComplete()
+	{
+		return complete;
+	}
+
+	public int getCount()
+	{
+		return rows.length;
+	}
+
+	public int getRow(int position)
+	{
+		return rows[position];
+	}
+}
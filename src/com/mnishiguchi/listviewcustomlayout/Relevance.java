@@ -0,0 +1,87 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * How well a row matches a constraint, as a tier: lower is better.
+ * Within a tier, rows keep their order in the table.
+ */
+public final class Relevance
+{
+	/** The code is the constraint. */
+	public static final int EXACT_CODE = 0;
+	/** The name starts with the constraint. */
+	public static final int NAME_PREFIX = 1;
+	/** A word of some field starts with the constraint. */
+	public static final int WORD_PREFIX = 2;
+	/** The constraint is somewhere inside a field. */
+	public static final int SUBSTRING = 3;
+	/** The row doesn't match at all. */
+	public static final int NONE = 4;
+
+	/** The number of tiers of matching rows. */
+	public static final int TIER_COUNT = 4;
+
+	/** CONSTRUCTOR: not instantiable. */
+	private Relevance()
+	{
+	}
+
+	/**
+	 * Returns the tier of a row for the folded constraint, or {@link #NONE}.
+	 */
+	public static int tier(CountryTable table, int row, char[] folded)
+	{
+		char[] codes = table.getFoldedCodeChars();
+		int codeStart = table.getCodeStart(row);
+		int codeEnd = codeStart + table.getCodeLength(row);
+		char[] names = table.getFoldedNameChars();
+		int nameStart = table.getNameStart(row);
+		int nameEnd = nameStart + table.getNameLength(row);
+
+		if (codeEnd - codeStart == folded.length && SearchText.indexOf(codes, codeStart, codeEnd, folded) == codeStart)
+		{
+			return EXACT_CODE;
+		}
+		if (startsWith(names, nameStart, nameEnd, folded) )
+		{
+			return NAME_PREFIX;
+		}
+
+		int best = Math.min(tier(codes, codeStart, codeEnd, folded), tier(names, nameStart, nameEnd, folded) );
+		if (best == WORD_PREFIX)
+		{
+			return best;
+		}
+		char[] continent = table.getFoldedContinent(table.getContinentCode(row) );
+		best = Math.min(best, tier(continent, 0, continent.length, folded) );
+		if (best == WORD_PREFIX)
+		{
+			return best;
+		}
+		char[] region = table.getFoldedRegion(table.getRegionCode(row) );
+		return Math.min(best, tier(region, 0, region.length, folded) );
+	}
+
+	/**
+	 * Returns {@link #WORD_PREFIX} if a word of text[from, to) starts with the constraint,
+	 * {@link #SUBSTRING} if it is elsewhere in it, {@link #NONE} otherwise.
+	 */
+	private static int tier(char[] text, int from, int to, char[] folded)
+	{
+		int result = NONE;
+		for (int at = SearchText.indexOf(text, from, to, folded); at >= 0;
+				at = SearchText.indexOf(text, at + 1, to, folded) )
+		{
+			if (at == from || !Character.isLetterOrDigit(text[at - 1]) )
+			{
+				return WORD_PREFIX;
+			}
+			result = SUBSTRING;
+		}
+		return result;
+	}
+
+	private static boolean startsWith(char[] text, int from, int to, char[] folded)
+	{
+		return to - from >= folded.length && SearchText.indexOf(text, from, from + folded.length, folded) == from;
+	}
+}
@@ -0,0 +1,98 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * The request waiting for a worker, latest wins, and the generations of the requests.
+ * Each request is numbered with the next generation when it is submitted, not when the worker
+ * gets to it, so a request that a newer one was submitted after is superseded even if the worker
+ * hasn't started it yet: its token is cancelled from the start, and its result is stale.
+ * <p>
+ * Plain Java, so that the replay harness submits and supersedes requests through the same code
+ * as {@link ExecutorFilter}. Thread-safe.
+ */
+public final class RequestSlot<T>
+{
+	private final AtomicInteger generation = new AtomicInteger();
+	private final AtomicReference<Request<T>> pending = new AtomicReference<Request<T>>();
+
+	/**
+	 * Submits a request under the next generation, replacing the waiting one, which is superseded.
+	 * Returns false if a request was waiting already, so the worker has been told to take one.
+	 */
+	public boolean offer(T value)
+	{
+		Request<T> request = new Request<T>(value, generation.incrementAndGet() );
+		return pending.getAndSet(request) == null;
+	}
+
+	/** Takes the waiting request, or returns null if there is none. Called from the worker. */
+	public Request<T> take()
+	{
+		return pending.getAndSet(null);
+	}
+
+	/** Drops the waiting request, e.g. when the worker can't be told to take it. */
+	public void clear()
+	{
+		pending.set(null);
+	}
+
+	/** Drops the waiting request and supersedes every request submitted so far. */
+	public void supersede()
+	{
+		generation.incrementAndGet();
+		pending.set(null);
+	}
+
+	/** Returns the generation of the latest request. */
+	public int getGeneration()
+	{
+		return generation.get();
+	}
+
+	/** Returns true if no request was submitted after the one of the generation. */
+	public boolean isCurrent(int requestGeneration)
+	{
+		return generation.get() == requestGeneration;
+	}
+
+	/** Returns a token that is cancelled as soon as a request is submitted after the one of the generation. */
+	public CancellationToken token(final int requestGeneration)
+	{
+		return new CancellationToken()
+		{
+			public boolean isCancelled()
+			{
+				return generation.get() != requestGeneration;
+			}
+		};
+	}
+
+	/**
+	 * A submitted value and its generation. Immutable.
+	 */
+	public static final class Request<T>
+	{
+		private final T value;
+		private final int generation;
+
+		/** CONSTRUCTOR */
+		Request(T value, int generation)
+		{
+			this.value = value;
+			this.generation = generation;
+		}
+
+		public T getValue()
+		{
+			return value;
+		}
+
+		public int getGeneration()
+		{
+			return generation;
+		}
+	}
+}
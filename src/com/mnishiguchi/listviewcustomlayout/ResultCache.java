@@ -0,0 +1,202 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A least-recently-used cache of filter results, keyed by the folded constraint.
+ * It is bounded by the memory the results take rather than by their number, since a result
+ * costs the same whatever it matches but grows with the size of the data.
+ * Besides exact lookups, it finds the narrowest cached result a new constraint must be a subset of,
+ * so that a constraint extending a cached one only has to check that result.
+ * Thread-safe.
+ */
+public final class ResultCache
+{
+	/** The default memory budget. */
+	public static final long DEFAULT_MAX_BYTES = 4L * 1024 * 1024;
+
+	private final LinkedHashMap<String, RowBitmap> entries =
+			new LinkedHashMap<String, RowBitmap>(16, 0.75f, true);  // In access order.
+	private final long maxBytes;
+	private long bytes;
+	private long hits;
+	private long misses;
+	private long evictions;
+
+	/** CONSTRUCTOR */
+	public ResultCache(long maxBytes)
+	{
+		this.maxBytes = maxBytes;
+	}
+
+	/**
+	 * Returns the cached result for the folded constraint, or null. Counts a hit or a miss.
+	 */
+	public synchronized RowBitmap get(char[] folded)
+	{
+		RowBitmap result = entries.get(new String(folded) );
+		if (result == null)
+		{
+			misses++;
+		}
+		else
+		{
+			hits++;
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the cached result with the fewest rows whose constraint is contained in
+	 * the folded constraint, or null. Does not count as a hit or a miss.
+	 */
+	public synchronized RowBitmap findNarrowestSuperset(char[] folded)
+	{
+		RowBitmap best = null;
+		String bestKey = null;
+		for (Map.Entry<String, RowBitmap> entry : entries.entrySet() )
+		{
+			RowBitmap result = entry.getValue();
+			if ( (best == null || result.cardinality() < best.cardinality() )
+					&& contains(folded, entry.getKey() ) )
+			{
+				best = result;
+				bestKey = entry.getKey();
+			}
+		}
+		if (bestKey != null)
+		{
+			entries.get(bestKey);  // Mark it as recently used.
+		}
+		return best;
+	}
+
+	/**
+	 * Caches a result, evicting the least recently used ones until it fits in the budget.
+	 * A result bigger than the whole budget is not cached.
+	 */
+	public synchronized void put(char[] folded, RowBitmap result)
+	{
+		long size = estimateBytes(folded, result);
+		if (size > maxBytes)
+		{
+			return;
+		}
+		RowBitmap previous = entries.put(new String(folded), result);
+		if (previous != null)
+		{
+			bytes -= estimateBytes(folded, previous);
+		}
+		bytes += size;
+
+		Iterator<Map.Entry<String, RowBitmap>> it = entries.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext() )
+		{
+			Map.Entry<String, RowBitmap> eldest = it.next();
+			bytes -= estimateBytes(eldest.getKey().toCharArray(), eldest.getValue() );
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/**
+	 * Replaces every result with the one the updater makes out of it, e.g. after rows were
+	 * appended to the data or removed from it. Keeps the order of use; evicts if the results grew.
+	 * A null from the updater drops the entry.
+	 */
+	public synchronized void updateAll(Updater updater)
+	{
+		bytes = 0;
+		Iterator<Map.Entry<String, RowBitmap>> it = entries.entrySet().iterator();
+		while (it.hasNext() )
+		{
+			Map.Entry<String, RowBitmap> entry = it.next();
+			char[] folded = entry.getKey().toCharArray();
+			RowBitmap result = updater.update(folded, entry.getValue() );
+			if (result == null)
+			{
+				it.remove();
+				continue;
+			}
+			entry.setValue(result);
+			bytes += estimateBytes(folded, result);
+		}
+
+		it = entries.entrySet().iterator();
+		while (bytes > maxBytes && it.hasNext() )
+		{
+			Map.Entry<String, RowBitmap> eldest = it.next();
+			bytes -= estimateBytes(eldest.getKey().toCharArray(), eldest.getValue() );
+			it.remove();
+			evictions++;
+		}
+	}
+
+	/** Makes an up-to-date result out of a cached one. */
+	public interface Updater
+	{
+		/** Returns the new result for the folded constraint, or null to drop it. */
+		RowBitmap update(char[] folded, RowBitmap result);
+	}
+
+	/**
+	 * Drops every entry. Must be called whenever the data the results refer to changes.
+	 */
+	public synchronized void invalidate()
+	{
+		entries.clear();
+		bytes = 0;
+	}
+
+	public synchronized long getHitCount()
+	{
+		return hits;
+	}
+
+	public synchronized long getMissCount()
+	{
+		return misses;
+	}
+
+	public synchronized long getEvictionCount()
+	{
+		return evictions;
+	}
+
+	public synchronized int getEntryCount()
+	{
+		return entries.size();
+	}
+
+	/** Returns the memory the cached results take, in bytes. */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	private static long estimateBytes(char[] folded, RowBitmap result)
+	{
+		return 64 + 2L * folded.length + result.estimateBytes();  // Map entry and key overhead included.
+	}
+
+	/** String.contains over a char array, without allocating. */
+	private static boolean contains(char[] text, String part)
+	{
+		int n = part.length();
+		for (int i = 0, last = text.length - n; i <= last; i++)
+		{
+			int j = 0;
+			while (j < n && text[i + j] == part.charAt(j) )
+			{
+				j++;
+			}
+			if (j == n)
+			{
+				return true;
+			}
+		}
+		return false;
+	}
+}
@@ -0,0 +1,293 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.Arrays;
+
+/**
+ * An immutable set of row numbers in [0, size), stored as one bit per row.
+ * Filter results are kept this way instead of as copied lists of rows: a result costs
+ * size / 8 bytes however many rows match, and AND/OR/ANDNOT of two results are word-wise
+ * operations. A small rank directory built up front makes {@link #select(int)}, which maps
+ * a list position to a row, fast enough to call from getView.
+ * Being immutable, a bitmap can be handed from the worker thread to the UI thread as it is.
+ */
+public final class RowBitmap implements RowList
+{
+	private static final int WORDS_PER_BLOCK = 8;  // Rows per rank directory entry: 512
+
+	private final long[] words;
+	private final int size;
+	private final int cardinality;
+	private final int[] blockRanks;  // blockRanks[b]: the number of rows before block b.
+
+	/** CONSTRUCTOR: takes ownership of the words. */
+	private RowBitmap(long[] words, int size)
+	{
+		this.words = words;
+		this.size = size;
+		this.blockRanks = new int[(words.length + WORDS_PER_BLOCK - 1) / WORDS_PER_BLOCK];
+		int count = 0;
+		for (int w = 0; w < words.length; w++)
+		{
+			if (w % WORDS_PER_BLOCK == 0)
+			{
+				blockRanks[w / WORDS_PER_BLOCK] = count;
+			}
+			count += Long.bitCount(words[w]);
+		}
+		this.cardinality = count;
+	}
+
+	/** Returns the number of words needed for the passed-in number of rows. */
+	public static int wordCount(int size)
+	{
+		return (size + 63) >>> 6;
+	}
+
+	/**
+	 * Wraps words filled in by the caller, which must not touch them afterwards.
+	 * Bits at or above size must be clear.
+	 */
+	public static RowBitmap wrap(long[] words, int size)
+	{
+		if (words.length != wordCount(size) )
+		{
+			throw new IllegalArgumentException("Expected " + wordCount(size) + " words, got " + words.length);
+		}
+		return new RowBitmap(words, size);
+	}
+
+	/** Returns a bitmap with no rows. */
+	public static RowBitmap empty(int size)
+	{
+		return new RowBitmap(new long[wordCount(size)], size);
+	}
+
+	/** Returns a bitmap with every row. */
+	public static RowBitmap full(int size)
+	{
+		long[] words = new long[wordCount(size)];
+		Arrays.fill(words, -1L);
+		if ( (size & 63) != 0)
+		{
+			words[words.length - 1] = (1L << (size & 63) ) - 1;
+		}
+		return new RowBitmap(words, size);
+	}
+
+	/** Returns a bitmap with the passed-in rows, which need not be sorted. */
+	public static RowBitmap of(int[] rows, int size)
+	{
+		long[] words = new long[wordCount(size)];
+		for (int row : rows)
+		{
+			words[row >>> 6] |= 1L << row;
+		}
+		return new RowBitmap(words, size);
+	}
+
+	/** Returns the number of rows the bitmap is over, i.e. one more than the largest possible row. */
+	public int size()
+	{
+		return size;
+	}
+
+	/** Returns the number of rows in the set. */
+	public int cardinality()
+	{
+		return cardinality;
+	}
+
+	/** Same as {@link #cardinality()}: the rows are shown in row order. */
+	public int getCount()
+	{
+		return cardinality;
+	}
+
+	/** Same as {@link #select(int)}. */
+	public int getRow(int position)
+	{
+		return select(position);
+	}
+
+	public boolean isEmpty()
+	{
+		return cardinality == 0;
+	}
+
+	/** Returns the number of words. */
+	public int wordCount()
+	{
+		return words.length;
+	}
+
+	/** Returns the word holding rows [64 * index, 64 * index + 64). */
+	public long word(int index)
+	{
+		return words[index];
+	}
+
+	public boolean contains(int row)
+	{
+		return (words[row >>> 6] & (1L << row) ) != 0;
+	}
+
+	/** Returns the first row at or after the passed-in one, or -1 if there is none. */
+	public int nextSetBit(int from)
+	{
+		if (from >= size)
+		{
+			return -1;
+		}
+		int w = from >>> 6;
+		long word = words[w] & (-1L << from);
+		while (true)
+		{
+			if (word != 0)
+			{
+				return (w << 6) + Long.numberOfTrailingZeros(word);
+			}
+			if (++w == words.length)
+			{
+				return -1;
+			}
+			word = words[w];
+		}
+	}
+
+	/** Returns the number of rows in the set that are smaller than the passed-in row. */
+	public int rank(int row)
+	{
+		if (row >= size)
+		{
+			return cardinality;
+		}
+		int w = row >>> 6;
+		int count = blockRanks[w / WORDS_PER_BLOCK];
+		for (int i = w - w % WORDS_PER_BLOCK; i < w; i++)
+		{
+			count += Long.bitCount(words[i]);
+		}
+		return count + Long.bitCount(words[w] & ( (1L << row) - 1) );
+	}
+
+	/**
+	 * Returns the row at a position of the set in row order, i.e. the row r with rank(r) == position.
+	 */
+	public int select(int position)
+	{
+		if (position < 0 || position >= cardinality)
+		{
+			throw new IndexOutOfBoundsException("Position " + position + ", cardinality " + cardinality);
+		}
+
+		// Find the last block starting at or before the position, then the word within it.
+		int lo = 0;
+		int hi = blockRanks.length - 1;
+		while (lo < hi)
+		{
+			int mid = (lo + hi + 1) >>> 1;
+			if (blockRanks[mid] <= position)
+			{
+				lo = mid;
+			}
+			else
+			{
+				hi = mid - 1;
+			}
+		}
+		int remaining = position - blockRanks[lo];
+		int w = lo * WORDS_PER_BLOCK;
+		int bits = Long.bitCount(words[w]);
+		while (remaining >= bits)
+		{
+			remaining -= bits;
+			bits = Long.bitCount(words[++w]);
+		}
+
+		// Drop the lowest set bits of the word until the wanted one is the lowest.
+		long word = words[w];
+		for (int i = 0; i < remaining; i++)
+		{
+			word &= word - 1;
+		}
+		return (w << 6) + Long.numberOfTrailingZeros(word);
+	}
+
+	public RowBitmap and(RowBitmap other)
+	{
+		checkSize(other);
+		long[] result = new long[words.length];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = words[i] & other.words[i];
+		}
+		return new RowBitmap(result, size);
+	}
+
+	public RowBitmap or(RowBitmap other)
+	{
+		checkSize(other);
+		long[] result = new long[words.length];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = words[i] | other.words[i];
+		}
+		return new RowBitmap(result, size);
+	}
+
+	/** Returns the rows of this set that are not in the other one. */
+	public RowBitmap andNot(RowBitmap other)
+	{
+		checkSize(other);
+		long[] result = new long[words.length];
+		for (int i = 0; i < result.length; i++)
+		{
+			result[i] = words[i] & ~other.words[i];
+		}
+		return new RowBitmap(result, size);
+	}
+
+	/**
+	 * Returns the same rows in a universe of another size, e.g. after rows were appended
+	 * to the data. Rows at or above the new size are dropped.
+	 */
+	public RowBitmap withSize(int newSize)
+	{
+		if (newSize == size)
+		{
+			return this;
+		}
+		long[] result = Arrays.copyOf(words, wordCount(newSize) );
+		if (newSize < size && (newSize & 63) != 0)
+		{
+			result[result.length - 1] &= (1L << (newSize & 63) ) - 1;
+		}
+		return new RowBitmap(result, newSize);
+	}
+
+	/** Returns the rows in row order. */
+	public int[] toArray()
+	{
+		int[] rows = new int[cardinality];
+		int p = 0;
+		for (int row = nextSetBit(0); row >= 0; row = nextSetBit(row + 1) )
+		{
+			rows[p++] = row;
+		}
+		return rows;
+	}
+
+	/** Returns the approximate number of bytes the bitmap takes on the heap. */
+	public long estimateBytes()
+	{
+		return 48 + 8L * words.length + 4L * blockRanks.length;
+	}
+
+	private void checkSize(RowBitmap other)
+	{
+		if (other.size != size)
+		{
+			throw new IllegalArgumentException("Size mismatch: " + size + " vs " + other.size);
+		}
+	}
+}
@@ -0,0 +1,13 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+/**
+ * The rows of a filter result in display order. The adapter reads through one of these.
+ */
+public interface RowList
+{
+	/** Returns the number of rows. */
+	int getCount();
+
+	/** Returns the row shown at a position. */
+	int getRow(int position);
+}
@@ -0,0 +1,257 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Keeps the display data of a window of the rows shown around the visible position, one page
+ * of positions at a time, so that the heap used for showing rows stays the same however many rows
+ * there are. Pages are taken by position in the rows shown, which may be filtered, ranked or sorted
+ * rows from anywhere in the table. Pages next to the visible one are loaded ahead in the background,
+ * and pages far from it are dropped. A page is a small {@link CountryTable} of the rows at its positions.
+ * Used from the UI thread only, except for the source, which is read from the loader.
+ * Plain Java, like the rest of the core; failures are reported to the listener, to be logged.
+ */
+public final class RowPager
+{
+	/** Reads rows, e.g. out of a snapshot file. Must be thread-safe. */
+	public interface Source
+	{
+		/** Returns the rows as a table whose row i is rows[i]. */
+		CountryTable load(int[] rows) throws IOException;
+	}
+
+	/** Told in the UI thread when a page is loaded, so that its rows can be redrawn, or when it couldn't be. */
+	public interface Listener
+	{
+		void onPageLoaded(int firstPosition, int count);
+
+		/** The page is loaded again when it is next asked for. */
+		void onLoadFailed(int firstPosition, Exception e);
+	}
+
+	private final Source source;
+	private final int pageRows;
+	private final int maxPages;
+	private final Executor loader;
+	private final Executor resultPoster;
+	private final Listener listener;
+	private RowList rows;  // The rows shown, in display order.
+	private final Map<Integer, Page> pages = new HashMap<Integer, Page>();
+	private final Set<Integer> loading = new HashSet<Integer>();
+	private int visiblePage = -1;
+	private int generation = 0;  // Incremented by clear(), so that pages loaded before are dropped.
+
+	/**
+	 * CONSTRUCTOR
+	 *
+	 * @param rows the rows shown, in display order
+	 * @param pageRows the number of rows per page
+	 * @param maxPages the number of pages kept at most; at least 3, for the pages around the visible one
+	 * @param loader runs the loading in the background
+	 * @param resultPoster runs the loaded pages in the UI thread, e.g. {@link ExecutorFilter#handlerExecutor}
+	 */
+	public RowPager(Source source, RowList rows, int pageRows, int maxPages, Executor loader, Executor resultPoster,
+			Listener listener)
+	{
+		if (pageRows <= 0 || maxPages < 3)
+		{
+			throw new IllegalArgumentException("pageRows: " + pageRows + ", maxPages: " + maxPages);
+		}
+		this.source = source;
+		this.rows = rows;
+		this.pageRows = pageRows;
+		this.maxPages = maxPages;
+		this.loader = loader;
+		this.resultPoster = resultPoster;
+		this.listener = listener;
+	}
+
+	/**
+	 * Returns the page with the position, or null if it is not loaded yet, in which case it is loaded
+	 * and the listener is told when it is. Also makes the position the visible one, so the pages
+	 * around it are loaded ahead and the pages far from it are dropped.
+	 * Read the row of the position in the page at {@link #indexInPage(int)}.
+	 */
+	public CountryTable getPage(int position)
+	{
+		int page = position / pageRows;
+		if (page != visiblePage)
+		{
+			visiblePage = page;
+			load(page + 1);
+			load(page - 1);
+			evict();
+		}
+		Page loaded = pages.get(page);
+		if (loaded == null)
+		{
+			load(page);
+			return null;
+		}
+		return loaded.table;
+	}
+
+	/** Returns the index of the position in its page. */
+	public int indexInPage(int position)
+	{
+		return position % pageRows;
+	}
+
+	/** Returns the number of pages in memory. */
+	public int getPageCount()
+	{
+		return pages.size();
+	}
+
+	/**
+	 * Replaces the rows shown. The pages whose positions still hold the same rows are kept,
+	 * e.g. the first ones when more matches are appended; the others are dropped.
+	 * Pages being loaded are kept on arrival only if they hold the same rows too.
+	 */
+	public void setRows(RowList rows)
+	{
+		this.rows = rows;
+		loading.clear();  // So that the pages of the new rows are loaded when asked for.
+		for (Iterator<Map.Entry<Integer, Page>> i = pages.entrySet().iterator(); i.hasNext(); )
+		{
+			Map.Entry<Integer, Page> entry = i.next();
+			if (!entry.getValue().isAt(rows, entry.getKey() * pageRows, pageRows) )
+			{
+				i.remove();
+			}
+		}
+	}
+
+	/** Drops every page, e.g. after the source has changed. Pages being loaded are dropped on arrival. */
+	public void clear()
+	{
+		pages.clear();
+		loading.clear();
+		generation++;
+	}
+
+	private void load(final int page)
+	{
+		final int first = page * pageRows;
+		int rowCount = rows.getCount();
+		if (page < 0 || first >= rowCount || pages.containsKey(page) || !loading.add(page) )
+		{
+			return;
+		}
+		final int[] pageRowNumbers = new int[Math.min(pageRows, rowCount - first)];
+		for (int i = 0; i < pageRowNumbers.length; i++)
+		{
+			pageRowNumbers[i] = rows.getRow(first + i);
+		}
+		final int loadGeneration = generation;
+		try
+		{
+			loader.execute(new Runnable()
+			{
+				public void run()
+				{
+					final CountryTable table;
+					try
+					{
+						table = source.load(pageRowNumbers);
+					}
+					catch (final IOException e)
+					{
+						resultPoster.execute(new Runnable()
+						{
+							public void run()
+							{
+								if (loadGeneration == generation)
+								{
+									loading.remove(page);  // Tried again when the page is next asked for.
+								}
+								listener.onLoadFailed(first, e);
+							}
+						} );
+						return;
+					}
+					resultPoster.execute(new Runnable()
+					{
+						public void run()
+						{
+							if (loadGeneration != generation)
+							{
+								return;  // Cleared in the meantime.
+							}
+							loading.remove(page);
+							Page loaded = new Page(pageRowNumbers, table);
+							if (loaded.isAt(rows, first, pageRows) )  // Else other rows are shown there now; loaded again if asked for.
+							{
+								pages.put(page, loaded);
+								evict();
+								listener.onPageLoaded(first, pageRowNumbers.length);
+							}
+						}
+					} );
+				}
+			} );
+		}
+		catch (RejectedExecutionException e)
+		{
+			loading.remove(page);
+			listener.onLoadFailed(first, e);  // The loader is shut down.
+		}
+	}
+
+	/** Drops the pages farthest from the visible one until at most maxPages are left. */
+	private void evict()
+	{
+		while (pages.size() > maxPages)
+		{
+			int farthest = visiblePage;
+			for (Integer page : pages.keySet() )
+			{
+				if (Math.abs(page - visiblePage) > Math.abs(farthest - visiblePage) )
+				{
+					farthest = page;
+				}
+			}
+			pages.remove(farthest);
+		}
+	}
+
+	/**
+	 * The rows of a page, and their display data.
+	 */
+	private static final class Page
+	{
+		final int[] rows;
+		final CountryTable table;
+
+		/** CONSTRUCTOR */
+		Page(int[] rows, CountryTable table)
+		{
+			this.rows = rows;
+			this.table = table;
+		}
+
+		/** Returns true if this is the page of the passed-in rows from the first position, of pageRows positions. */
+		boolean isAt(RowList shown, int first, int pageRows)
+		{
+			if (rows.length != Math.min(pageRows, shown.getCount() - first) )
+			{
+				return false;  // More or fewer rows are shown there now.
+			}
+			for (int i = 0; i < rows.length; i++)
+			{
+				if (shown.getRow(first + i) != rows[i])
+				{
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+}
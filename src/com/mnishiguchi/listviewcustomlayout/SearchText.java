@@ -0,0 +1,112 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.text.Normalizer;
+
+/**
+ * Text folding and matching helpers used for filtering.
+ * Folding is case- and accent-insensitive and always keeps the length of the input,
+ * so an offset into a folded text is also an offset into the original text.
+ */
+public final class SearchText
+{
+	/** An empty folded text. */
+	public static final char[] EMPTY = new char[0];
+
+	/** CONSTRUCTOR: not instantiable. */
+	private SearchText()
+	{
+	}
+
+	/**
+	 * Folds a single character: lower case, accents stripped, control characters replaced with a space.
+	 */
+	public static char fold(char c)
+	{
+		// Fast path for ASCII, which is most of the data.
+		if (c < 0x80)
+		{
+			if (c >= 'A' && c <= 'Z')
+			{
+				return (char) (c + ('a' - 'A') );
+			}
+			return Character.isISOControl(c) ? ' ' : c;
+		}
+		if (Character.isISOControl(c) )
+		{
+			return ' ';
+		}
+		if (Character.isHighSurrogate(c) || Character.isLowSurrogate(c) )
+		{
+			return c;  // Leave supplementary characters alone.
+		}
+
+		// Decompose the character and keep its base character only, e.g. an accented "e" becomes "e".
+		String decomposed = Normalizer.normalize(String.valueOf(c), Normalizer.Form.NFD);
+		char base = decomposed.charAt(0);
+		if (Character.getType(base) == Character.NON_SPACING_MARK)
+		{
+			base = c;  // A lone combining mark; keep it as it is.
+		}
+		return Character.toLowerCase(base);
+	}
+
+	/**
+	 * Folds a text into a new array of the same length.
+	 * Returns {@link #EMPTY} for null.
+	 */
+	public static char[] fold(CharSequence text)
+	{
+		if (text == null || text.length() == 0)
+		{
+			return EMPTY;
+		}
+		char[] folded = new char[text.length()];
+		for (int i = 0; i < folded.length; i++)
+		{
+			folded[i] = fold(text.charAt(i) );
+		}
+		return folded;
+	}
+
+	/**
+	 * Returns true if the folded text contains the folded constraint. Allocates nothing.
+	 *
+	 * @param key a text folded by {@link #fold(CharSequence)}
+	 * @param folded a constraint folded by {@link #fold(CharSequence)}
+	 */
+	public static boolean contains(char[] key, char[] folded)
+	{
+		return indexOf(key, 0, key.length, folded) >= 0;
+	}
+
+	/**
+	 * Returns the index of the first occurrence of the folded constraint within key[from, to),
+	 * or -1 if there is none. Allocates nothing.
+	 */
+	public static int indexOf(char[] key, int from, int to, char[] folded)
+	{
+		int n = folded.length;
+		if (n == 0)
+		{
+			return from;
+		}
+		char first = folded[0];
+		for (int i = from, last = to - n; i <= last; i++)
+		{
+			if (key[i] != first)
+			{
+				continue;
+			}
+			int j = 1;
+			while (j < n && key[i + j] == folded[j])
+			{
+				j++;
+			}
+			if (j == n)
+			{
+				return i;
+			}
+		}
+		return -1;
+	}
+}
@@ -0,0 +1,343 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * An inverted index from every trigram (three consecutive folded characters) of the fields
+ * of a {@link CountryTable} to the sorted rows that have it in some field.
+ * A substring query intersects the posting lists of its trigrams to get a small candidate set,
+ * which then has to be verified, because the trigrams of a row need not be adjacent.
+ * Trigrams never span two fields, since each field is indexed on its own.
+ * Rows appended to the table later go into a tail of small indexes, which {@link #extend} adds
+ * the trigrams of the appended rows to, so the postings of the other rows are not copied for every change.
+ * Immutable, so it can be shared between threads.
+ */
+public final class TrigramIndex
+{
+	/** Queries shorter than this can't be answered by the index. */
+	public static final int GRAM_LENGTH = 3;
+
+	// The postings are stored in one array: the rows of keys[i] are postings[offsets[i], offsets[i + 1]).
+	private final long[] keys;  // Sorted packed trigrams.
+	private final int[] offsets;
+	private final int[] postings;
+	private final int baseRows;  // The rows the arrays above were built over: [0, baseRows).
+	private final int rowCount;
+	// The rows appended since, [baseRows, rowCount): indexes over runs of them, in row order.
+	// Each has more postings than twice the next one, so there are few of them.
+	private final TrigramIndex[] tail;
+
+	/** CONSTRUCTOR: takes ownership of the arrays, e.g. as loaded by {@link CountrySnapshot}. */
+	TrigramIndex(long[] keys, int[] offsets, int[] postings, int rowCount)
+	{
+		this(keys, offsets, postings, rowCount, rowCount, new TrigramIndex[0]);
+	}
+
+	/** CONSTRUCTOR */
+	private TrigramIndex(long[] keys, int[] offsets, int[] postings, int baseRows, int rowCount, TrigramIndex[] tail)
+	{
+		this.keys = keys;
+		this.offsets = offsets;
+		this.postings = postings;
+		this.baseRows = baseRows;
+		this.rowCount = rowCount;
+		this.tail = tail;
+	}
+
+	/**
+	 * Builds an index over the code, name, continent and region of every row of the table.
+	 */
+	public static TrigramIndex build(CountryTable table)
+	{
+		return build(table, 0);
+	}
+
+	/**
+	 * Returns an index over the table, which is the table of this index with rows appended.
+	 * Only the appended rows are indexed, and added to the tail: the last indexes of the tail that
+	 * are not much bigger are merged with them, so each posting is copied a few times at most
+	 * before the index is built in full again. Build it so once the tail is no longer small.
+	 */
+	public TrigramIndex extend(CountryTable table)
+	{
+		if (table.size() < rowCount)
+		{
+			throw new IllegalArgumentException("Rows can only be appended: " + table.size() + " < " + rowCount);
+		}
+		if (table.size() == rowCount)
+		{
+			return this;
+		}
+		TrigramIndex appended = build(table, rowCount);
+		int count = tail.length;
+		while (count > 0 && tail[count - 1].postings.length <= 2 * appended.postings.length)
+		{
+			appended = merge(tail[--count], appended);
+		}
+		TrigramIndex[] newTail = Arrays.copyOf(tail, count + 1);
+		newTail[count] = appended;
+		return new TrigramIndex(keys, offsets, postings, baseRows, table.size(), newTail);
+	}
+
+	/**
+	 * Returns an index over the rows of both indexes, whose tails are empty; the rows of the
+	 * second come after the rows of the first, so each posting list is the one of the first
+	 * followed by the one of the second.
+	 */
+	private static TrigramIndex merge(TrigramIndex first, TrigramIndex second)
+	{
+		long[] keys = new long[first.keys.length + second.keys.length];
+		int[] offsets = new int[keys.length + 1];
+		int[] postings = new int[first.postings.length + second.postings.length];
+		int k = 0;
+		int p = 0;
+		int i = 0;
+		int j = 0;
+		while (i < first.keys.length || j < second.keys.length)
+		{
+			long key;
+			if (j == second.keys.length || (i < first.keys.length && first.keys[i] <= second.keys[j]) )
+			{
+				key = first.keys[i];
+			}
+			else
+			{
+				key = second.keys[j];
+			}
+			keys[k] = key;
+			offsets[k++] = p;
+			if (i < first.keys.length && first.keys[i] == key)
+			{
+				int length = first.length(i);
+				System.arraycopy(first.postings, first.offsets[i], postings, p, length);
+				p += length;
+				i++;
+			}
+			if (j < second.keys.length && second.keys[j] == key)
+			{
+				int length = second.length(j);
+				System.arraycopy(second.postings, second.offsets[j], postings, p, length);
+				p += length;
+				j++;
+			}
+		}
+		offsets[k] = p;
+		return new TrigramIndex(Arrays.copyOf(keys, k), Arrays.copyOf(offsets, k + 1), postings, second.rowCount);
+	}
+
+	/** Returns the number of appended rows, which are indexed separately from the others. */
+	public int getTailRowCount()
+	{
+		return rowCount - baseRows;
+	}
+
+	/**
+	 * Builds an index over the rows [from, size) of the table. Its postings are row numbers of the table.
+	 */
+	private static TrigramIndex build(CountryTable table, int from)
+	{
+		// The continents and regions are shared by many rows, so take their trigrams once.
+		long[][] continentGrams = grams(table.getContinents().length, table, true);
+		long[][] regionGrams = grams(table.getRegions().length, table, false);
+
+		Map<Long, IntList> lists = new HashMap<Long, IntList>();
+		int[] total = new int[1];
+		char[] codes = table.getFoldedCodeChars();
+		char[] names = table.getFoldedNameChars();
+		for (int row = from, size = table.size(); row < size; row++)
+		{
+			int codeStart = table.getCodeStart(row);
+			addGrams(lists, total, row, codes, codeStart, codeStart + table.getCodeLength(row) );
+			int nameStart = table.getNameStart(row);
+			addGrams(lists, total, row, names, nameStart, nameStart + table.getNameLength(row) );
+			for (long gram : continentGrams[table.getContinentCode(row)])
+			{
+				addGram(lists, total, row, gram);
+			}
+			for (long gram : regionGrams[table.getRegionCode(row)])
+			{
+				addGram(lists, total, row, gram);
+			}
+		}
+
+		long[] keys = new long[lists.size()];
+		int k = 0;
+		for (Long gram : lists.keySet() )
+		{
+			keys[k++] = gram;
+		}
+		Arrays.sort(keys);
+
+		int[] offsets = new int[keys.length + 1];
+		int[] postings = new int[total[0]];
+		int p = 0;
+		for (int i = 0; i < keys.length; i++)
+		{
+			IntList list = lists.get(keys[i]);
+			offsets[i] = p;
+			for (int j = 0, len = list.size(); j < len; j++)
+			{
+				postings[p++] = list.get(j);
+			}
+		}
+		offsets[keys.length] = p;
+		return new TrigramIndex(keys, offsets, postings, table.size() );
+	}
+
+	/** Returns the trigrams of every continent or region in the dictionary. */
+	private static long[][] grams(int count, CountryTable table, boolean continents)
+	{
+		long[][] grams = new long[count][];
+		for (int code = 0; code < count; code++)
+		{
+			char[] text = continents ? table.getFoldedContinent(code) : table.getFoldedRegion(code);
+			grams[code] = new long[Math.max(text.length - GRAM_LENGTH + 1, 0)];
+			for (int i = 0; i < grams[code].length; i++)
+			{
+				grams[code][i] = pack(text, i);
+			}
+		}
+		return grams;
+	}
+
+	private static void addGrams(Map<Long, IntList> lists, int[] total, int row, char[] text, int from, int to)
+	{
+		for (int i = from, last = to - GRAM_LENGTH; i <= last; i++)
+		{
+			addGram(lists, total, row, pack(text, i) );
+		}
+	}
+
+	private static void addGram(Map<Long, IntList> lists, int[] total, int row, long gram)
+	{
+		IntList list = lists.get(gram);
+		if (list == null)
+		{
+			list = new IntList(4);
+			lists.put(gram, list);
+		}
+		if (list.last() != row)  // Rows are visited in order, so this removes duplicates.
+		{
+			list.add(row);
+			total[0]++;
+		}
+	}
+
+	/* The arrays, for CountrySnapshot to write. Without the tail; must not be modified. */
+
+	long[] getKeys()
+	{
+		return keys;
+	}
+
+	int[] getOffsets()
+	{
+		return offsets;
+	}
+
+	int[] getPostings()
+	{
+		return postings;
+	}
+
+	/** Returns the number of rows the index was built over. */
+	public int getRowCount()
+	{
+		return rowCount;
+	}
+
+	/**
+	 * Returns the sorted rows that may contain the folded constraint, or null if the constraint
+	 * is too short to use the index, in which case every row is a candidate.
+	 */
+	public int[] candidates(char[] folded)
+	{
+		if (folded.length < GRAM_LENGTH)
+		{
+			return null;
+		}
+		int[] result = baseCandidates(folded);
+		for (TrigramIndex appended : tail)
+		{
+			// The appended rows all come after the others, so the lists just follow each other.
+			int[] rows = appended.baseCandidates(folded);
+			if (rows.length > 0)
+			{
+				int size = result.length;
+				result = Arrays.copyOf(result, size + rows.length);
+				System.arraycopy(rows, 0, result, size, rows.length);
+			}
+		}
+		return result;
+	}
+
+	/** Returns the candidates among the rows the arrays were built over. */
+	private int[] baseCandidates(char[] folded)
+	{
+		// Look up every trigram of the constraint, and start from the shortest posting list.
+		int grams = folded.length - GRAM_LENGTH + 1;
+		int[] found = new int[grams];
+		int shortest = -1;
+		for (int i = 0; i < grams; i++)
+		{
+			int slot = Arrays.binarySearch(keys, pack(folded, i) );
+			if (slot < 0)
+			{
+				return new int[0];  // A trigram nobody has.
+			}
+			found[i] = slot;
+			if (shortest < 0 || length(slot) < length(found[shortest]) )
+			{
+				shortest = i;
+			}
+		}
+
+		int slot = found[shortest];
+		int[] result = Arrays.copyOfRange(postings, offsets[slot], offsets[slot + 1]);
+		int size = result.length;
+		for (int i = 0; i < grams && size > 0; i++)
+		{
+			if (found[i] != slot)
+			{
+				size = intersect(result, size, found[i]);
+			}
+		}
+		return (size == result.length) ? result : Arrays.copyOf(result, size);
+	}
+
+	/**
+	 * Intersects result[0, size) with the posting list in the given slot, in place.
+	 * Returns the new size.
+	 */
+	private int intersect(int[] result, int size, int slot)
+	{
+		int n = 0;
+		int p = offsets[slot];
+		int end = offsets[slot + 1];
+		for (int i = 0; i < size && p < end; i++)
+		{
+			int row = result[i];
+			while (p < end && postings[p] < row)
+			{
+				p++;
+			}
+			if (p < end && postings[p] == row)
+			{
+				result[n++] = row;
+			}
+		}
+		return n;
+	}
+
+	private int length(int slot)
+	{
+		return offsets[slot + 1] - offsets[slot];
+	}
+
+	private static long pack(char[] text, int i)
+	{
+		return ((long) text[i] << 32) | ((long) text[i + 1] << 16) | text[i + 2];
+	}
+}
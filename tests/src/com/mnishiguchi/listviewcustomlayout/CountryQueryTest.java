@@ -0,0 +1,102 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the query syntax of {@link CountryQuery}, and of what it leaves as plain input.
+ */
+public class CountryQueryTest extends TestCase
+{
+	private CountrySearcher searcher;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		CountryTable table = new CountryTable.Builder()
+				.add("ALB", "Albania", "Europe", "Southern Europe")
+				.add("AND", "Andorra", "Europe", "Southern Europe")
+				.add("COD", "Congo (Kinshasa)", "Africa", "Central Africa")
+				.add("COG", "Congo (Brazzaville)", "Africa", "Central Africa")
+				.add("JPN", "Japan", "Asia", "East Asia")
+				.add("NOR", "Norway", "Europe", "Nordic Countries")
+				.add("USA", "United States of America", "North America", "North America")
+				.build();
+		searcher = new CountrySearcher(table);
+	}
+
+	public void testAndAloneIsAWord()
+	{
+		assertTrue(CountryQuery.isPlain("AND") );
+		assertEquals("AND", plain("AND") );
+	}
+
+	public void testAndBetweenTermsIsAnOperator()
+	{
+		assertFalse(CountryQuery.isPlain("asia AND japan") );
+		assertEquals("JPN", query("asia AND japan") );
+	}
+
+	public void testOperatorsWithoutBothOperandsAreWords()
+	{
+		assertTrue(CountryQuery.isPlain("OR") );
+		assertTrue(CountryQuery.isPlain("europe OR") );
+		assertTrue(CountryQuery.isPlain("AND europe") );
+		assertTrue(CountryQuery.isPlain("NOT") );
+		assertTrue(CountryQuery.isPlain("NOT japan") );
+	}
+
+	public void testLowerCaseOrIsAWord()
+	{
+		assertTrue(CountryQuery.isPlain("or") );
+		assertTrue(CountryQuery.isPlain("japan or norway") );
+		assertEquals("AND NOR USA", plain("or") );
+	}
+
+	public void testOrBetweenTermsIsAnOperator()
+	{
+		assertFalse(CountryQuery.isPlain("japan OR norway") );
+		assertEquals("JPN NOR", query("japan OR norway") );
+	}
+
+	public void testNotAfterATermIsAnOperator()
+	{
+		assertEquals("ALB NOR", query("europe NOT andorra") );
+		assertEquals("ALB NOR", query("europe AND NOT andorra") );
+	}
+
+	public void testParenthesesAloneArePlain()
+	{
+		assertTrue(CountryQuery.isPlain("Congo (Kinshasa)") );
+		assertTrue(CountryQuery.isPlain("congo (k") );
+		assertEquals("COD", plain("Congo (Kinshasa)") );
+	}
+
+	public void testParenthesesGroupInQueries()
+	{
+		assertFalse(CountryQuery.isPlain("(japan OR norway) -code:NOR") );
+		assertEquals("JPN", query("(japan OR norway) -code:NOR") );
+		assertEquals("COD COG", query("continent:Africa (congo)") );
+	}
+
+	/** Returns the codes of the rows matching a plain constraint, as the filter matches it. */
+	private String plain(String constraint)
+	{
+		return codes(searcher.search(SearchText.fold(constraint) ) );
+	}
+
+	private String query(String constraint)
+	{
+		return codes(CountryQuery.parse(constraint).evaluate(searcher, CancellationToken.NONE) );
+	}
+
+	private String codes(RowBitmap rows)
+	{
+		StringBuilder codes = new StringBuilder();
+		for (int row = rows.nextSetBit(0); row >= 0; row = rows.nextSetBit(row + 1) )
+		{
+			codes.append( (codes.length() == 0) ? "" : " ").append(searcher.getTable().getCode(row) );
+		}
+		return codes.toString();
+	}
+}
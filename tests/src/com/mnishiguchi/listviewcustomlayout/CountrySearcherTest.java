@@ -0,0 +1,150 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the searches of {@link CountrySearcher} that take shortcuts, against plain searches
+ * of the same constraints.
+ */
+public class CountrySearcherTest extends TestCase
+{
+	private static final String[] SYLLABLES = { "a", "an", "ar", "ba", "bo", "ri", "na", "to", "la", "\u00E9" };
+
+	private CountryTable table;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		Random random = new Random(3);
+		CountryTable.Builder builder = new CountryTable.Builder();
+		String[] continents = { "Africa", "Asia", "Europe" };
+		for (int row = 0; row < 2000; row++)
+		{
+			builder.add(String.valueOf(row), name(random), continents[row % continents.length], "Region " + row % 7);
+		}
+		table = builder.build();
+	}
+
+	public void testBatchIsTheSameAsSearchingOneByOne()
+	{
+		// Chains of prefixes, in no particular order, with equal, empty and too short constraints.
+		assertBatch("anar", "a", "ana", "", "an", "anarb", "an", "AN", "", "ri", "rib", "ribo", "zz", "zzz", "\u00C1na");
+
+		// Prefixes of names, many of them shared.
+		Random random = new Random(5);
+		for (int round = 0; round < 20; round++)
+		{
+			String[] constraints = new String[30];
+			for (int i = 0; i < constraints.length; i++)
+			{
+				String name = table.getName(random.nextInt(table.size() ) );
+				constraints[i] = name.substring(0, random.nextInt(Math.min(name.length(), 6) + 1) );
+			}
+			assertBatch(constraints);
+		}
+	}
+
+	public void testTopIsTheStartOfTheRankedRows()
+	{
+		String[] constraints = { "a", "an", "ana", "ri", "bor", "Ba Na", "zz", "1", "12" };
+		int[] ks = { 1, 5, 48, 500, 5000 };
+		for (String constraint : constraints)
+		{
+			char[] folded = SearchText.fold(constraint);
+			RankedRows ranked = new CountrySearcher(table).searchRanked(folded, CancellationToken.NONE);
+			for (int k : ks)
+			{
+				RankedRows top = new CountrySearcher(table).searchTop(folded, k, CancellationToken.NONE);
+				String message = "\"" + constraint + "\", k = " + k;
+				assertEquals(message, Math.min(k, ranked.getCount() ), top.getCount() );
+				assertEquals(message, rows(ranked, top.getCount() ), rows(top, top.getCount() ) );
+				if (top.isComplete() )
+				{
+					assertEquals(message, ranked.getCount(), top.getCount() );
+				}
+			}
+		}
+	}
+
+	public void testTopIsNotCachedAsEveryMatch()
+	{
+		String[] constraints = { "a", "an", "ana", "ri", "rib", "bo" };
+		CountrySearcher plain = new CountrySearcher(table);
+		for (int k : new int[] { 1, 10, 100 })
+		{
+			// The tops narrow each other down through the cache, then every match is asked for.
+			CountrySearcher searcher = new CountrySearcher(table);
+			for (String constraint : constraints)
+			{
+				searcher.searchTop(SearchText.fold(constraint), k, CancellationToken.NONE);
+			}
+			for (String constraint : constraints)
+			{
+				char[] folded = SearchText.fold(constraint);
+				String message = "\"" + constraint + "\", k = " + k;
+				assertEquals(message, rows(plain.search(folded) ), rows(searcher.search(folded) ) );
+				RankedRows ranked = plain.searchRanked(folded, CancellationToken.NONE);
+				assertEquals(message, rows(ranked, ranked.getCount() ),
+						rows(searcher.searchRanked(folded, CancellationToken.NONE), ranked.getCount() ) );
+			}
+		}
+	}
+
+	/** Checks that the batch gives each constraint the rows that searching it alone gives. */
+	private void assertBatch(String... constraints)
+	{
+		RowBitmap[] batch = new CountrySearcher(table).searchBatch(constraints, CancellationToken.NONE);
+		assertEquals(constraints.length, batch.length);
+		CountrySearcher searcher = new CountrySearcher(table);
+		for (int i = 0; i < constraints.length; i++)
+		{
+			assertEquals("\"" + constraints[i] + "\"", rows(searcher.search(SearchText.fold(constraints[i]) ) ),
+					rows(batch[i]) );
+		}
+	}
+
+	private static List<Integer> rows(RowBitmap bitmap)
+	{
+		List<Integer> rows = new ArrayList<Integer>();
+		for (int row = bitmap.nextSetBit(0); row >= 0; row = bitmap.nextSetBit(row + 1) )
+		{
+			rows.add(row);
+		}
+		return rows;
+	}
+
+	private static List<Integer> rows(RankedRows ranked, int count)
+	{
+		assertTrue(count <= ranked.getCount() );
+		List<Integer> rows = new ArrayList<Integer>();
+		for (int position = 0; position < count; position++)
+		{
+			rows.add(ranked.getRow(position) );
+		}
+		return rows;
+	}
+
+	private static String name(Random random)
+	{
+		StringBuilder name = new StringBuilder();
+		for (int word = 0, words = 1 + random.nextInt(2); word < words; word++)
+		{
+			if (word > 0)
+			{
+				name.append(' ');
+			}
+			int start = name.length();
+			for (int i = 0, syllables = 1 + random.nextInt(4); i < syllables; i++)
+			{
+				name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			name.setCharAt(start, Character.toUpperCase(name.charAt(start) ) );
+		}
+		return name.toString();
+	}
+}
@@ -0,0 +1,244 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link CountrySnapshot}: what is written loads back the same, and a damaged file
+ * fails to load with an IOException, never with a runtime exception out of the buffer.
+ */
+public class CountrySnapshotTest extends TestCase
+{
+	private static final int HEADER_BYTES = 4 * 9;
+
+	private CountryTable table;
+	private File file;
+
+	@Override
+	protected void setUp() throws Exception
+	{
+		super.setUp();
+		table = new CountryTable.Builder()
+				.add("ALB", "Albania", "Europe", "Southern Europe")
+				.add("AND", "Andorra", "Europe", "Southern Europe")
+				.add("COD", "Congo (Kinshasa)", "Africa", "Central Africa")
+				.add("JPN", "Japan", "Asia", "East Asia")
+				.add("NOR", "Norway", "Europe", "Nordic Countries")
+				.build();
+		file = File.createTempFile("countries", ".snapshot");
+		CountrySnapshot.write(table, null, file);
+	}
+
+	@Override
+	protected void tearDown() throws Exception
+	{
+		file.delete();
+		super.tearDown();
+	}
+
+	public void testLoadsWhatWasWritten() throws IOException
+	{
+		CountrySnapshot snapshot = CountrySnapshot.load(file);
+		assertSameRows(table, snapshot.getTable() );
+		char[] folded = SearchText.fold("nor");
+		assertEquals(toString(TrigramIndex.build(table).candidates(folded) ),
+				toString(snapshot.getIndex().candidates(folded) ) );
+
+		CountryTable page = CountrySnapshot.openRows(file).load(new int[] { 3, 0 });
+		assertEquals("JPN Japan", page.getCode(0) + " " + page.getName(0) );
+		assertEquals("ALB Albania", page.getCode(1) + " " + page.getName(1) );
+	}
+
+	public void testLoadsWithoutNames() throws IOException
+	{
+		CountryTable loaded = CountrySnapshot.load(file, false).getTable();
+		assertFalse(loaded.hasNames() );
+		assertNull(loaded.getNameChars() );
+		assertEquals("NOR", loaded.getCode(4) );
+		assertTrue(loaded.matcher(SearchText.fold("norw") ).matches(4) );
+		try
+		{
+			loaded.getName(4);
+			fail("No names were loaded");
+		}
+		catch (IllegalStateException expected)
+		{
+		}
+	}
+
+	public void testTruncatedFilesFail() throws IOException
+	{
+		byte[] bytes = read();
+		for (int length = 0; length < bytes.length; length++)
+		{
+			byte[] truncated = new byte[length];
+			System.arraycopy(bytes, 0, truncated, 0, length);
+			assertLoadFails("truncated to " + length + " bytes", truncated);
+		}
+	}
+
+	public void testBadCountsFail() throws IOException
+	{
+		byte[] bytes = read();
+		int[] values = { -1, Integer.MIN_VALUE, Integer.MAX_VALUE, bytes.length, bytes.length / 2 };
+		for (int count = 2; count < 9; count++)  // After the magic and the version.
+		{
+			int original = getInt(bytes, 4 * count);
+			for (int value : values)
+			{
+				if (value != original)
+				{
+					byte[] corrupt = bytes.clone();
+					putInt(corrupt, 4 * count, value);
+					assertLoadFails("count " + count + " = " + value, corrupt);
+				}
+			}
+		}
+	}
+
+	public void testOffsetsOutOfRangeFail() throws IOException
+	{
+		byte[] bytes = read();
+		int rowRecords = HEADER_BYTES + stringTableBytes(table.getContinents() ) + stringTableBytes(table.getRegions() )
+				+ 4 * (table.getCodeCharCount() + table.getNameCharCount() );
+		int last = rowRecords + 12 * (table.size() - 1);
+		assertEquals(table.getCodeCharCount(), getInt(bytes, last) );  // The layout is where the test thinks.
+		assertEquals(table.getNameCharCount(), getInt(bytes, last + 4) );
+
+		// The end of a code or a name past its section, or before its start.
+		assertLoadFails("code end", withInt(bytes, last, table.getCodeCharCount() + 1) );
+		assertLoadFails("name end", withInt(bytes, last + 4, table.getNameCharCount() + 1) );
+		assertLoadFails("code end before start", withInt(bytes, rowRecords + 12, 0) );
+		assertLoadFails("negative name end", withInt(bytes, rowRecords, -1) );
+
+		// A dictionary code past the dictionary.
+		byte[] corrupt = bytes.clone();
+		corrupt[last + 8] = (byte) table.getContinents().length;
+		assertLoadFails("continent code", corrupt);
+		corrupt = bytes.clone();
+		corrupt[last + 11] = (byte) 0x80;
+		assertLoadFails("negative region code", corrupt);
+
+		// A posting past the rows; the postings end the file.
+		assertLoadFails("posting", withInt(bytes, bytes.length - 4, table.size() ) );
+
+		// A string table offset past its chars.
+		assertLoadFails("string table", withInt(bytes, HEADER_BYTES + 4, 1000) );
+	}
+
+	/** Checks that the bytes fail to load, as a table or as rows to page, with an IOException. */
+	private void assertLoadFails(String message, byte[] bytes) throws IOException
+	{
+		write(bytes);
+		try
+		{
+			CountrySnapshot.load(file);
+			fail(message + ": loaded");
+		}
+		catch (IOException expected)
+		{
+		}
+		catch (RuntimeException e)
+		{
+			throw new AssertionError(message + ": " + e);
+		}
+		try
+		{
+			RowPager.Source rows = CountrySnapshot.openRows(file);
+			for (int row = 0; row < table.size(); row++)
+			{
+				rows.load(new int[] { row });  // May fail, but only with an IOException.
+			}
+		}
+		catch (IOException expected)
+		{
+		}
+		catch (RuntimeException e)
+		{
+			throw new AssertionError(message + ": paging: " + e);
+		}
+	}
+
+	private static void assertSameRows(CountryTable expected, CountryTable actual)
+	{
+		assertEquals(expected.size(), actual.size() );
+		for (int row = 0; row < expected.size(); row++)
+		{
+			assertEquals(expected.getRow(row).toString(), actual.getRow(row).toString() );
+		}
+	}
+
+	private byte[] read() throws IOException
+	{
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try
+		{
+			byte[] bytes = new byte[(int) in.length()];
+			in.readFully(bytes);
+			return bytes;
+		}
+		finally
+		{
+			in.close();
+		}
+	}
+
+	private void write(byte[] bytes) throws IOException
+	{
+		RandomAccessFile out = new RandomAccessFile(file, "rw");
+		try
+		{
+			out.setLength(0);
+			out.write(bytes);
+		}
+		finally
+		{
+			out.close();
+		}
+	}
+
+	private static byte[] withInt(byte[] bytes, int at, int value)
+	{
+		byte[] copy = bytes.clone();
+		putInt(copy, at, value);
+		return copy;
+	}
+
+	/* The snapshot is little-endian. */
+
+	private static int getInt(byte[] bytes, int at)
+	{
+		return (bytes[at] & 0xFF) | (bytes[at + 1] & 0xFF) << 8 | (bytes[at + 2] & 0xFF) << 16 | bytes[at + 3] << 24;
+	}
+
+	private static void putInt(byte[] bytes, int at, int value)
+	{
+		for (int i = 0; i < 4; i++)
+		{
+			bytes[at + i] = (byte) (value >>> (8 * i) );
+		}
+	}
+
+	private static int stringTableBytes(String[] values)
+	{
+		int bytes = 4 * (values.length + 1);
+		for (String value : values)
+		{
+			bytes += 2 * value.length();
+		}
+		return bytes;
+	}
+
+	private static String toString(int[] rows)
+	{
+		StringBuilder text = new StringBuilder();
+		for (int row : rows)
+		{
+			text.append(row).append(' ');
+		}
+		return text.toString();
+	}
+}
@@ -0,0 +1,139 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link FuzzyIndex}: its distance, and its BK-tree against a brute-force scan of every row.
+ */
+public class FuzzyIndexTest extends TestCase
+{
+	public void testDistance()
+	{
+		assertEquals(0, distance("abc", "abc") );
+		assertEquals(3, distance("", "abc") );
+		assertEquals(1, distance("abc", "acb") );  // One transposition.
+		assertEquals(3, distance("kitten", "sitting") );
+		assertEquals(2, distance("ca", "abc") );  // The restricted variant says 3.
+	}
+
+	public void testDistanceIsAMetric()
+	{
+		Random random = new Random(1);
+		for (int i = 0; i < 20000; i++)
+		{
+			char[] a = randomWord(random, 6);
+			char[] b = randomWord(random, 6);
+			char[] c = randomWord(random, 6);
+			assertEquals(FuzzyIndex.distance(a, b), FuzzyIndex.distance(b, a) );
+			assertTrue(new String(a) + " " + new String(b) + " " + new String(c),
+					FuzzyIndex.distance(a, c) <= FuzzyIndex.distance(a, b) + FuzzyIndex.distance(b, c) );
+		}
+	}
+
+	public void testSameAsBruteForce()
+	{
+		Random random = new Random(7);
+		for (int round = 0; round < 50; round++)
+		{
+			String[] names = new String[200];
+			for (int i = 0; i < names.length; i++)
+			{
+				names[i] = new String(randomWord(random, 7) );
+			}
+			CountryTable table = table(names);
+			FuzzyIndex index = new FuzzyIndex(table);
+			for (int q = 0; q < 40; q++)
+			{
+				assertMatches(table, index, new String(randomWord(random, 7) ) );
+			}
+		}
+	}
+
+	public void testExactAndFuzzyMatchesRankByWord()
+	{
+		CountryTable table = new CountryTable.Builder()
+				.add("YZB", "Yy Zz Big Nora", "Europe", "Northern Europe")  // Both words, from the fourth.
+				.add("XXN", "Xxxxxxxx Nora Big", "Europe", "Northern Europe")  // The constraint, from the third.
+				.add("NOR", "Nora Bog", "Europe", "Northern Europe")  // A typo, from the second.
+				.add("ABC", "Abc", "Europe", "Nora Big Islands")  // The constraint, in the region only.
+				.build();
+		FuzzyIndex index = new FuzzyIndex(table);
+		char[] folded = SearchText.fold("nora big");
+		CountryTable.Matcher matcher = table.matcher(folded);
+		long[] words = new long[RowBitmap.wordCount(table.size() )];
+		for (int row = 0; row < table.size(); row++)
+		{
+			if (matcher.matches(row) )
+			{
+				words[row >>> 6] |= 1L << row;
+			}
+		}
+		RankedRows found = index.search(folded, RowBitmap.wrap(words, table.size() ) );
+
+		// The exact match in the third word comes before the one in the fourth, even though
+		// its name starts further in; exact words come before the typo, and the region last.
+		List<Integer> actual = new ArrayList<Integer>();
+		for (int position = 0; position < found.getCount(); position++)
+		{
+			actual.add(found.getRow(position) );
+		}
+		assertEquals("[1, 0, 3, 2]", actual.toString() );
+	}
+
+	/**
+	 * Checks that the fuzzy matches of the index are the rows with a word within the allowed
+	 * distance, found by computing the distance to every row.
+	 */
+	private static void assertMatches(CountryTable table, FuzzyIndex index, String query)
+	{
+		char[] folded = SearchText.fold(query);
+		RankedRows found = index.search(folded, RowBitmap.empty(table.size() ) );
+		List<Integer> expected = new ArrayList<Integer>();
+		int max = FuzzyIndex.maxDistance(folded.length);
+		for (int row = 0; row < table.size(); row++)
+		{
+			if (max > 0 && FuzzyIndex.distance(SearchText.fold(table.getName(row) ), folded) <= max)
+			{
+				expected.add(row);
+			}
+		}
+		List<Integer> actual = new ArrayList<Integer>();
+		for (int position = 0; position < found.getCount(); position++)
+		{
+			actual.add(found.getRow(position) );
+		}
+		Collections.sort(actual);
+		assertEquals(query, expected, actual);
+	}
+
+	/** Returns a table with one-word names, and codes that are never within distance of them. */
+	private static CountryTable table(String... names)
+	{
+		CountryTable.Builder builder = new CountryTable.Builder();
+		for (int i = 0; i < names.length; i++)
+		{
+			builder.add(String.valueOf(1000000 + i), names[i], "Europe", "Southern Europe");
+		}
+		return builder.build();
+	}
+
+	private static char[] randomWord(Random random, int maxLength)
+	{
+		char[] word = new char[random.nextInt(maxLength + 1)];
+		for (int i = 0; i < word.length; i++)
+		{
+			word[i] = (char) ('a' + random.nextInt(3) );
+		}
+		return word;
+	}
+
+	private static int distance(String a, String b)
+	{
+		return FuzzyIndex.distance(a.toCharArray(), b.toCharArray() );
+	}
+}
@@ -0,0 +1,78 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link ListDiff#mapPosition(int)}, as the list is narrowed and widened by the filter.
+ * A row that is still shown keeps its place among the rows shown; a removed row is replaced by the
+ * first row shown after it, or by the last row if none is.
+ */
+public class ListDiffTest extends TestCase
+{
+	private static final int SIZE = 3000;
+
+	private final Random random = new Random(11);
+
+	public void testNarrowing()
+	{
+		for (int round = 0; round < 20; round++)
+		{
+			RowBitmap wide = random(SIZE, 0.3);
+			assertMapsPositions(wide, wide.and(random(SIZE, 0.4) ) );
+		}
+	}
+
+	public void testWidening()
+	{
+		for (int round = 0; round < 20; round++)
+		{
+			RowBitmap narrow = random(SIZE, 0.1);
+			assertMapsPositions(narrow, narrow.or(random(SIZE, 0.3) ) );
+		}
+	}
+
+	public void testWideningOverAppendedRows()
+	{
+		RowBitmap before = random(SIZE, 0.2);
+		assertMapsPositions(before, before.withSize(SIZE + 100).or(random(SIZE + 100, 0.2) ) );
+	}
+
+	public void testUnchangedAndEmpty()
+	{
+		RowBitmap rows = random(SIZE, 0.2);
+		ListDiff same = ListDiff.compute(rows, rows);
+		assertFalse(same.hasChanges() );
+		assertMapsPositions(rows, rows);
+		assertEquals(-1, ListDiff.compute(rows, RowBitmap.empty(SIZE) ).mapPosition(0) );
+		assertMapsPositions(RowBitmap.of(new int[] { 5, 9 }, SIZE), RowBitmap.of(new int[] { 1 }, SIZE) );
+	}
+
+	/** Checks every old position against the rank of its row among the new rows. */
+	private static void assertMapsPositions(RowBitmap oldRows, RowBitmap newRows)
+	{
+		ListDiff diff = ListDiff.compute(oldRows, newRows);
+		int last = newRows.cardinality() - 1;
+		for (int position = 0; position < oldRows.cardinality(); position++)
+		{
+			int row = oldRows.select(position);
+			int expected = Math.min(newRows.rank(row), last);
+			assertEquals("row " + row + (newRows.contains(row) ? "" : ", removed"), expected,
+					diff.mapPosition(position) );
+		}
+	}
+
+	private RowBitmap random(int size, double density)
+	{
+		long[] words = new long[RowBitmap.wordCount(size)];
+		for (int row = 0; row < size; row++)
+		{
+			if (random.nextDouble() < density)
+			{
+				words[row >>> 6] |= 1L << row;
+			}
+		}
+		return RowBitmap.wrap(words, size);
+	}
+}
@@ -0,0 +1,74 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the memory budget of {@link ResultCache}: the least recently used results go first,
+ * and what is left always fits.
+ */
+public class ResultCacheTest extends TestCase
+{
+	private static final int SIZE = 10000;
+
+	/** What one entry of a one-char constraint takes, as the cache counts it. */
+	private final long entryBytes = 64 + 2 + RowBitmap.empty(SIZE).estimateBytes();
+
+	public void testEvictsTheLeastRecentlyUsedOverTheBudget()
+	{
+		ResultCache cache = new ResultCache(3 * entryBytes);
+		cache.put(key("a"), RowBitmap.of(new int[] { 1 }, SIZE) );
+		cache.put(key("b"), RowBitmap.of(new int[] { 2 }, SIZE) );
+		cache.put(key("c"), RowBitmap.of(new int[] { 3 }, SIZE) );
+		assertEquals(3, cache.getEntryCount() );
+		assertEquals(3 * entryBytes, cache.getBytes() );
+		assertEquals(0, cache.getEvictionCount() );
+
+		assertNotNull(cache.get(key("a") ) );  // Now b is the least recently used.
+		cache.put(key("d"), RowBitmap.of(new int[] { 4 }, SIZE) );
+		assertEquals(1, cache.getEvictionCount() );
+		assertNull(cache.get(key("b") ) );
+		assertEquals(1, cache.get(key("a") ).nextSetBit(0) );
+		assertNotNull(cache.get(key("c") ) );
+		assertNotNull(cache.get(key("d") ) );
+		assertEquals(3 * entryBytes, cache.getBytes() );
+	}
+
+	public void testStaysWithinTheBudget()
+	{
+		long maxBytes = 10 * entryBytes + entryBytes / 2;
+		ResultCache cache = new ResultCache(maxBytes);
+		for (int i = 0; i < 100; i++)
+		{
+			cache.put(key("k" + i), RowBitmap.of(new int[] { i }, SIZE) );
+			assertTrue(cache.getBytes() <= maxBytes);
+		}
+		assertEquals(100 - cache.getEntryCount(), cache.getEvictionCount() );
+		assertNotNull(cache.get(key("k99") ) );
+		assertNull(cache.get(key("k0") ) );
+	}
+
+	public void testReplacingAnEntryCountsItOnce()
+	{
+		ResultCache cache = new ResultCache(2 * entryBytes);
+		cache.put(key("a"), RowBitmap.of(new int[] { 1 }, SIZE) );
+		cache.put(key("a"), RowBitmap.of(new int[] { 2 }, SIZE) );
+		assertEquals(1, cache.getEntryCount() );
+		assertEquals(entryBytes, cache.getBytes() );
+		assertEquals(2, cache.get(key("a") ).nextSetBit(0) );
+	}
+
+	public void testResultOverTheWholeBudgetIsNotCached()
+	{
+		ResultCache cache = new ResultCache(entryBytes);
+		cache.put(key("a"), RowBitmap.of(new int[] { 1 }, SIZE) );
+		cache.put(key("b"), RowBitmap.full(2 * SIZE) );
+		assertNull(cache.get(key("b") ) );
+		assertNotNull(cache.get(key("a") ) );
+		assertEquals(0, cache.getEvictionCount() );
+	}
+
+	private static char[] key(String constraint)
+	{
+		return SearchText.fold(constraint);
+	}
+}
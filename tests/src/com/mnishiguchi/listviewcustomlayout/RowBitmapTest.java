@@ -0,0 +1,69 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of the rank and select of {@link RowBitmap}, against counting the rows one by one,
+ * at sizes and densities that cross the words and the blocks of its rank directory.
+ */
+public class RowBitmapTest extends TestCase
+{
+	public void testSelectOfRankIsTheRow()
+	{
+		Random random = new Random(7);
+		int[] sizes = { 1, 63, 64, 65, 511, 512, 513, 5000 };
+		double[] densities = { 0, 0.001, 0.05, 0.5, 0.99, 1 };
+		for (int size : sizes)
+		{
+			for (double density : densities)
+			{
+				RowBitmap bitmap = random(random, size, density);
+				String message = "size " + size + ", density " + density;
+				int count = 0;  // The rows in the set below the row.
+				for (int row = 0; row < size; row++)
+				{
+					assertEquals(message + ", rank(" + row + ")", count, bitmap.rank(row) );
+					if (bitmap.contains(row) )
+					{
+						assertEquals(message + ", select(rank(" + row + ") )", row, bitmap.select(count) );
+						count++;
+					}
+				}
+				assertEquals(message, bitmap.cardinality(), count);
+				assertEquals(message, count, bitmap.rank(size) );
+			}
+		}
+	}
+
+	public void testSelectOutsideTheSetFails()
+	{
+		RowBitmap bitmap = RowBitmap.of(new int[] { 3, 700 }, 1000);
+		assertEquals(700, bitmap.select(1) );
+		for (int position : new int[] { -1, 2 })
+		{
+			try
+			{
+				bitmap.select(position);
+				fail("select(" + position + ")");
+			}
+			catch (IndexOutOfBoundsException expected)
+			{
+			}
+		}
+	}
+
+	private static RowBitmap random(Random random, int size, double density)
+	{
+		long[] words = new long[RowBitmap.wordCount(size)];
+		for (int row = 0; row < size; row++)
+		{
+			if (random.nextDouble() < density)
+			{
+				words[row >>> 6] |= 1L << row;
+			}
+		}
+		return RowBitmap.wrap(words, size);
+	}
+}
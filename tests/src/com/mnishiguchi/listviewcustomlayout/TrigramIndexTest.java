@@ -0,0 +1,125 @@
+package com.mnishiguchi.listviewcustomlayout;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+/**
+ * Tests of {@link TrigramIndex}: its candidates, checked with the table's matcher, are the rows
+ * a scan of every row finds, whether the index was built at once or extended as rows were appended.
+ */
+public class TrigramIndexTest extends TestCase
+{
+	private static final String[] SYLLABLES = { "a", "an", "ar", "ba", "bo", "ri", "na", "to", "la", "\u00E9" };
+	private static final String[] CONSTRAINTS = { "", "a", "an", "ana", "anar", "bor", "riba", "a b", "Ba Na", "\u00C9",
+			"\u00E9la", "zzz", "12", "123", "afr", "ASIA", "region 3", "n 4" };
+
+	private final Random random = new Random(13);
+
+	public void testCandidatesCheckedAreTheScannedRows()
+	{
+		CountryTable table = table(0, 3000);
+		TrigramIndex index = TrigramIndex.build(table);
+		for (String constraint : CONSTRAINTS)
+		{
+			assertSameAsScan(constraint, table, index);
+		}
+		for (int i = 0; i < 200; i++)
+		{
+			String name = table.getName(random.nextInt(table.size() ) );
+			int start = random.nextInt(name.length() );
+			assertSameAsScan(name.substring(start, start + random.nextInt(Math.min(name.length() - start, 6) + 1) ),
+					table, index);
+		}
+	}
+
+	public void testShortConstraintsHaveNoCandidates()
+	{
+		TrigramIndex index = TrigramIndex.build(table(0, 100) );
+		assertNull(index.candidates(SearchText.fold("") ) );
+		assertNull(index.candidates(SearchText.fold("a") ) );
+		assertNull(index.candidates(SearchText.fold("ab") ) );
+		assertNotNull(index.candidates(SearchText.fold("abc") ) );
+	}
+
+	public void testExtendedIndexFindsTheAppendedRows()
+	{
+		CountryTable table = table(0, 1000);
+		TrigramIndex index = TrigramIndex.build(table);
+		for (int batch = 0; batch < 8; batch++)
+		{
+			table = table.append(table(table.size(), 1 + random.nextInt(300) ) );
+			index = index.extend(table);
+			assertEquals(table.size(), index.getRowCount() );
+			for (String constraint : CONSTRAINTS)
+			{
+				assertSameAsScan(constraint, table, index);
+			}
+		}
+	}
+
+	/** Checks that the candidates include every match, in order, and that checking them finds the matches. */
+	private static void assertSameAsScan(String constraint, CountryTable table, TrigramIndex index)
+	{
+		char[] folded = SearchText.fold(constraint);
+		CountryTable.Matcher matcher = table.matcher(folded);
+		List<Integer> scanned = new ArrayList<Integer>();
+		for (int row = 0; row < table.size(); row++)
+		{
+			if (matcher.matches(row) )
+			{
+				scanned.add(row);
+			}
+		}
+
+		int[] candidates = index.candidates(folded);
+		if (candidates == null)
+		{
+			assertTrue("\"" + constraint + "\" is long enough for the index", folded.length < TrigramIndex.GRAM_LENGTH);
+			return;
+		}
+		List<Integer> checked = new ArrayList<Integer>();
+		for (int i = 0; i < candidates.length; i++)
+		{
+			assertTrue("\"" + constraint + "\": candidates in order", i == 0 || candidates[i - 1] < candidates[i]);
+			if (matcher.matches(candidates[i]) )
+			{
+				checked.add(candidates[i]);
+			}
+		}
+		assertEquals("\"" + constraint + "\"", scanned, checked);
+	}
+
+	/** Returns a table of random names, whose codes are the row numbers from the first one. */
+	private CountryTable table(int first, int count)
+	{
+		String[] continents = { "Africa", "Asia", "Europe" };
+		CountryTable.Builder builder = new CountryTable.Builder();
+		for (int row = first; row < first + count; row++)
+		{
+			builder.add(String.valueOf(row), name(), continents[row % continents.length], "Region " + row % 7);
+		}
+		return builder.build();
+	}
+
+	private String name()
+	{
+		StringBuilder name = new StringBuilder();
+		for (int word = 0, words = 1 + random.nextInt(2); word < words; word++)
+		{
+			if (word > 0)
+			{
+				name.append(' ');
+			}
+			int start = name.length();
+			for (int i = 0, syllables = 1 + random.nextInt(4); i < syllables; i++)
+			{
+				name.append(SYLLABLES[random.nextInt(SYLLABLES.length)]);
+			}
+			name.setCharAt(start, Character.toUpperCase(name.charAt(start) ) );
+		}
+		return name.toString();
+	}
+}